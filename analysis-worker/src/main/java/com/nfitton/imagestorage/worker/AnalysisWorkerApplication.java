@@ -0,0 +1,49 @@
+package com.nfitton.imagestorage.worker;
+
+import com.nfitton.imagestorage.ImageStorageApplication;
+import com.nfitton.imagestorage.configuration.RouterConfiguration;
+import com.nfitton.imagestorage.entity.BaseEntity;
+import com.nfitton.imagestorage.repository.FileMetadataRepository;
+import org.opencv.core.Core;
+import org.springframework.boot.SpringBootConfiguration;
+import org.springframework.boot.autoconfigure.EnableAutoConfiguration;
+import org.springframework.boot.autoconfigure.domain.EntityScan;
+import org.springframework.boot.builder.SpringApplicationBuilder;
+import org.springframework.context.annotation.ComponentScan;
+import org.springframework.context.annotation.ComponentScan.Filter;
+import org.springframework.context.annotation.FilterType;
+import org.springframework.data.jpa.repository.config.EnableJpaRepositories;
+
+/**
+ * Runs the analysis of uploaded images apart from the HTTP API.
+ *
+ * <p>The worker shares the server's entities, repositories and services, but has no web server
+ * and none of the handlers. It consumes the analysis queue and writes the entities found back
+ * to the database, so analysis can be scaled without scaling the API nodes, which run with the
+ * {@code api} profile to only enqueue images.
+ */
+@SpringBootConfiguration
+@EnableAutoConfiguration
+@EntityScan(basePackageClasses = BaseEntity.class)
+@EnableJpaRepositories(basePackageClasses = FileMetadataRepository.class)
+@ComponentScan(
+    basePackageClasses = ImageStorageApplication.class,
+    excludeFilters = {
+        @Filter(
+            type = FilterType.ASSIGNABLE_TYPE,
+            classes = {ImageStorageApplication.class, RouterConfiguration.class}),
+        @Filter(type = FilterType.REGEX, pattern = "com\\.nfitton\\.imagestorage\\.handler\\..*")
+    })
+public class AnalysisWorkerApplication {
+
+  static {
+    nu.pattern.OpenCV.loadShared();
+    System.loadLibrary(Core.NATIVE_LIBRARY_NAME);
+  }
+
+  public static void main(String[] args) {
+    new SpringApplicationBuilder(AnalysisWorkerApplication.class)
+        .profiles("worker")
+        .run(args);
+  }
+}
@@ -0,0 +1,33 @@
+package com.nfitton.imagestorage.worker;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+
+import com.nfitton.imagestorage.component.AnalysisQueueListener;
+import com.nfitton.imagestorage.handler.MotionHandlerV1;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.context.ApplicationContext;
+import org.springframework.test.context.ActiveProfiles;
+import org.springframework.test.context.junit.jupiter.SpringExtension;
+
+/**
+ * Starts the worker against the embedded broker, standing in for the broker shared with the API
+ * nodes.
+ */
+@ExtendWith(SpringExtension.class)
+@SpringBootTest(properties = "spring.activemq.broker-url=vm://localhost?broker.persistent=false")
+@ActiveProfiles({"worker", "local", "h2"})
+public class AnalysisWorkerApplicationTests {
+
+  @Autowired
+  private ApplicationContext context;
+
+  @Test
+  public void contextLoads() {
+    assertNotNull(context.getBean(AnalysisQueueListener.class));
+    assertEquals(0, context.getBeanNamesForType(MotionHandlerV1.class).length);
+  }
+}
@@ -0,0 +1,118 @@
+package com.nfitton.imagestorage.worker;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.when;
+
+import com.nfitton.imagestorage.ImageStorageApplication;
+import com.nfitton.imagestorage.configuration.QueueConfiguration;
+import com.nfitton.imagestorage.entity.ImageEntity;
+import com.nfitton.imagestorage.model.AnalysisQueueMessage;
+import com.nfitton.imagestorage.model.ImageData;
+import com.nfitton.imagestorage.service.AnalysisService;
+import com.nfitton.imagestorage.service.FileMetadataService;
+import com.nfitton.imagestorage.service.FileUploadService;
+import java.time.Duration;
+import java.time.ZonedDateTime;
+import java.util.LinkedList;
+import java.util.UUID;
+import java.util.function.BooleanSupplier;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.springframework.boot.builder.SpringApplicationBuilder;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.boot.test.mock.mockito.MockBean;
+import org.springframework.context.ConfigurableApplicationContext;
+import org.springframework.core.io.buffer.DefaultDataBufferFactory;
+import org.springframework.jms.core.JmsTemplate;
+import org.springframework.test.context.ActiveProfiles;
+import org.springframework.test.context.junit.jupiter.SpringExtension;
+import reactor.core.publisher.Flux;
+
+/**
+ * Runs an API node with the {@code api} profile next to the worker, sharing a broker and a
+ * database as they would when deployed apart.
+ */
+@ExtendWith(SpringExtension.class)
+@SpringBootTest(properties = "spring.activemq.broker-url=" + SplitDeploymentIT.BROKER_URL)
+@ActiveProfiles({"worker", "test", "local"})
+class SplitDeploymentIT {
+
+  static final String BROKER_URL = "vm://split-deployment?broker.persistent=false";
+  private static final Duration TIMEOUT = Duration.ofSeconds(30);
+
+  private static ConfigurableApplicationContext api;
+
+  @MockBean
+  private FileUploadService fileUploadService;
+  @MockBean
+  private AnalysisService analysisService;
+
+  @BeforeAll
+  static void startApi() {
+    api = new SpringApplicationBuilder(ImageStorageApplication.class)
+        .profiles("api", "test", "local")
+        .run("--server.port=0", "--spring.activemq.broker-url=" + BROKER_URL);
+  }
+
+  @AfterAll
+  static void stopApi() {
+    api.close();
+  }
+
+  @BeforeEach
+  void setUp() {
+    when(fileUploadService.downloadFile(any(UUID.class)))
+        .thenAnswer(invocation -> Flux.just(new DefaultDataBufferFactory().wrap(new byte[]{1})));
+    when(analysisService.analyzeImage(anyString()))
+        .thenAnswer(invocation -> Flux.just(ImageEntity.Builder.newBuilder()
+            .withX(0)
+            .withY(0)
+            .withWidth(10)
+            .withHeight(10)
+            .withType("person")
+            .build()));
+  }
+
+  @Test
+  void apiServesMotionAnalysedByTheWorker() {
+    // GIVEN motion the API node has cached before its image was analysed
+    FileMetadataService apiMetadata = api.getBean(FileMetadataService.class);
+    ZonedDateTime now = ZonedDateTime.now();
+    UUID imageId = apiMetadata.save(ImageData.Builder.newBuilder()
+        .withCameraId(UUID.randomUUID())
+        .withEntryTime(now)
+        .withExitTime(now)
+        .withImageTime(now)
+        .withEntities(new LinkedList<>())
+        .build()).block().getId();
+    assertFalse(apiMetadata.findById(imageId).block().fileExists());
+
+    // WHEN the API node queues the image and the worker analyses it
+    api.getBean(JmsTemplate.class).convertAndSend(
+        QueueConfiguration.ANALYSIS_QUEUE, new AnalysisQueueMessage(imageId.toString(), imageId));
+
+    // THEN the API node serves the analysed motion rather than its cached copy
+    awaitTrue(() -> apiMetadata.findById(imageId).block().fileExists());
+    assertEquals(1, apiMetadata.findById(imageId).block().getEntities().size());
+  }
+
+  private static void awaitTrue(BooleanSupplier condition) {
+    long deadline = System.currentTimeMillis() + TIMEOUT.toMillis();
+    while (!condition.getAsBoolean()) {
+      assertTrue(System.currentTimeMillis() < deadline, "Timed out waiting for the worker");
+      try {
+        Thread.sleep(100);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new IllegalStateException(e);
+      }
+    }
+  }
+}
@@ -0,0 +1,79 @@
+package com.nfitton.imagestorage.benchmarks;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.core.io.buffer.DataBufferFactory;
+import org.springframework.core.io.buffer.DataBufferUtils;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.codec.multipart.FilePart;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+/**
+ * A {@link FilePart} serving an in memory image in fixed size chunks, as a multipart upload would
+ * arrive.
+ */
+class BenchmarkFilePart implements FilePart {
+
+  private final byte[] content;
+  private final int chunkSize;
+  private final DataBufferFactory bufferFactory;
+
+  BenchmarkFilePart(byte[] content, int chunkSize, DataBufferFactory bufferFactory) {
+    this.content = content;
+    this.chunkSize = chunkSize;
+    this.bufferFactory = bufferFactory;
+  }
+
+  static Flux<DataBuffer> chunks(byte[] content, int chunkSize, DataBufferFactory bufferFactory) {
+    return Flux
+        .range(0, (content.length + chunkSize - 1) / chunkSize)
+        .map(i -> bufferFactory.wrap(ByteBuffer.wrap(
+            content, i * chunkSize, Math.min(chunkSize, content.length - i * chunkSize))));
+  }
+
+  @Override
+  public String filename() {
+    return "frame.jpg";
+  }
+
+  @Override
+  public Mono<Void> transferTo(File dest) {
+    return Mono.using(
+        () -> FileChannel.open(
+            dest.toPath(),
+            StandardOpenOption.CREATE,
+            StandardOpenOption.WRITE,
+            StandardOpenOption.TRUNCATE_EXISTING),
+        channel -> DataBufferUtils.write(content(), channel)
+            .map(DataBufferUtils::release)
+            .then(),
+        channel -> {
+          try {
+            channel.close();
+          } catch (IOException e) {
+            throw new UncheckedIOException(e);
+          }
+        });
+  }
+
+  @Override
+  public String name() {
+    return "file";
+  }
+
+  @Override
+  public HttpHeaders headers() {
+    return HttpHeaders.EMPTY;
+  }
+
+  @Override
+  public Flux<DataBuffer> content() {
+    return chunks(content, chunkSize, bufferFactory);
+  }
+}
@@ -0,0 +1,91 @@
+package com.nfitton.imagestorage.benchmarks;
+
+import com.nfitton.imagestorage.util.EncryptionUtil;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.NoSuchAlgorithmException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.core.io.buffer.DataBufferFactory;
+import org.springframework.core.io.buffer.DataBufferUtils;
+import org.springframework.core.io.buffer.DefaultDataBufferFactory;
+import reactor.core.publisher.Flux;
+
+/**
+ * Throughput of the streaming RSA/AES encryption used for legacy images, per file and buffer
+ * size. Scores are files per second, so MB/s is the score multiplied by the file size.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class EncryptionBenchmark {
+
+  @Param({"262144", "1048576", "4194304"})
+  private int fileSize;
+
+  @Param({"1024", "8192", "65536"})
+  private int bufferSize;
+
+  private final DataBufferFactory bufferFactory = new DefaultDataBufferFactory();
+  private KeyPair keys;
+  private byte[] plaintext;
+  private byte[] encrypted;
+
+  /**
+   * Generates the key pair, a random image and its encrypted form.
+   */
+  @Setup
+  public void setUp() throws NoSuchAlgorithmException {
+    KeyPairGenerator kpg = KeyPairGenerator.getInstance("RSA");
+    kpg.initialize(2048);
+    keys = kpg.generateKeyPair();
+    plaintext = new byte[fileSize];
+    new Random(fileSize).nextBytes(plaintext);
+    encrypted = drain(EncryptionUtil.encryptWithRsaAes(
+        keys.getPrivate(),
+        BenchmarkFilePart.chunks(plaintext, bufferSize, bufferFactory),
+        bufferFactory));
+  }
+
+  @Benchmark
+  public void encryptWithRsaAes(Blackhole blackhole) {
+    consume(blackhole, EncryptionUtil.encryptWithRsaAes(
+        keys.getPrivate(),
+        BenchmarkFilePart.chunks(plaintext, bufferSize, bufferFactory),
+        bufferFactory));
+  }
+
+  @Benchmark
+  public void decryptWithRsaAes(Blackhole blackhole) {
+    consume(blackhole, EncryptionUtil.decryptWithRsaAes(
+        keys.getPublic(),
+        BenchmarkFilePart.chunks(encrypted, bufferSize, bufferFactory),
+        bufferFactory));
+  }
+
+  static void consume(Blackhole blackhole, Flux<DataBuffer> buffers) {
+    buffers
+        .doOnNext(buffer -> {
+          blackhole.consume(buffer.readableByteCount());
+          DataBufferUtils.release(buffer);
+        })
+        .blockLast();
+  }
+
+  private static byte[] drain(Flux<DataBuffer> buffers) {
+    DataBuffer joined = DataBufferUtils.join(buffers).block();
+    byte[] bytes = new byte[joined.readableByteCount()];
+    joined.read(bytes);
+    return bytes;
+  }
+}
@@ -0,0 +1,125 @@
+package com.nfitton.imagestorage.benchmarks;
+
+import com.nfitton.imagestorage.entity.ImageEntity;
+import com.nfitton.imagestorage.repository.ImageEntityBatchRepository;
+import java.sql.Timestamp;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import org.flywaydb.core.Flyway;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.datasource.DataSourceTransactionManager;
+import org.springframework.jdbc.datasource.SingleConnectionDataSource;
+import org.springframework.transaction.support.TransactionTemplate;
+
+/**
+ * Entity insert throughput of one statement per row, as Hibernate did without batching, against
+ * {@link ImageEntityBatchRepository}. Scores are rows per second.
+ *
+ * <p>Runs against an in-memory H2 database by default, override the {@code url}, {@code user} and
+ * {@code password} parameters with a Postgres database to measure the {@code COPY} path.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class EntityInsertBenchmark {
+
+  private static final int ROWS = 48;
+  private static final String INSERT = "INSERT INTO image_entity"
+      + " (id, metadata_id, x, y, width, height, type, created_date, last_modified_date)"
+      + " VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?)";
+
+  @Param({"jdbc:h2:mem:entities;DB_CLOSE_DELAY=-1;MODE=PostgreSQL"})
+  private String url;
+
+  @Param({"test"})
+  private String user;
+
+  @Param({"test"})
+  private String password;
+
+  private final UUID metadataId = UUID.randomUUID();
+  private SingleConnectionDataSource dataSource;
+  private JdbcTemplate jdbcTemplate;
+  private TransactionTemplate transactionTemplate;
+  private ImageEntityBatchRepository repository;
+  private List<ImageEntity> entities;
+
+  /**
+   * Migrates the database and stores the metadata the entities belong to.
+   */
+  @Setup
+  public void setUp() {
+    dataSource = new SingleConnectionDataSource(url, user, password, true);
+    Flyway.configure().dataSource(dataSource).locations("classpath:db/migration").load().migrate();
+    jdbcTemplate = new JdbcTemplate(dataSource);
+    transactionTemplate = new TransactionTemplate(new DataSourceTransactionManager(dataSource));
+    repository = new ImageEntityBatchRepository(jdbcTemplate);
+
+    Timestamp now = Timestamp.from(Instant.now());
+    jdbcTemplate.update(
+        "INSERT INTO image_metadata (id, entry_time, exit_time, image_time) VALUES (?, ?, ?, ?)",
+        metadataId, now, now, now);
+    entities = new ArrayList<>(ROWS);
+    for (int i = 0; i < ROWS; i++) {
+      entities.add(ImageEntity.Builder.newBuilder()
+          .withMetadataId(metadataId)
+          .withX(i)
+          .withY(i)
+          .withWidth(64)
+          .withHeight(64)
+          .withType("face")
+          .build());
+    }
+  }
+
+  /**
+   * Empties the entity table so each iteration inserts into a table of the same size.
+   */
+  @TearDown(Level.Iteration)
+  public void clearEntities() {
+    jdbcTemplate.update("DELETE FROM image_entity WHERE metadata_id = ?", metadataId);
+  }
+
+  /**
+   * Removes the metadata and closes the connection.
+   */
+  @TearDown
+  public void tearDown() {
+    clearEntities();
+    jdbcTemplate.update("DELETE FROM image_metadata WHERE id = ?", metadataId);
+    dataSource.destroy();
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(ROWS)
+  public void rowAtATime() {
+    transactionTemplate.execute(status -> {
+      Timestamp now = Timestamp.from(Instant.now());
+      for (ImageEntity entity : entities) {
+        jdbcTemplate.update(INSERT, UUID.randomUUID(), entity.getMetadataId(), entity.getX(),
+            entity.getY(), entity.getWidth(), entity.getHeight(), entity.getType(), now, now);
+      }
+      return null;
+    });
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(ROWS)
+  public List<ImageEntity> insertAll() {
+    return transactionTemplate.execute(status -> repository.insertAll(entities));
+  }
+}
@@ -0,0 +1,108 @@
+package com.nfitton.imagestorage.benchmarks;
+
+import com.nfitton.imagestorage.util.EncryptionUtil;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.GeneralSecurityException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import javax.crypto.Cipher;
+import javax.crypto.KeyGenerator;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.IvParameterSpec;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+/**
+ * Throughput of AES encrypting a file with {@link EncryptionUtil#processFile} against the 1 KB
+ * stream loop it replaced, per file and buffer size. The stream loop ignores the buffer size.
+ * Scores are files per second, so MB/s is the score multiplied by the file size.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class ProcessFileBenchmark {
+
+  @Param({"262144", "1048576", "4194304"})
+  private int fileSize;
+
+  @Param({"8192", "65536", "262144"})
+  private int bufferSize;
+
+  private final IvParameterSpec iv = new IvParameterSpec(new byte[16]);
+  private SecretKey key;
+  private Path input;
+  private Path output;
+
+  /**
+   * Generates the key and writes a random image to a temporary file.
+   */
+  @Setup
+  public void setUp() throws GeneralSecurityException, IOException {
+    KeyGenerator kgen = KeyGenerator.getInstance("AES");
+    kgen.init(128);
+    key = kgen.generateKey();
+    byte[] content = new byte[fileSize];
+    new Random(fileSize).nextBytes(content);
+    input = Files.write(Files.createTempFile("frame", ".jpg"), content);
+    output = Files.createTempFile("frame", ".enc");
+  }
+
+  /**
+   * Removes the temporary files.
+   */
+  @TearDown
+  public void tearDown() throws IOException {
+    Files.deleteIfExists(input);
+    Files.deleteIfExists(output);
+  }
+
+  @Benchmark
+  public void processFile() throws GeneralSecurityException, IOException {
+    try (FileChannel in = FileChannel.open(input, StandardOpenOption.READ);
+        FileChannel out = FileChannel.open(
+            output, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+      EncryptionUtil.processFile(cipher(), in, out, bufferSize);
+    }
+  }
+
+  /**
+   * The loop {@link EncryptionUtil#processFile} replaced, allocating an output array per 1 KB.
+   */
+  @Benchmark
+  public void streamLoop() throws GeneralSecurityException, IOException {
+    Cipher ci = cipher();
+    try (InputStream in = new FileInputStream(input.toFile());
+        OutputStream out = new FileOutputStream(output.toFile())) {
+      byte[] ibuf = new byte[1024];
+      int len;
+      while ((len = in.read(ibuf)) != -1) {
+        byte[] obuf = ci.update(ibuf, 0, len);
+        if (obuf != null) {
+          out.write(obuf);
+        }
+      }
+      out.write(ci.doFinal());
+    }
+  }
+
+  private Cipher cipher() throws GeneralSecurityException {
+    Cipher ci = Cipher.getInstance("AES/CBC/PKCS5Padding");
+    ci.init(Cipher.ENCRYPT_MODE, key, iv);
+    return ci;
+  }
+}
@@ -0,0 +1,109 @@
+package com.nfitton.imagestorage.benchmarks;
+
+import com.nfitton.imagestorage.configuration.EncryptionConfiguration;
+import com.nfitton.imagestorage.configuration.PathConfiguration;
+import com.nfitton.imagestorage.service.impl.LocalFileStorage;
+import com.nfitton.imagestorage.service.impl.RsaKeyRing;
+import com.nfitton.imagestorage.util.ExpiringLruCache;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.Comparator;
+import java.util.Random;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.infra.Blackhole;
+import org.springframework.core.io.buffer.DataBufferFactory;
+import org.springframework.core.io.buffer.DefaultDataBufferFactory;
+import reactor.core.scheduler.Schedulers;
+
+/**
+ * End to end throughput of {@link LocalFileStorage} uploads and downloads against a temporary
+ * directory, in both key modes. Scores are images per second.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class StorageBenchmark {
+
+  private static final int RANGE_LENGTH = 64 * 1024;
+
+  @Param({"262144", "1048576", "4194304"})
+  private int fileSize;
+
+  @Param({"8192", "65536"})
+  private int bufferSize;
+
+  @Param({"false", "true"})
+  private boolean keyHierarchy;
+
+  private final DataBufferFactory bufferFactory = new DefaultDataBufferFactory();
+  private final UUID cameraId = UUID.randomUUID();
+  private final UUID uploadId = UUID.randomUUID();
+  private final UUID downloadId = UUID.randomUUID();
+  private Path directory;
+  private LocalFileStorage storage;
+  private BenchmarkFilePart image;
+
+  /**
+   * Creates the storage in a temporary directory and stores the image to download.
+   */
+  @Setup
+  public void setUp() throws IOException {
+    directory = Files.createTempDirectory("storage-benchmark");
+    PathConfiguration paths = new PathConfiguration();
+    paths.setLocation(directory.toString() + "/");
+    EncryptionConfiguration encryption = new EncryptionConfiguration();
+    encryption.setKeyHierarchyEnabled(keyHierarchy);
+    encryption.setDataKeyInterval(60);
+    storage = new LocalFileStorage(
+        paths,
+        encryption,
+        new RsaKeyRing(paths),
+        new ExpiringLruCache<>("benchmark", 1024, Duration.ofMinutes(10)),
+        Schedulers.parallel());
+
+    byte[] content = new byte[fileSize];
+    new Random(fileSize).nextBytes(content);
+    image = new BenchmarkFilePart(content, bufferSize, bufferFactory);
+    storage.uploadFile(image, downloadId, cameraId).block();
+  }
+
+  /**
+   * Removes the temporary storage directory.
+   */
+  @TearDown
+  public void tearDown() throws IOException {
+    try (Stream<Path> files = Files.walk(directory)) {
+      files.sorted(Comparator.reverseOrder()).forEach(file -> file.toFile().delete());
+    }
+  }
+
+  @Benchmark
+  public void uploadFile(Blackhole blackhole) {
+    blackhole.consume(storage.uploadFile(image, uploadId, cameraId).block());
+  }
+
+  @Benchmark
+  public void downloadFile(Blackhole blackhole) {
+    EncryptionBenchmark.consume(blackhole, storage.downloadFile(downloadId));
+  }
+
+  @Benchmark
+  public void downloadRange(Blackhole blackhole) {
+    long start = fileSize / 2;
+    EncryptionBenchmark.consume(
+        blackhole, storage.downloadFile(downloadId, start, start + RANGE_LENGTH - 1));
+  }
+}
@@ -0,0 +1,64 @@
+package com.nfitton.imagestorage.api;
+
+import com.fasterxml.jackson.annotation.JsonCreator;
+import com.fasterxml.jackson.annotation.JsonProperty;
+
+public class KeyRotationV1 {
+
+  private String state;
+  private int bucketsCompleted;
+  private int bucketsTotal;
+  private long filesRotated;
+  private long filesSkipped;
+  private long filesFailed;
+
+  /**
+   * Creates the API representation of the progress of a key rotation.
+   *
+   * @param state the state of the rotation
+   * @param bucketsCompleted the number of buckets of files that have been checkpointed
+   * @param bucketsTotal the number of buckets of files to rotate
+   * @param filesRotated the number of files re-wrapped with the new key pair
+   * @param filesSkipped the number of files that had nothing to re-wrap
+   * @param filesFailed the number of files that could not be re-wrapped
+   */
+  @JsonCreator
+  public KeyRotationV1(
+      @JsonProperty("state") String state,
+      @JsonProperty("bucketsCompleted") int bucketsCompleted,
+      @JsonProperty("bucketsTotal") int bucketsTotal,
+      @JsonProperty("filesRotated") long filesRotated,
+      @JsonProperty("filesSkipped") long filesSkipped,
+      @JsonProperty("filesFailed") long filesFailed) {
+    this.state = state;
+    this.bucketsCompleted = bucketsCompleted;
+    this.bucketsTotal = bucketsTotal;
+    this.filesRotated = filesRotated;
+    this.filesSkipped = filesSkipped;
+    this.filesFailed = filesFailed;
+  }
+
+  public String getState() {
+    return state;
+  }
+
+  public int getBucketsCompleted() {
+    return bucketsCompleted;
+  }
+
+  public int getBucketsTotal() {
+    return bucketsTotal;
+  }
+
+  public long getFilesRotated() {
+    return filesRotated;
+  }
+
+  public long getFilesSkipped() {
+    return filesSkipped;
+  }
+
+  public long getFilesFailed() {
+    return filesFailed;
+  }
+}
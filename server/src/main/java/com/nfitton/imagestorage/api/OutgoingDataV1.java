@@ -13,17 +13,33 @@ public class OutgoingDataV1 {
 
   private final Object data;
   private final Object error;
+  private final String next;
 
+  public OutgoingDataV1(Object data, Object error) {
+    this(data, error, null);
+  }
+
+  /**
+   * Creates the response body, with a cursor to the next page if the data is paged.
+   */
   @JsonCreator
-  public OutgoingDataV1(@JsonProperty("data") Object data, @JsonProperty("error") Object error) {
+  public OutgoingDataV1(
+      @JsonProperty("data") Object data,
+      @JsonProperty("error") Object error,
+      @JsonProperty("next") String next) {
     this.data = data;
     this.error = error;
+    this.next = next;
   }
 
   public static OutgoingDataV1 dataOnly(Object data) {
     return new OutgoingDataV1(data, null);
   }
 
+  public static OutgoingDataV1 page(Object data, String next) {
+    return new OutgoingDataV1(data, null, next);
+  }
+
   public static OutgoingDataV1 errorOnly(Object error) {
     return new OutgoingDataV1(null, error);
   }
@@ -43,4 +59,8 @@ public class OutgoingDataV1 {
   public Object getError() {
     return error;
   }
+
+  public String getNext() {
+    return next;
+  }
 }
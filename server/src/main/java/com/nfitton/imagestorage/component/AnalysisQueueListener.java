@@ -1,50 +1,258 @@
 package com.nfitton.imagestorage.component;
 
+import com.nfitton.imagestorage.configuration.QueueConfiguration;
+import com.nfitton.imagestorage.entity.ImageEntity;
 import com.nfitton.imagestorage.model.AnalysisQueueMessage;
-import com.nfitton.imagestorage.model.ImageData;
 import com.nfitton.imagestorage.service.AnalysisService;
 import com.nfitton.imagestorage.service.FileMetadataService;
+import com.nfitton.imagestorage.service.FileUploadService;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
 import java.util.List;
+import java.util.concurrent.Semaphore;
+import javax.jms.JMSException;
+import javax.jms.Message;
+import javax.jms.Session;
+import org.apache.activemq.ScheduledMessage;
+import org.apache.activemq.command.ActiveMQTopic;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.core.io.buffer.DataBufferUtils;
+import org.springframework.jms.JmsException;
 import org.springframework.jms.annotation.JmsListener;
+import org.springframework.jms.core.JmsTemplate;
+import org.springframework.messaging.handler.annotation.Payload;
 import org.springframework.stereotype.Component;
 import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Scheduler;
+import reactor.core.scheduler.Schedulers;
 
+/**
+ * Analyses images as they are taken from the analysis queue.
+ *
+ * <p>The listener hands each image to a reactive pipeline and returns, so a consumer thread is
+ * never held while an image is analysed. The number of analyses in flight across all consumers
+ * is bounded, a consumer waits for one to finish before taking another message once the bound is
+ * reached. The analysis services run on the bounded analysis scheduler.
+ *
+ * <p>Every message is acknowledged once its analysis has finished: an image whose analysis fails
+ * or times out is sent to the queue again with its attempts counted and a growing delay, then to
+ * the dead letter queue once it runs out of attempts, rather than being held unacknowledged by
+ * the consumer. Should the image not be sent, the session is recovered so the broker delivers it
+ * again. Storing the analysis replaces any entities stored before, so an image analysed twice is
+ * harmless, and is then published on the {@code motionUpdated} topic for nodes caching the
+ * motion.
+ *
+ * <p>Setting {@code analysis.queue.listen} to false leaves the queue to separate analysis
+ * workers, so a node only enqueues the images uploaded to it.
+ */
 @Component
+@ConditionalOnProperty(name = "analysis.queue.listen", havingValue = "true", matchIfMissing = true)
 public class AnalysisQueueListener {
 
   private static final Logger LOGGER = LoggerFactory.getLogger(AnalysisQueueListener.class);
 
   private final List<AnalysisService> analysisServices;
   private final FileMetadataService fileMetadataService;
+  private final FileUploadService fileUploadService;
+  private final JmsTemplate jmsTemplate;
+  private final Scheduler analysisScheduler;
+  private final Semaphore inFlight;
+  private final int maxAttempts;
+  private final Duration retryDelay;
+  private final Duration timeout;
 
   @Autowired
   public AnalysisQueueListener(
       List<AnalysisService> analysisServices,
-      FileMetadataService fileMetadataService) {
+      FileMetadataService fileMetadataService,
+      FileUploadService fileUploadService,
+      JmsTemplate jmsTemplate,
+      QueueConfiguration queueConfiguration,
+      @Qualifier("analysisScheduler") Scheduler analysisScheduler) {
     this.analysisServices = analysisServices;
     this.fileMetadataService = fileMetadataService;
+    this.fileUploadService = fileUploadService;
+    this.jmsTemplate = jmsTemplate;
+    this.analysisScheduler = analysisScheduler;
+    this.inFlight = new Semaphore(queueConfiguration.getMaxInFlight());
+    this.maxAttempts = queueConfiguration.getMaxAttempts();
+    this.retryDelay = queueConfiguration.getRetryDelay();
+    this.timeout = queueConfiguration.getTimeout();
   }
 
   /**
-   * Receives a message from the queue and does analysis on the received image.
+   * Receives a message from the queue and starts analysis of the received image, acknowledging
+   * the message once the analysis has been stored or the image has been queued to be tried
+   * again.
    *
-   * @param message the message received from the queue
+   * @param payload the message received from the queue
+   * @param message the JMS message to acknowledge
+   * @param session the session the message was received on
    */
-  @JmsListener(destination = "analysisQueue", containerFactory = "jmsFactory")
-  public void receiveMessage(AnalysisQueueMessage message) {
-    LOGGER.debug("Received by queue: {}", message.getImageId());
-    ImageData block = Flux.fromIterable(analysisServices)
-        .flatMap(service -> service.analyzeImage(message.getFile()))
-        .collectList()
-        .flatMap(entities -> fileMetadataService.imageUploaded(message.getImageId(), entities))
-        .block();
+  @JmsListener(destination = QueueConfiguration.ANALYSIS_QUEUE, containerFactory = "jmsFactory")
+  public void receiveMessage(
+      @Payload AnalysisQueueMessage payload, Message message, Session session) {
+    LOGGER.debug("Received by queue: {}", payload.getImageId());
+    try {
+      inFlight.acquire();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      recover(session);
+      return;
+    }
 
-    LOGGER.debug(
-        "Queue action complete, num entities found: {}",
-        block.getEntities().size());
+    analyze(payload)
+        .flatMap(entities -> fileMetadataService.imageUploaded(payload.getImageId(), entities))
+        .timeout(timeout)
+        // Acknowledging and requeueing talk to the broker, which blocks
+        .publishOn(Schedulers.elastic())
+        .doFinally(signal -> inFlight.release())
+        .subscribe(
+            data -> LOGGER.debug(
+                "Queue action complete, num entities found: {}", data.getEntities().size()),
+            e -> {
+              if (retry(payload, message, e)) {
+                acknowledge(message);
+              } else {
+                recover(session);
+              }
+            },
+            () -> {
+              publishUpdate(payload);
+              acknowledge(message);
+            });
+  }
+
+  /**
+   * Sends a failed image back to the queue, or to the dead letter queue once it has been
+   * attempted too many times.
+   *
+   * @return true if the image was sent, false if it could not be
+   */
+  private boolean retry(AnalysisQueueMessage payload, Message message, Throwable cause) {
+    int attempts = attempts(message) + 1;
+    try {
+      if (attempts >= maxAttempts) {
+        LOGGER.error(
+            "Failed to analyse image {} after {} attempts, moving it to {}",
+            payload.getImageId(), attempts, QueueConfiguration.ANALYSIS_DEAD_LETTER_QUEUE, cause);
+        jmsTemplate.convertAndSend(
+            QueueConfiguration.ANALYSIS_DEAD_LETTER_QUEUE,
+            payload,
+            retried -> withAttempts(retried, attempts, Duration.ZERO));
+      } else {
+        LOGGER.warn(
+            "Failed to analyse image {}, attempt {} of {}",
+            payload.getImageId(), attempts, maxAttempts, cause);
+        jmsTemplate.convertAndSend(
+            QueueConfiguration.ANALYSIS_QUEUE,
+            payload,
+            retried -> withAttempts(retried, attempts, retryDelay.multipliedBy(attempts)));
+      }
+      return true;
+    } catch (JmsException e) {
+      LOGGER.error("Failed to requeue image {}", payload.getImageId(), e);
+      return false;
+    }
+  }
+
+  /**
+   * Tells every node the motion has changed, so nodes caching it read it again.
+   */
+  private void publishUpdate(AnalysisQueueMessage payload) {
+    try {
+      jmsTemplate.convertAndSend(
+          new ActiveMQTopic(QueueConfiguration.MOTION_UPDATED_TOPIC), payload.getImageId());
+    } catch (JmsException e) {
+      LOGGER.warn("Failed to publish analysis of image {}", payload.getImageId(), e);
+    }
+  }
+
+  private static Message withAttempts(Message message, int attempts, Duration delay)
+      throws JMSException {
+    message.setIntProperty(QueueConfiguration.ATTEMPTS_PROPERTY, attempts);
+    if (!delay.isZero()) {
+      message.setLongProperty(ScheduledMessage.AMQ_SCHEDULED_DELAY, delay.toMillis());
+    }
+    return message;
+  }
+
+  private static int attempts(Message message) {
+    try {
+      return message.propertyExists(QueueConfiguration.ATTEMPTS_PROPERTY)
+          ? message.getIntProperty(QueueConfiguration.ATTEMPTS_PROPERTY)
+          : 0;
+    } catch (JMSException e) {
+      return 0;
+    }
+  }
+
+  /**
+   * Decrypts the image to a temporary file for the analysis services to read, deleting it once
+   * every service has finished.
+   */
+  private Mono<List<ImageEntity>> analyze(AnalysisQueueMessage payload) {
+    return Mono.fromCallable(() -> Files.createTempFile("analysis", ".jpg"))
+        .subscribeOn(Schedulers.elastic())
+        .flatMap(file -> decrypt(payload, file)
+            .thenMany(Flux.fromIterable(analysisServices)
+                .flatMap(service -> Flux.defer(() -> service.analyzeImage(file.toString()))
+                    .subscribeOn(analysisScheduler)))
+            .collectList()
+            .doFinally(signal -> delete(file)));
+  }
+
+  private Mono<Void> decrypt(AnalysisQueueMessage payload, Path file) {
+    return Mono.using(
+        () -> FileChannel.open(file, StandardOpenOption.WRITE),
+        channel -> DataBufferUtils
+            .write(fileUploadService.downloadFile(payload.getImageId()), channel)
+            .map(DataBufferUtils::release)
+            .then(),
+        channel -> {
+          try {
+            channel.close();
+          } catch (IOException e) {
+            throw new UncheckedIOException(e);
+          }
+        });
+  }
 
+  private static void delete(Path file) {
+    try {
+      Files.deleteIfExists(file);
+    } catch (IOException e) {
+      LOGGER.warn("Failed to delete analysed image {}", file, e);
+    }
+  }
+
+  private static void acknowledge(Message message) {
+    try {
+      message.acknowledge();
+    } catch (JMSException e) {
+      LOGGER.error("Failed to acknowledge analysis of {}", message, e);
+    }
+  }
+
+  /**
+   * Returns the unacknowledged messages of the session to the broker, so an image that could
+   * neither be stored nor requeued is delivered again rather than held by the consumer.
+   */
+  private static void recover(Session session) {
+    try {
+      session.recover();
+    } catch (JMSException e) {
+      LOGGER.error("Failed to recover analysis session", e);
+    }
   }
-}
\ No newline at end of file
+}
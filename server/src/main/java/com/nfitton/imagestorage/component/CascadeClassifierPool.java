@@ -0,0 +1,159 @@
+package com.nfitton.imagestorage.component;
+
+import com.nfitton.imagestorage.configuration.OpenCVConfiguration;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+import org.opencv.objdetect.CascadeClassifier;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.core.io.Resource;
+import org.springframework.stereotype.Component;
+import reactor.util.function.Tuple2;
+
+/**
+ * Hands out loaded haar cascades, so the cascade XML is parsed once per thread rather than once
+ * per image.
+ *
+ * <p>A {@link CascadeClassifier} is not thread safe, so each thread gets its own instance of
+ * each cascade, loaded the first time that thread uses it. Analysis runs on the fixed size
+ * processing scheduler, which bounds the number of instances to its threads times the cascades.
+ *
+ * <p>Load times are published as {@code opencv.cascade.load}, and the number of loaded and in
+ * use instances as {@code opencv.cascade.instances} and {@code opencv.cascade.active}.
+ */
+@Component
+public class CascadeClassifierPool {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(CascadeClassifierPool.class);
+
+  private final List<Cascade> cascades;
+  private final ThreadLocal<Map<Cascade, CascadeClassifier>> classifiers =
+      ThreadLocal.withInitial(HashMap::new);
+  private final AtomicInteger instances = new AtomicInteger();
+  private final AtomicInteger active = new AtomicInteger();
+  private final Counter uses;
+
+  /**
+   * Finds the cascade files to load, copying any packaged in a jar out to a temporary file as
+   * OpenCV can only load them from the file system.
+   *
+   * @param configuration the cascades to load
+   * @param registry the registry to publish load times and pool usage to
+   */
+  @Autowired
+  public CascadeClassifierPool(OpenCVConfiguration configuration, MeterRegistry registry) {
+    List<Cascade> found = new ArrayList<>();
+    for (Tuple2<Resource, String> cascade : configuration.getAllCascades()) {
+      Resource resource = cascade.getT1();
+      try {
+        String name = resource.getFilename();
+        Timer loadTimer = Timer.builder("opencv.cascade.load")
+            .tag("cascade", name)
+            .description("The time taken to load a cascade for a thread")
+            .register(registry);
+        found.add(new Cascade(name, cascade.getT2(), toPath(resource), loadTimer));
+      } catch (IOException e) {
+        LOGGER.error("Failed to load cascade from file {}", resource.getFilename());
+      }
+    }
+    this.cascades = Collections.unmodifiableList(found);
+    this.uses = Counter.builder("opencv.cascade.uses")
+        .description("The number of times a cascade has been run")
+        .register(registry);
+    Gauge.builder("opencv.cascade.instances", instances, AtomicInteger::get)
+        .description("The number of cascades loaded across all threads")
+        .register(registry);
+    Gauge.builder("opencv.cascade.active", active, AtomicInteger::get)
+        .description("The number of cascades currently running")
+        .register(registry);
+    LOGGER.info("Found {} haar cascades", cascades.size());
+  }
+
+  private static Path toPath(Resource resource) throws IOException {
+    if (resource.isFile()) {
+      return resource.getFile().toPath();
+    }
+    Path copy = Files.createTempFile("cascade", ".xml");
+    copy.toFile().deleteOnExit();
+    try (InputStream in = resource.getInputStream()) {
+      Files.copy(in, copy, StandardCopyOption.REPLACE_EXISTING);
+    }
+    return copy;
+  }
+
+  public List<Cascade> getCascades() {
+    return cascades;
+  }
+
+  /**
+   * Runs a detection with the calling thread's instance of the cascade, loading it if this is
+   * the first time the thread has used it.
+   *
+   * @param cascade the cascade to detect with
+   * @param detection the detection to run with the classifier
+   * @param <T> the type of the detection result
+   * @return the result of the detection
+   */
+  public <T> T use(Cascade cascade, Function<CascadeClassifier, T> detection) {
+    CascadeClassifier classifier = classifiers.get().computeIfAbsent(cascade, this::load);
+    active.incrementAndGet();
+    try {
+      return detection.apply(classifier);
+    } finally {
+      active.decrementAndGet();
+      uses.increment();
+    }
+  }
+
+  private CascadeClassifier load(Cascade cascade) {
+    CascadeClassifier classifier = cascade.loadTimer
+        .record(() -> new CascadeClassifier(cascade.path.toString()));
+    if (classifier.empty()) {
+      LOGGER.error("Failed to load cascade from file {}", cascade.name);
+    }
+    instances.incrementAndGet();
+    LOGGER.debug("Loaded cascade {} for {}", cascade.name, Thread.currentThread().getName());
+    return classifier;
+  }
+
+  /**
+   * A haar cascade and the type of entity it detects.
+   */
+  public static final class Cascade {
+
+    private final String name;
+    private final String type;
+    private final Path path;
+    private final Timer loadTimer;
+
+    private Cascade(String name, String type, Path path, Timer loadTimer) {
+      this.name = name;
+      this.type = type;
+      this.path = path;
+      this.loadTimer = loadTimer;
+    }
+
+    public String getName() {
+      return name;
+    }
+
+    public String getType() {
+      return type;
+    }
+  }
+}
@@ -0,0 +1,96 @@
+package com.nfitton.imagestorage.component;
+
+import com.nfitton.imagestorage.configuration.ApiConfiguration;
+import com.nfitton.imagestorage.exception.TooManyRequestsException;
+import java.time.Duration;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+import reactor.core.publisher.Mono;
+
+/**
+ * Limits the number of image uploads in progress, both across the node and for each camera.
+ *
+ * <p>Uploads over either limit are refused straight away with a {@link TooManyRequestsException}
+ * so cameras reconnecting together back off instead of queueing behind each other.
+ */
+@Component
+public class UploadLimiter {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(UploadLimiter.class);
+
+  private final int maxConcurrent;
+  private final int maxConcurrentPerCamera;
+  private final Duration retryAfter;
+  private final AtomicInteger inProgress = new AtomicInteger();
+  private final Map<UUID, Integer> inProgressByCamera = new ConcurrentHashMap<>();
+
+  @Autowired
+  public UploadLimiter(ApiConfiguration configuration) {
+    this(
+        configuration.getMaxConcurrentUploads(),
+        configuration.getMaxConcurrentUploadsPerCamera(),
+        configuration.getUploadRetryAfter());
+  }
+
+  UploadLimiter(int maxConcurrent, int maxConcurrentPerCamera, Duration retryAfter) {
+    this.maxConcurrent = maxConcurrent;
+    this.maxConcurrentPerCamera = maxConcurrentPerCamera;
+    this.retryAfter = retryAfter;
+  }
+
+  /**
+   * Runs an upload if the node and the camera both have room for it.
+   *
+   * @param cameraId the camera uploading the image
+   * @param upload supplies the upload to run once admitted
+   * @param <T> the result of the upload
+   * @return the upload, or a {@link TooManyRequestsException} if either limit is reached
+   */
+  public <T> Mono<T> admit(UUID cameraId, Supplier<Mono<T>> upload) {
+    return Mono.defer(() -> {
+      if (!tryAcquire(cameraId)) {
+        LOGGER.debug("Refused upload from camera={}, {} uploads in progress",
+            cameraId, inProgress.get());
+        return Mono.error(new TooManyRequestsException(
+            "Too many uploads in progress, try again later", retryAfter));
+      }
+      return Mono.defer(upload).doFinally(signal -> release(cameraId));
+    });
+  }
+
+  int getInProgress() {
+    return inProgress.get();
+  }
+
+  private boolean tryAcquire(UUID cameraId) {
+    if (inProgress.incrementAndGet() > maxConcurrent) {
+      inProgress.decrementAndGet();
+      return false;
+    }
+    boolean[] admitted = new boolean[1];
+    inProgressByCamera.compute(cameraId, (id, count) -> {
+      int current = count == null ? 0 : count;
+      if (current >= maxConcurrentPerCamera) {
+        return count;
+      }
+      admitted[0] = true;
+      return current + 1;
+    });
+    if (!admitted[0]) {
+      inProgress.decrementAndGet();
+    }
+    return admitted[0];
+  }
+
+  private void release(UUID cameraId) {
+    inProgressByCamera.computeIfPresent(cameraId, (id, count) -> count > 1 ? count - 1 : null);
+    inProgress.decrementAndGet();
+  }
+}
@@ -1,5 +1,6 @@
 package com.nfitton.imagestorage.configuration;
 
+import java.time.Duration;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.context.annotation.Configuration;
 
@@ -9,7 +10,28 @@ public class ApiConfiguration {
   @Value("${api.payload.max:500}")
   private int maxPayload;
 
+  @Value("${api.upload.max-concurrent:64}")
+  private int maxConcurrentUploads;
+
+  @Value("${api.upload.max-concurrent-per-camera:2}")
+  private int maxConcurrentUploadsPerCamera;
+
+  @Value("${api.upload.retry-after-seconds:5}")
+  private long uploadRetryAfter;
+
   public int getMaxPayload() {
     return maxPayload;
   }
+
+  public int getMaxConcurrentUploads() {
+    return maxConcurrentUploads;
+  }
+
+  public int getMaxConcurrentUploadsPerCamera() {
+    return maxConcurrentUploadsPerCamera;
+  }
+
+  public Duration getUploadRetryAfter() {
+    return Duration.ofSeconds(uploadRetryAfter);
+  }
 }
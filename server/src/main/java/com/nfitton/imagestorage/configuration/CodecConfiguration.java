@@ -0,0 +1,38 @@
+package com.nfitton.imagestorage.configuration;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import java.util.Arrays;
+import org.springframework.boot.web.codec.CodecCustomizer;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.http.MediaType;
+import org.springframework.http.codec.json.Jackson2JsonEncoder;
+import org.springframework.util.MimeType;
+
+@Configuration
+public class CodecConfiguration {
+
+  public static final MediaType APPLICATION_NDJSON = MediaType.valueOf("application/x-ndjson");
+
+  /**
+   * Registers newline delimited JSON as a streaming type, so streamed responses write each
+   * element as soon as it is available rather than collecting them into a JSON array.
+   *
+   * @param objectMapper the application's object mapper
+   * @return a customizer replacing the default JSON encoder
+   */
+  @Bean
+  public CodecCustomizer streamingJsonCodecCustomizer(ObjectMapper objectMapper) {
+    return configurer -> {
+      Jackson2JsonEncoder encoder = new Jackson2JsonEncoder(
+          objectMapper,
+          MediaType.APPLICATION_JSON,
+          new MimeType("application", "*+json"),
+          MediaType.APPLICATION_STREAM_JSON,
+          APPLICATION_NDJSON);
+      encoder.setStreamingMediaTypes(
+          Arrays.asList(MediaType.APPLICATION_STREAM_JSON, APPLICATION_NDJSON));
+      configurer.defaultCodecs().jackson2JsonEncoder(encoder);
+    };
+  }
+}
@@ -0,0 +1,88 @@
+package com.nfitton.imagestorage.configuration;
+
+import com.nfitton.imagestorage.util.ExpiringLruCache;
+import java.time.Duration;
+import java.util.UUID;
+import javax.crypto.SecretKey;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+
+@Configuration
+public class EncryptionConfiguration {
+
+  @Value("${storage.key-cache.size:1024}")
+  private int keyCacheSize;
+
+  @Value("${storage.key-cache.ttl-seconds:600}")
+  private long keyCacheTtl;
+
+  private boolean keyHierarchyEnabled;
+
+  private long dataKeyInterval;
+
+  @Value("${storage.key-rotation.parallelism:0}")
+  private int rotationParallelism;
+
+  @Value("${storage.key-rotation.max-files-per-second:0}")
+  private int rotationMaxFilesPerSecond;
+
+  /**
+   * Whether images are encrypted with a data key shared per camera per interval, rather than
+   * each getting their own RSA wrapped key.
+   *
+   * @return true if images should be encrypted with shared data keys
+   */
+  public boolean isKeyHierarchyEnabled() {
+    return keyHierarchyEnabled;
+  }
+
+  @Value("${storage.key-hierarchy.enabled:false}")
+  public void setKeyHierarchyEnabled(boolean keyHierarchyEnabled) {
+    this.keyHierarchyEnabled = keyHierarchyEnabled;
+  }
+
+  public Duration getDataKeyInterval() {
+    return Duration.ofMinutes(dataKeyInterval);
+  }
+
+  /**
+   * Sets how long each camera's data key is used for before a new one is generated.
+   *
+   * @param minutes the interval in minutes
+   */
+  @Value("${storage.key-hierarchy.interval-minutes:60}")
+  public void setDataKeyInterval(long minutes) {
+    this.dataKeyInterval = minutes;
+  }
+
+  /**
+   * The number of threads to re-wrap keys with during a key rotation.
+   *
+   * @return the configured parallelism, or the number of processors if not configured
+   */
+  public int getRotationParallelism() {
+    return rotationParallelism > 0
+        ? rotationParallelism
+        : Runtime.getRuntime().availableProcessors();
+  }
+
+  /**
+   * The number of files a key rotation may rewrite per second, to leave I/O for serving images.
+   *
+   * @return the maximum files per second, or 0 if unlimited
+   */
+  public int getRotationMaxFilesPerSecond() {
+    return rotationMaxFilesPerSecond;
+  }
+
+  /**
+   * Cache of unwrapped image keys, so repeated downloads of an image skip the RSA unwrap.
+   *
+   * @return a cache of AES keys by the id of the image or data key they belong to
+   */
+  @Bean
+  public ExpiringLruCache<UUID, SecretKey> dataKeyCache() {
+    return new ExpiringLruCache<>("dataKey", keyCacheSize, Duration.ofSeconds(keyCacheTtl));
+  }
+}
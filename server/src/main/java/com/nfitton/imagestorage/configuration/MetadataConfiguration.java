@@ -0,0 +1,30 @@
+package com.nfitton.imagestorage.configuration;
+
+import com.nfitton.imagestorage.model.ImageData;
+import com.nfitton.imagestorage.util.ExpiringLruCache;
+import java.time.Duration;
+import java.util.UUID;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+
+@Configuration
+public class MetadataConfiguration {
+
+  @Value("${metadata.cache.size:1024}")
+  private int cacheSize;
+
+  @Value("${metadata.cache.ttl-seconds:60}")
+  private long cacheTtl;
+
+  /**
+   * Cache of motion by id, so motion opened by many users at once is only read from the
+   * database once.
+   *
+   * @return a cache of motion by its id
+   */
+  @Bean
+  public ExpiringLruCache<UUID, ImageData> motionCache() {
+    return new ExpiringLruCache<>("motion", cacheSize, Duration.ofSeconds(cacheTtl));
+  }
+}
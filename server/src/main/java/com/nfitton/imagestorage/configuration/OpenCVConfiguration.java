@@ -1,22 +1,31 @@
 package com.nfitton.imagestorage.configuration;
 
+import com.nfitton.imagestorage.util.MatScope;
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.binder.MeterBinder;
 import java.io.IOException;
-import java.util.stream.Stream;
-import org.opencv.objdetect.CascadeClassifier;
-import org.slf4j.Logger;
-import org.slf4j.LoggerFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.List;
 import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
 import org.springframework.core.io.Resource;
-import reactor.core.publisher.Flux;
-import reactor.core.publisher.Mono;
 import reactor.util.function.Tuple2;
 import reactor.util.function.Tuples;
 
 @Configuration
 public class OpenCVConfiguration {
 
-  private static final Logger LOGGER = LoggerFactory.getLogger(OpenCVConfiguration.class);
+  private static final Path PROCESS_STATUS = Paths.get("/proc/self/status");
+  private static final String RESIDENT_SET = "VmRSS:";
+
+  @Value("${opencv.analysis.max-dimension:1280}")
+  private int maxDimension;
 
   @Value(value = "classpath:haar/haarcascade_eye.xml")
   private Resource eye;
@@ -43,6 +52,15 @@ public class OpenCVConfiguration {
   @Value(value = "classpath:haar/haarcascade_upperbody.xml")
   private Resource upperBody;
 
+  /**
+   * The largest width or height an image is analysed at, larger images are scaled down first.
+   *
+   * @return the maximum dimension in pixels, or 0 to analyse images at full size
+   */
+  public int getMaxDimension() {
+    return maxDimension;
+  }
+
   public Tuple2<Resource, String> getEye() {
     return Tuples.of(eye, "EYE");
   }
@@ -92,12 +110,13 @@ public class OpenCVConfiguration {
   }
 
   /**
-   * Returns a list of all the haar cascades the system can run.
+   * Returns all the haar cascades the system can run, which are loaded by the
+   * {@link com.nfitton.imagestorage.component.CascadeClassifierPool}.
    *
-   * @return a Flux stream of haar cascades and the type of entity they detect
+   * @return the haar cascade files and the type of entity they detect
    */
-  public Flux<Tuple2<CascadeClassifier, String>> getAllCascades() {
-    return Flux.fromStream(Stream.of(
+  public List<Tuple2<Resource, String>> getAllCascades() {
+    return Arrays.asList(
         getEye(),
         getEyeTreeEyeglasses(),
         getFrontalFaceAlt(),
@@ -109,19 +128,47 @@ public class OpenCVConfiguration {
         getLowerBody(),
         getProfileFace(),
         getRightEyeTwoSplits(),
-        getUpperBody()
-    ))
-        .flatMap(tuple2 -> {
-          try {
-            java.lang.String absolutePath = tuple2.getT1().getFile().getAbsolutePath();
-            Tuple2<CascadeClassifier, String> tuple = Tuples
-                .of(new CascadeClassifier(absolutePath), tuple2.getT2());
-            return Mono.just(tuple);
-          } catch (IOException e) {
-            LOGGER.error("Failed to load cascade from file {}", tuple2.getT1().getFilename());
-            return Mono.empty();
-          }
-
-        });
+        getUpperBody());
+  }
+
+  /**
+   * Publishes the Mats held by running analyses and the bytes released after them as
+   * {@code opencv.mat.live} and {@code opencv.mat.released}, along with the resident set size of
+   * the process as {@code process.memory.rss}, which native allocations count towards but the JVM
+   * memory metrics do not.
+   *
+   * @return the binder registering the native memory metrics
+   */
+  @Bean
+  public MeterBinder nativeMemoryMetrics() {
+    return registry -> {
+      Gauge.builder("opencv.mat.live", MatScope::getLiveMats)
+          .description("The number of Mats held by running analyses")
+          .register(registry);
+      FunctionCounter.builder("opencv.mat.released", this, config -> MatScope.getReleasedBytes())
+          .baseUnit("bytes")
+          .description("The bytes of native memory released after analyses")
+          .register(registry);
+      if (Files.isReadable(PROCESS_STATUS)) {
+        Gauge.builder("process.memory.rss", OpenCVConfiguration::getResidentSetBytes)
+            .baseUnit("bytes")
+            .description("The resident set size of the process, including native memory")
+            .register(registry);
+      }
+    };
+  }
+
+  private static double getResidentSetBytes() {
+    try {
+      for (String line : Files.readAllLines(PROCESS_STATUS, StandardCharsets.UTF_8)) {
+        if (line.startsWith(RESIDENT_SET)) {
+          String kilobytes = line.substring(RESIDENT_SET.length()).replace("kB", "").trim();
+          return Long.parseLong(kilobytes) * 1024d;
+        }
+      }
+    } catch (IOException | NumberFormatException e) {
+      return Double.NaN;
+    }
+    return Double.NaN;
   }
 }
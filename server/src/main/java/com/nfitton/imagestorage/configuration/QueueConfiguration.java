@@ -1,7 +1,11 @@
 package com.nfitton.imagestorage.configuration;
 
+import java.time.Duration;
 import javax.jms.ConnectionFactory;
+import org.apache.activemq.ActiveMQSession;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.boot.autoconfigure.jms.DefaultJmsListenerContainerFactoryConfigurer;
+import org.springframework.boot.autoconfigure.jms.activemq.ActiveMQConnectionFactoryCustomizer;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
 import org.springframework.jms.config.DefaultJmsListenerContainerFactory;
@@ -13,16 +17,118 @@ import org.springframework.jms.support.converter.MessageType;
 @Configuration
 public class QueueConfiguration {
 
+  public static final String ANALYSIS_QUEUE = "analysisQueue";
+  public static final String ANALYSIS_DEAD_LETTER_QUEUE = "analysisQueue.DLQ";
+  public static final String ATTEMPTS_PROPERTY = "analysisAttempts";
+  public static final String MOTION_UPDATED_TOPIC = "motionUpdated";
+  public static final String KEYS_ROTATED_TOPIC = "keysRotated";
+
+  @Value("${analysis.queue.concurrency:1-4}")
+  private String concurrency;
+
+  @Value("${analysis.queue.prefetch:8}")
+  private int prefetch;
+
+  @Value("${analysis.queue.max-in-flight:0}")
+  private int maxInFlight;
+
+  @Value("${analysis.queue.max-attempts:3}")
+  private int maxAttempts;
+
+  @Value("${analysis.queue.retry-delay-seconds:30}")
+  private long retryDelaySeconds;
+
+  @Value("${analysis.queue.timeout-seconds:300}")
+  private long timeoutSeconds;
+
+  /**
+   * The number of analyses that may run at once before consumers stop taking messages.
+   *
+   * @return the configured limit, or twice the number of processors if not configured
+   */
+  public int getMaxInFlight() {
+    return maxInFlight > 0 ? maxInFlight : Runtime.getRuntime().availableProcessors() * 2;
+  }
+
+  /**
+   * The number of times an image is analysed before it is moved to the dead letter queue.
+   *
+   * @return the configured number of attempts, at least one
+   */
+  public int getMaxAttempts() {
+    return Math.max(maxAttempts, 1);
+  }
+
+  /**
+   * How long a failed image waits before it is analysed again, multiplied by the attempts made.
+   * The delay is only honoured by brokers with {@code schedulerSupport} enabled, others redeliver
+   * the image straight away.
+   *
+   * @return the delay before the first retry
+   */
+  public Duration getRetryDelay() {
+    return Duration.ofSeconds(retryDelaySeconds);
+  }
+
+  /**
+   * How long an analysis may run before it is treated as failed, so a stuck analysis cannot hold
+   * its place among those in flight.
+   *
+   * @return the analysis timeout
+   */
+  public Duration getTimeout() {
+    return Duration.ofSeconds(timeoutSeconds);
+  }
+
+  /**
+   * Listener containers whose messages are acknowledged individually by the listener, once their
+   * analysis is stored or they have been queued to be tried again.
+   *
+   * @param connectionFactory the broker connection factory
+   * @param configurer applies the Spring Boot JMS properties
+   * @return the listener container factory for the analysis queue
+   */
   @Bean
   public JmsListenerContainerFactory jmsFactory(
       ConnectionFactory connectionFactory,
       DefaultJmsListenerContainerFactoryConfigurer configurer) {
     DefaultJmsListenerContainerFactory factory = new DefaultJmsListenerContainerFactory();
     configurer.configure(factory, connectionFactory);
+    factory.setSessionAcknowledgeMode(ActiveMQSession.INDIVIDUAL_ACKNOWLEDGE);
+    factory.setConcurrency(concurrency);
 
     return factory;
   }
 
+  /**
+   * Listener containers for topics, which every node subscribes to rather than sharing.
+   *
+   * @param connectionFactory the broker connection factory
+   * @param configurer applies the Spring Boot JMS properties
+   * @return the listener container factory for topics
+   */
+  @Bean
+  public JmsListenerContainerFactory topicFactory(
+      ConnectionFactory connectionFactory,
+      DefaultJmsListenerContainerFactoryConfigurer configurer) {
+    DefaultJmsListenerContainerFactory factory = new DefaultJmsListenerContainerFactory();
+    configurer.configure(factory, connectionFactory);
+    factory.setPubSubDomain(true);
+
+    return factory;
+  }
+
+  /**
+   * Limits the messages the broker pushes to each consumer ahead of them being acknowledged, so
+   * unstarted analyses stay on the broker for other consumers.
+   *
+   * @return a customizer setting the queue prefetch
+   */
+  @Bean
+  public ActiveMQConnectionFactoryCustomizer prefetchCustomizer() {
+    return factory -> factory.getPrefetchPolicy().setQueuePrefetch(prefetch);
+  }
+
   @Bean
   public MessageConverter jacksonJmsMessageConverter() {
     MappingJackson2MessageConverter converter = new MappingJackson2MessageConverter();
@@ -0,0 +1,27 @@
+package com.nfitton.imagestorage.configuration;
+
+import io.r2dbc.spi.ConnectionFactories;
+import io.r2dbc.spi.ConnectionFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.context.annotation.Profile;
+
+@Configuration
+@Profile("r2dbc")
+public class R2dbcConfiguration {
+
+  @Value("${r2dbc.url}")
+  private String url;
+
+  /**
+   * Non-blocking connections to the metadata database, which must be the same database the JDBC
+   * datasource migrates. Prefix the driver with {@code pool:} in the url to pool connections.
+   *
+   * @return the connection factory for the configured url
+   */
+  @Bean
+  public ConnectionFactory connectionFactory() {
+    return ConnectionFactories.get(url);
+  }
+}
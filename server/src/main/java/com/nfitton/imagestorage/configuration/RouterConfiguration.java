@@ -8,6 +8,7 @@ import static org.springframework.web.reactive.function.server.RequestPredicates
 import static org.springframework.web.reactive.function.server.RouterFunctions.nest;
 import static org.springframework.web.reactive.function.server.RouterFunctions.route;
 
+import com.nfitton.imagestorage.handler.AdminHandlerV1;
 import com.nfitton.imagestorage.handler.CameraHandlerV1;
 import com.nfitton.imagestorage.handler.GroupHandlerV1;
 import com.nfitton.imagestorage.handler.LoginHandlerV1;
@@ -27,7 +28,8 @@ public class RouterConfiguration {
       LoginHandlerV1 loginHandlerV1,
       MotionHandlerV1 motionHandlerV1,
       GroupHandlerV1 groupHandlerV1,
-      UserHandlerV1 userHandlerV1) {
+      UserHandlerV1 userHandlerV1,
+      AdminHandlerV1 adminHandlerV1) {
     return nest(path("/v1"), nest(
         path("/cameras"), route(POST("/"), cameraHandlerV1::postCamera)
             .andRoute(GET("/"), cameraHandlerV1::getCameras)
@@ -45,6 +47,7 @@ public class RouterConfiguration {
             path("/motion"),
             route(POST("/"), motionHandlerV1::postMotion)
                 .andRoute(GET("/"), motionHandlerV1::getMotion)
+                .andRoute(GET("/tally"), motionHandlerV1::getMotionTally)
                 .andNest(path("/{motionId}"), route(PATCH("/"), motionHandlerV1::patchMotionPicture)
                     .andRoute(GET("/"), motionHandlerV1::getMotionById)
                     .andRoute(GET("/image"), motionHandlerV1::getMotionImageById)))
@@ -70,7 +73,11 @@ public class RouterConfiguration {
                 .andRoute(POST("/{groupId}/cameras/{cameraId}"), groupHandlerV1::addCameraToGroup)
                 .andRoute(GET("/{groupId}/cameras"), groupHandlerV1::getGroupCameras)
                 .andRoute(
-                    DELETE("/{groupId}/cameras/{cameraId}"), groupHandlerV1::removeCameraFromGroup)
+                    DELETE("/{groupId}/cameras/{cameraId}"), groupHandlerV1::removeCameraFromGroup))
+        .andNest(
+            path("/admin/keys/rotation"),
+            route(POST("/"), adminHandlerV1::rotateKeys)
+                .andRoute(GET("/"), adminHandlerV1::getKeyRotation)
         ));
   }
 }
@@ -0,0 +1,98 @@
+package com.nfitton.imagestorage.configuration;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.jvm.ExecutorServiceMetrics;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import reactor.core.scheduler.Scheduler;
+import reactor.core.scheduler.Schedulers;
+
+@Configuration
+public class SchedulerConfiguration {
+
+  private static final String PROCESSING = "processing";
+  private static final String ANALYSIS = "analysis";
+
+  @Value("${scheduler.processing.threads:0}")
+  private int processingThreads;
+
+  @Value("${scheduler.processing.queue-size:1024}")
+  private int processingQueueSize;
+
+  @Value("${scheduler.analysis.threads:0}")
+  private int analysisThreads;
+
+  @Value("${scheduler.analysis.queue-size:1024}")
+  private int analysisQueueSize;
+
+  /**
+   * Scheduler for CPU bound encryption and decryption, keeping that work off the Netty event loop.
+   *
+   * <p>The queue is bounded, once it is full further work is rejected with a
+   * {@link java.util.concurrent.RejectedExecutionException} rather than queueing without limit.
+   * Queue depth, active threads and task durations are published as {@code executor.*} metrics
+   * tagged with {@code name=processing}.
+   *
+   * @param registry the registry to publish the executor metrics to
+   * @return a scheduler backed by a fixed size pool with a bounded queue
+   */
+  @Bean(destroyMethod = "dispose")
+  public Scheduler processingScheduler(MeterRegistry registry) {
+    return boundedScheduler(registry, PROCESSING, processingThreads, processingQueueSize);
+  }
+
+  /**
+   * Scheduler for image analysis, kept apart from {@link #processingScheduler} so a backlog of
+   * analysis cannot fill the queue that uploads and downloads are served from.
+   *
+   * <p>Its metrics are tagged with {@code name=analysis}.
+   *
+   * @param registry the registry to publish the executor metrics to
+   * @return a scheduler backed by a fixed size pool with a bounded queue
+   */
+  @Bean(destroyMethod = "dispose")
+  public Scheduler analysisScheduler(MeterRegistry registry) {
+    return boundedScheduler(registry, ANALYSIS, analysisThreads, analysisQueueSize);
+  }
+
+  private static Scheduler boundedScheduler(
+      MeterRegistry registry, String name, int configuredThreads, int queueSize) {
+    int threads = configuredThreads > 0
+        ? configuredThreads
+        : Runtime.getRuntime().availableProcessors();
+    ThreadPoolExecutor executor = new ThreadPoolExecutor(
+        threads,
+        threads,
+        0L,
+        TimeUnit.MILLISECONDS,
+        new ArrayBlockingQueue<>(queueSize),
+        new NamedThreadFactory(name),
+        new ThreadPoolExecutor.AbortPolicy());
+    ExecutorService monitored = ExecutorServiceMetrics.monitor(registry, executor, name);
+    return Schedulers.fromExecutorService(monitored);
+  }
+
+  private static final class NamedThreadFactory implements ThreadFactory {
+
+    private final String prefix;
+    private final AtomicInteger count = new AtomicInteger();
+
+    private NamedThreadFactory(String prefix) {
+      this.prefix = prefix;
+    }
+
+    @Override
+    public Thread newThread(Runnable runnable) {
+      Thread thread = new Thread(runnable, prefix + "-" + count.incrementAndGet());
+      thread.setDaemon(true);
+      return thread;
+    }
+  }
+}
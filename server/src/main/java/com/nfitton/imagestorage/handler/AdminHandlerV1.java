@@ -0,0 +1,71 @@
+package com.nfitton.imagestorage.handler;
+
+import static com.nfitton.imagestorage.util.RouterUtil.parseAuthenticationToken;
+
+import com.nfitton.imagestorage.api.OutgoingDataV1;
+import com.nfitton.imagestorage.exception.ForbiddenException;
+import com.nfitton.imagestorage.mapper.KeyRotationMapper;
+import com.nfitton.imagestorage.service.AuthenticationService;
+import com.nfitton.imagestorage.service.KeyRotationService;
+import com.nfitton.imagestorage.service.UserService;
+import com.nfitton.imagestorage.util.RouterUtil;
+import java.util.UUID;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+import org.springframework.web.reactive.function.server.ServerRequest;
+import org.springframework.web.reactive.function.server.ServerResponse;
+import reactor.core.publisher.Mono;
+
+@Component
+public class AdminHandlerV1 {
+
+  private final AuthenticationService authenticationService;
+  private final UserService userService;
+  private final KeyRotationService keyRotationService;
+
+  @Autowired
+  public AdminHandlerV1(
+      AuthenticationService authenticationService,
+      UserService userService,
+      KeyRotationService keyRotationService) {
+    this.authenticationService = authenticationService;
+    this.userService = userService;
+    this.keyRotationService = keyRotationService;
+  }
+
+  /**
+   * Starts rotating the storage key pair in the background, or resumes an interrupted rotation.
+   *
+   * @param request the {@link ServerRequest} containing the admin credentials
+   * @return HttpStatus.ACCEPTED with the progress of the rotation
+   */
+  public Mono<ServerResponse> rotateKeys(ServerRequest request) {
+    return requireAdmin(request)
+        .then(keyRotationService.rotateKeys())
+        .map(KeyRotationMapper::toV1)
+        .map(OutgoingDataV1::dataOnly)
+        .flatMap(data -> ServerResponse.accepted().syncBody(data))
+        .onErrorResume(RouterUtil::handleErrors);
+  }
+
+  /**
+   * Returns the progress of the running or last key rotation.
+   *
+   * @param request the {@link ServerRequest} containing the admin credentials
+   * @return HttpStatus.OK with the progress of the rotation
+   */
+  public Mono<ServerResponse> getKeyRotation(ServerRequest request) {
+    return requireAdmin(request)
+        .then(keyRotationService.getStatus())
+        .map(KeyRotationMapper::toV1)
+        .map(OutgoingDataV1::dataOnly)
+        .flatMap(data -> ServerResponse.ok().syncBody(data))
+        .onErrorResume(RouterUtil::handleErrors);
+  }
+
+  private Mono<UUID> requireAdmin(ServerRequest request) {
+    return parseAuthenticationToken(request, authenticationService)
+        .filterWhen(userService::idIsAdmin)
+        .switchIfEmpty(Mono.error(new ForbiddenException("Only admins can manage storage keys")));
+  }
+}
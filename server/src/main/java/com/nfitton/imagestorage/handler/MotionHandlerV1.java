@@ -4,11 +4,19 @@ import static com.nfitton.imagestorage.util.RouterUtil.parseAuthenticationToken;
 
 import com.nfitton.imagestorage.api.ImageMetadataV1;
 import com.nfitton.imagestorage.api.OutgoingDataV1;
-import com.nfitton.imagestorage.entity.ImageEntity;
+import com.nfitton.imagestorage.component.UploadLimiter;
+import com.nfitton.imagestorage.configuration.ApiConfiguration;
+import com.nfitton.imagestorage.configuration.CodecConfiguration;
+import com.nfitton.imagestorage.configuration.QueueConfiguration;
 import com.nfitton.imagestorage.exception.BadRequestException;
 import com.nfitton.imagestorage.exception.NotFoundException;
+import com.nfitton.imagestorage.exception.OversizeException;
 import com.nfitton.imagestorage.mapper.ImageMetadataMapper;
+import com.nfitton.imagestorage.mapper.TallyPointMapper;
 import com.nfitton.imagestorage.model.AnalysisQueueMessage;
+import com.nfitton.imagestorage.model.ImageData;
+import com.nfitton.imagestorage.model.MotionCursor;
+import com.nfitton.imagestorage.model.TimeFrame;
 import com.nfitton.imagestorage.service.AuthenticationService;
 import com.nfitton.imagestorage.service.CameraService;
 import com.nfitton.imagestorage.service.FileMetadataService;
@@ -21,26 +29,38 @@ import java.util.Arrays;
 import java.util.Collections;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Optional;
 import java.util.UUID;
+import java.util.stream.Collectors;
 import java.util.stream.Stream;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpRange;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.MediaType;
+import org.springframework.http.codec.ServerSentEvent;
 import org.springframework.http.codec.multipart.FilePart;
 import org.springframework.jms.core.JmsTemplate;
 import org.springframework.stereotype.Component;
 import org.springframework.web.reactive.function.BodyExtractors;
+import org.springframework.web.reactive.function.BodyInserters;
 import org.springframework.web.reactive.function.server.ServerRequest;
 import org.springframework.web.reactive.function.server.ServerResponse;
 import reactor.core.publisher.Flux;
 import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Schedulers;
 
 @Component
 public class MotionHandlerV1 {
 
   private static final String MOTION_ID = "motionId";
+  private static final String LAST_EVENT_ID = "Last-Event-ID";
+  private static final List<MediaType> STREAM_TYPES = Arrays.asList(
+      CodecConfiguration.APPLICATION_NDJSON,
+      MediaType.APPLICATION_STREAM_JSON,
+      MediaType.TEXT_EVENT_STREAM);
   private static final Logger LOGGER = LoggerFactory.getLogger(MotionHandlerV1.class);
 
   private final AuthenticationService authenticationService;
@@ -49,6 +69,8 @@ public class MotionHandlerV1 {
   private final CameraService cameraService;
   private final UserService userService;
   private final JmsTemplate jmsTemplate;
+  private final UploadLimiter uploadLimiter;
+  private final ApiConfiguration apiConfiguration;
 
   @Autowired
   MotionHandlerV1(
@@ -57,13 +79,17 @@ public class MotionHandlerV1 {
       FileUploadService fileUploadService,
       CameraService cameraService,
       UserService userService,
-      JmsTemplate jmsTemplate) {
+      JmsTemplate jmsTemplate,
+      UploadLimiter uploadLimiter,
+      ApiConfiguration apiConfiguration) {
     this.authenticationService = authenticationService;
     this.fileMetadataService = fileMetadataService;
     this.fileUploadService = fileUploadService;
     this.cameraService = cameraService;
     this.userService = userService;
     this.jmsTemplate = jmsTemplate;
+    this.uploadLimiter = uploadLimiter;
+    this.apiConfiguration = apiConfiguration;
   }
 
   public Mono<ServerResponse> postMotion(ServerRequest request) {
@@ -84,7 +110,8 @@ public class MotionHandlerV1 {
    *
    * @param request the {@link ServerRequest} containing the image, motion id and camera
    *     credentials
-   * @return HttpStatus.ACCEPTED on success
+   * @return HttpStatus.ACCEPTED on success, or HttpStatus.TOO_MANY_REQUESTS if too many uploads
+   *     are in progress
    */
   public Mono<ServerResponse> patchMotionPicture(ServerRequest request) {
     UUID imageId = UUID.fromString(request.pathVariable(MOTION_ID));
@@ -92,26 +119,30 @@ public class MotionHandlerV1 {
         parseAuthenticationToken(request, authenticationService),
         fileMetadataService.findById(imageId))
         .flatMap(tuple -> {
-          if (!tuple.getT2().getCameraId().equals(tuple.getT1())) {
+          UUID cameraId = tuple.getT1();
+          if (!tuple.getT2().getCameraId().equals(cameraId)) {
             return Mono
                 .error(new BadRequestException("Image was not uploaded by metadata creator"));
           }
-          return Mono.zip(Mono.just(tuple.getT1()), request.body(BodyExtractors.toMultipartData()));
-        }).flatMap(tuple -> {
-          FilePart file = (FilePart) tuple.getT2().toSingleValueMap().get("file");
-          /*
-           * NOTE: Previously these two items were also zipped with the image uploaded function,
-           * however, when this occurred only the `uploadFile` function was execute
-           */
-          return Mono.zip(
-              cameraService.imageTaken(tuple.getT1()),
-              fileUploadService.uploadFile(file, imageId));
+          return uploadLimiter.admit(cameraId, () -> request
+              .body(BodyExtractors.toMultipartData())
+              .flatMap(parts -> {
+                FilePart file = (FilePart) parts.toSingleValueMap().get("file");
+                /*
+                 * NOTE: Previously these two items were also zipped with the image uploaded
+                 * function, however, when this occurred only the `uploadFile` function was execute
+                 */
+                return Mono.zip(
+                    cameraService.imageTaken(cameraId),
+                    fileUploadService.uploadFile(file, imageId, cameraId));
+              }));
         }).flatMap(tuple2 -> {
-          // LOGGER.debug("Sending to queue: {}", imageId);
-          // jmsTemplate
-          //     .convertAndSend("analysisQueue",
-          // new AnalysisQueueMessage(tuple2.getT2(), imageId));
-          return ServerResponse.accepted().build();
+          LOGGER.debug("Sending to queue: {}", imageId);
+          return Mono.fromRunnable(() -> jmsTemplate.convertAndSend(
+              QueueConfiguration.ANALYSIS_QUEUE,
+              new AnalysisQueueMessage(tuple2.getT2(), imageId)))
+              .subscribeOn(Schedulers.elastic())
+              .then(ServerResponse.accepted().build());
         })
         .onErrorResume(RouterUtil::handleErrors);
   }
@@ -119,12 +150,83 @@ public class MotionHandlerV1 {
   /**
    * Returns data related to the given cameras.
    *
+   * <p>Motion is returned a page at a time in order of entry time, with a cursor to pass back to
+   * fetch the next page. Requests accepting {@code application/x-ndjson},
+   * {@code application/stream+json} or {@code text/event-stream} are instead streamed all of the
+   * motion from the cursor onwards, each as soon as it is read.
+   *
    * @param request the {@link ServerRequest} containing the user credentials and cameraId
    * @return HttpStatus.OK with a list of {@link ImageMetadataV1}
    */
   public Mono<ServerResponse> getMotion(ServerRequest request) {
     List<String> tags = getQueryTags(request);
 
+    return parseAuthenticationToken(request, authenticationService)
+        .flatMap(userService::existsById)
+        .flatMap(exists -> {
+          if (!exists) {
+            return Mono.error(ExceptionUtil.badCredentials());
+          }
+          ZonedDateTime now = ZonedDateTime.now();
+          ZonedDateTime from = request.queryParam("from").map(ZonedDateTime::parse)
+              .orElse(now.minusDays(7));
+          ZonedDateTime to = request.queryParam("to").map(ZonedDateTime::parse).orElse(now);
+          List<UUID> cameraIds = getCamerasParam(request).collect(Collectors.toList());
+          MediaType streamType = getStreamType(request);
+          if (streamType != null) {
+            return streamMotion(
+                streamType, cameraIds, tags, from, to, getCursorParam(request, true));
+          }
+
+          return fileMetadataService
+              .findPageByCameraIds(cameraIds, tags, from, to, getCursorParam(request, false),
+                  getLimitParam(request))
+              .map(page -> {
+                List<ImageMetadataV1> data = page.getData().stream()
+                    .map(ImageMetadataMapper::toV1)
+                    .collect(Collectors.toList());
+                return OutgoingDataV1
+                    .page(data, page.getNext().map(MotionCursor::encode).orElse(null));
+              })
+              .flatMap(outgoingData -> ServerResponse.ok().syncBody(outgoingData));
+        })
+        .onErrorResume(RouterUtil::handleErrors);
+  }
+
+  private Mono<ServerResponse> streamMotion(
+      MediaType streamType,
+      List<UUID> cameraIds,
+      List<String> tags,
+      ZonedDateTime from,
+      ZonedDateTime to,
+      MotionCursor after) {
+    Flux<ImageData> motion = fileMetadataService
+        .findAllByCameraIds(cameraIds, tags, from, to, after);
+
+    if (MediaType.TEXT_EVENT_STREAM.equals(streamType)) {
+      // Each event id is a cursor, so a reconnecting client resumes after the last event it saw
+      Flux<ServerSentEvent<ImageMetadataV1>> events = motion
+          .map(data -> ServerSentEvent.builder(ImageMetadataMapper.toV1(data))
+              .id(MotionCursor.after(data).encode())
+              .build());
+      return ServerResponse.ok()
+          .contentType(MediaType.TEXT_EVENT_STREAM)
+          .body(BodyInserters.fromServerSentEvents(events));
+    }
+    return ServerResponse.ok()
+        .contentType(streamType)
+        .body(motion.map(ImageMetadataMapper::toV1), ImageMetadataV1.class);
+  }
+
+  /**
+   * Returns the number of motion of the given cameras in each time frame of a range, time frames
+   * without motion have a count of zero.
+   *
+   * @param request the {@link ServerRequest} containing the user credentials, cameras, range and
+   *     time frame
+   * @return HttpStatus.OK with a list of {@link com.nfitton.imagestorage.api.TallyPointV1}
+   */
+  public Mono<ServerResponse> getMotionTally(ServerRequest request) {
     return parseAuthenticationToken(request, authenticationService)
         .flatMap(userService::existsById)
         .flatMapMany(exists -> {
@@ -133,23 +235,20 @@ public class MotionHandlerV1 {
             ZonedDateTime from = request.queryParam("from").map(ZonedDateTime::parse)
                 .orElse(now.minusDays(7));
             ZonedDateTime to = request.queryParam("to").map(ZonedDateTime::parse).orElse(now);
-            return Flux.fromStream(getCamerasParam(request))
-                .flatMap(cameraId -> fileMetadataService.findAllByCameraId(cameraId, from, to));
+            TimeFrame measurement = getTimeFrameParam(request);
+            long points = measurement.countBetween(from, to);
+            int maxPoints = apiConfiguration.getMaxPayload();
+            if (points > maxPoints) {
+              return Mono.error(new OversizeException(
+                  maxPoints, (int) Math.min(points, Integer.MAX_VALUE)));
+            }
+            List<UUID> cameraIds = getCamerasParam(request).collect(Collectors.toList());
+            return fileMetadataService.countAllExistedAt(cameraIds, from, to, measurement);
           } else {
             return Mono.error(ExceptionUtil.badCredentials());
           }
         })
-        .filter(imageData -> {
-          if (tags.size() > 0) {
-            return imageData
-                .getEntities()
-                .stream()
-                .map(ImageEntity::getType)
-                .anyMatch(tags::contains);
-          }
-          return true;
-        })
-        .map(ImageMetadataMapper::toV1)
+        .map(TallyPointMapper::toV1)
         .collectList()
         .map(OutgoingDataV1::dataOnly)
         .flatMap(outgoingData -> ServerResponse.ok().syncBody(outgoingData))
@@ -179,34 +278,67 @@ public class MotionHandlerV1 {
   }
 
   /**
-   * Returns the image related to the given motionId.
+   * Returns the image related to the given motionId, supporting single byte range requests.
    *
    * @param request the {@link ServerRequest} containing the motionId and user credentials
-   * @return HttpStatus.OK with an image
+   * @return HttpStatus.OK with an image, or HttpStatus.PARTIAL_CONTENT with the requested range
    */
   public Mono<ServerResponse> getMotionImageById(ServerRequest request) {
-    Mono<UUID> motionId = Mono.just(RouterUtil.getUuidParameter(request, MOTION_ID));
-
-    Flux<byte[]> image = parseAuthenticationToken(request, authenticationService)
-        .flatMap(userService::existsById).zipWith(motionId)
-        .flatMap(tuple2 -> {
-          if (tuple2.getT1()) {
-            return fileMetadataService.findById(tuple2.getT2())
-                .zipWith(Mono.just(tuple2.getT2()));
+    return parseAuthenticationToken(request, authenticationService)
+        .flatMap(userService::existsById)
+        .flatMap(exists -> {
+          if (exists) {
+            UUID motionId = RouterUtil.getUuidParameter(request, MOTION_ID);
+            return fileMetadataService.findById(motionId);
           } else {
             return Mono.error(ExceptionUtil.badCredentials());
           }
         })
-        .flatMapMany(tuple2 -> {
-          if (tuple2.getT1().fileExists()) {
-            return fileUploadService.downloadFile(tuple2.getT2());
+        .flatMap(metadata -> {
+          if (!metadata.fileExists()) {
+            return Mono.error(new NotFoundException("Motion does not have allocated image"));
           }
-          throw new NotFoundException("Motion does not have allocated image");
-        });
-    return ServerResponse.ok().contentType(MediaType.IMAGE_JPEG).body(image, byte[].class)
+          UUID imageId = metadata.getId();
+          return fileUploadService.getFileLength(imageId)
+              .flatMap(length -> getImageResponse(request, imageId, length))
+              .switchIfEmpty(Mono.defer(() -> ServerResponse.ok()
+                  .contentType(MediaType.IMAGE_JPEG)
+                  .body(BodyInserters.fromDataBuffers(fileUploadService.downloadFile(imageId)))));
+        })
         .onErrorResume(RouterUtil::handleErrors);
   }
 
+  private Mono<ServerResponse> getImageResponse(ServerRequest request, UUID imageId, long length) {
+    List<HttpRange> ranges;
+    try {
+      ranges = request.headers().range();
+    } catch (IllegalArgumentException e) {
+      LOGGER.debug("Ignoring malformed range header", e);
+      ranges = Collections.emptyList();
+    }
+    if (ranges.size() != 1) {
+      return ServerResponse.ok()
+          .contentType(MediaType.IMAGE_JPEG)
+          .contentLength(length)
+          .header(HttpHeaders.ACCEPT_RANGES, "bytes")
+          .body(BodyInserters.fromDataBuffers(fileUploadService.downloadFile(imageId)));
+    }
+
+    long start = ranges.get(0).getRangeStart(length);
+    long end = ranges.get(0).getRangeEnd(length);
+    if (start >= length || start > end) {
+      return ServerResponse.status(HttpStatus.REQUESTED_RANGE_NOT_SATISFIABLE)
+          .header(HttpHeaders.CONTENT_RANGE, "bytes */" + length)
+          .build();
+    }
+    return ServerResponse.status(HttpStatus.PARTIAL_CONTENT)
+        .contentType(MediaType.IMAGE_JPEG)
+        .contentLength(end - start + 1)
+        .header(HttpHeaders.ACCEPT_RANGES, "bytes")
+        .header(HttpHeaders.CONTENT_RANGE, String.format("bytes %d-%d/%d", start, end, length))
+        .body(BodyInserters.fromDataBuffers(fileUploadService.downloadFile(imageId, start, end)));
+  }
+
   private static Stream<UUID> getCamerasParam(ServerRequest request) {
     return request.queryParam("cameras")
         .map(param -> Arrays.asList(param.split(",")))
@@ -215,6 +347,48 @@ public class MotionHandlerV1 {
         .map(UUID::fromString);
   }
 
+  private static MediaType getStreamType(ServerRequest request) {
+    for (MediaType accepted : request.headers().accept()) {
+      for (MediaType streamType : STREAM_TYPES) {
+        if (streamType.includes(accepted)) {
+          return streamType;
+        }
+      }
+    }
+    return null;
+  }
+
+  private static MotionCursor getCursorParam(ServerRequest request, boolean streaming) {
+    Optional<String> cursor = request.queryParam("cursor");
+    if (!cursor.isPresent() && streaming) {
+      cursor = request.headers().header(LAST_EVENT_ID).stream().findFirst();
+    }
+    return cursor.map(MotionCursor::decode).orElse(null);
+  }
+
+  private int getLimitParam(ServerRequest request) {
+    int maxPayload = apiConfiguration.getMaxPayload();
+    int limit;
+    try {
+      limit = request.queryParam("limit").map(Integer::parseInt).orElse(maxPayload);
+    } catch (NumberFormatException e) {
+      throw new BadRequestException("Limit must be a number");
+    }
+    if (limit < 1) {
+      throw new BadRequestException("Limit must be at least 1");
+    }
+    return Math.min(limit, maxPayload);
+  }
+
+  private static TimeFrame getTimeFrameParam(ServerRequest request) {
+    String frame = request.queryParam("frame").orElse(TimeFrame.HOUR.name());
+    try {
+      return TimeFrame.valueOf(frame.toUpperCase());
+    } catch (IllegalArgumentException e) {
+      throw new BadRequestException(String.format("Unknown time frame %s", frame));
+    }
+  }
+
   private static List<String> getQueryTags(ServerRequest request) {
     return request
         .queryParam("tags")
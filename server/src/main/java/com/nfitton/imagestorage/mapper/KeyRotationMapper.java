@@ -0,0 +1,23 @@
+package com.nfitton.imagestorage.mapper;
+
+import com.nfitton.imagestorage.api.KeyRotationV1;
+import com.nfitton.imagestorage.model.KeyRotationStatus;
+
+public class KeyRotationMapper {
+
+  /**
+   * Converts the progress of a key rotation to its API representation.
+   *
+   * @param status the progress of the rotation
+   * @return the {@link KeyRotationV1} to return
+   */
+  public static KeyRotationV1 toV1(KeyRotationStatus status) {
+    return new KeyRotationV1(
+        status.getState().name(),
+        status.getBucketsCompleted(),
+        status.getBucketsTotal(),
+        status.getFilesRotated(),
+        status.getFilesSkipped(),
+        status.getFilesFailed());
+  }
+}
@@ -0,0 +1,11 @@
+package com.nfitton.imagestorage.mapper;
+
+import com.nfitton.imagestorage.api.TallyPointV1;
+import com.nfitton.imagestorage.model.TallyPoint;
+
+public class TallyPointMapper {
+
+  public static TallyPointV1 toV1(TallyPoint point) {
+    return new TallyPointV1(point.getTime(), point.getCount());
+  }
+}
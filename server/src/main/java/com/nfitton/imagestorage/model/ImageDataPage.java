@@ -0,0 +1,23 @@
+package com.nfitton.imagestorage.model;
+
+import java.util.List;
+import java.util.Optional;
+
+public class ImageDataPage {
+
+  private final List<ImageData> data;
+  private final MotionCursor next;
+
+  public ImageDataPage(List<ImageData> data, MotionCursor next) {
+    this.data = data;
+    this.next = next;
+  }
+
+  public List<ImageData> getData() {
+    return data;
+  }
+
+  public Optional<MotionCursor> getNext() {
+    return Optional.ofNullable(next);
+  }
+}
@@ -0,0 +1,68 @@
+package com.nfitton.imagestorage.model;
+
+public class KeyRotationStatus {
+
+  private final State state;
+  private final int bucketsCompleted;
+  private final int bucketsTotal;
+  private final long filesRotated;
+  private final long filesSkipped;
+  private final long filesFailed;
+
+  /**
+   * Creates a snapshot of the progress of a key rotation.
+   *
+   * @param state the state of the rotation
+   * @param bucketsCompleted the number of buckets of files that have been checkpointed
+   * @param bucketsTotal the number of buckets of files to rotate
+   * @param filesRotated the number of files re-wrapped with the new key pair
+   * @param filesSkipped the number of files that had nothing to re-wrap
+   * @param filesFailed the number of files that could not be re-wrapped
+   */
+  public KeyRotationStatus(
+      State state,
+      int bucketsCompleted,
+      int bucketsTotal,
+      long filesRotated,
+      long filesSkipped,
+      long filesFailed) {
+    this.state = state;
+    this.bucketsCompleted = bucketsCompleted;
+    this.bucketsTotal = bucketsTotal;
+    this.filesRotated = filesRotated;
+    this.filesSkipped = filesSkipped;
+    this.filesFailed = filesFailed;
+  }
+
+  public static KeyRotationStatus idle() {
+    return new KeyRotationStatus(State.IDLE, 0, 0, 0, 0, 0);
+  }
+
+  public State getState() {
+    return state;
+  }
+
+  public int getBucketsCompleted() {
+    return bucketsCompleted;
+  }
+
+  public int getBucketsTotal() {
+    return bucketsTotal;
+  }
+
+  public long getFilesRotated() {
+    return filesRotated;
+  }
+
+  public long getFilesSkipped() {
+    return filesSkipped;
+  }
+
+  public long getFilesFailed() {
+    return filesFailed;
+  }
+
+  public enum State {
+    IDLE, RUNNING, COMPLETED, FAILED
+  }
+}
@@ -0,0 +1,64 @@
+package com.nfitton.imagestorage.model;
+
+import com.nfitton.imagestorage.exception.BadRequestException;
+import java.nio.charset.StandardCharsets;
+import java.time.DateTimeException;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.ZonedDateTime;
+import java.util.Base64;
+import java.util.UUID;
+
+/**
+ * Position in a listing of motion ordered by entry time and then id, handed to clients as an
+ * opaque string to fetch the page after it.
+ */
+public class MotionCursor {
+
+  private static final String SEPARATOR = "|";
+
+  private final ZonedDateTime entryTime;
+  private final UUID id;
+
+  public MotionCursor(ZonedDateTime entryTime, UUID id) {
+    this.entryTime = entryTime;
+    this.id = id;
+  }
+
+  public static MotionCursor after(ImageData data) {
+    return new MotionCursor(data.getEntryTime(), data.getId());
+  }
+
+  /**
+   * Reads a cursor previously returned to a client.
+   *
+   * @param cursor the encoded cursor
+   * @return the position the cursor refers to
+   * @throws BadRequestException if the cursor is malformed
+   */
+  public static MotionCursor decode(String cursor) {
+    try {
+      String decoded = new String(Base64.getUrlDecoder().decode(cursor), StandardCharsets.UTF_8);
+      int separator = decoded.indexOf(SEPARATOR);
+      Instant entryTime = Instant.parse(decoded.substring(0, separator));
+      UUID id = UUID.fromString(decoded.substring(separator + 1));
+      return new MotionCursor(entryTime.atZone(ZoneId.systemDefault()), id);
+    } catch (IllegalArgumentException | IndexOutOfBoundsException | DateTimeException e) {
+      throw new BadRequestException("Malformed cursor");
+    }
+  }
+
+  public String encode() {
+    String cursor = entryTime.toInstant() + SEPARATOR + id;
+    return Base64.getUrlEncoder().withoutPadding()
+        .encodeToString(cursor.getBytes(StandardCharsets.UTF_8));
+  }
+
+  public ZonedDateTime getEntryTime() {
+    return entryTime;
+  }
+
+  public UUID getId() {
+    return id;
+  }
+}
@@ -1,5 +1,43 @@
 package com.nfitton.imagestorage.model;
 
+import java.time.ZonedDateTime;
+import java.time.temporal.ChronoUnit;
+
 public enum TimeFrame {
-  MINUTE, HOUR, DAY, WEEK, MONTH, YEAR
+  MINUTE(ChronoUnit.MINUTES),
+  HOUR(ChronoUnit.HOURS),
+  DAY(ChronoUnit.DAYS),
+  WEEK(ChronoUnit.WEEKS),
+  MONTH(ChronoUnit.MONTHS),
+  YEAR(ChronoUnit.YEARS);
+
+  private final ChronoUnit unit;
+
+  TimeFrame(ChronoUnit unit) {
+    this.unit = unit;
+  }
+
+  public ChronoUnit getUnit() {
+    return unit;
+  }
+
+  public ZonedDateTime advance(ZonedDateTime time) {
+    return time.plus(1, unit);
+  }
+
+  /**
+   * Counts the time frames starting from the start time and before the end time, including a
+   * final partial one.
+   *
+   * @param start the start of the first time frame
+   * @param end the time the last time frame starts before
+   * @return the number of time frames in the range
+   */
+  public long countBetween(ZonedDateTime start, ZonedDateTime end) {
+    if (!start.isBefore(end)) {
+      return 0;
+    }
+    long whole = unit.between(start, end);
+    return start.plus(whole, unit).isBefore(end) ? whole + 1 : whole;
+  }
 }
@@ -1,6 +1,7 @@
 package com.nfitton.imagestorage.repository;
 
 import com.nfitton.imagestorage.entity.ImageEntity;
+import java.util.Collection;
 import java.util.List;
 import java.util.UUID;
 import org.springframework.data.jpa.repository.JpaRepository;
@@ -10,4 +11,6 @@ import org.springframework.stereotype.Repository;
 public interface FileEntityRepository extends JpaRepository<ImageEntity, UUID> {
 
   List<ImageEntity> findAllByMetadataId(UUID id);
+
+  List<ImageEntity> findAllByMetadataIdIn(Collection<UUID> ids);
 }
@@ -5,7 +5,11 @@ import java.time.ZonedDateTime;
 import java.util.List;
 import java.util.Optional;
 import java.util.UUID;
+import org.springframework.data.domain.Pageable;
 import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
 import org.springframework.stereotype.Repository;
 
 @Repository
@@ -13,12 +17,48 @@ public interface FileMetadataRepository extends JpaRepository<ImageMetadata, UUI
 
   Optional<ImageMetadata> findById(UUID id);
 
+  /**
+   * Marks the metadata's file as uploaded without loading it first.
+   *
+   * @param id the id of the metadata to update
+   * @param updatedAt the time the file was uploaded
+   * @return the number of rows updated, zero if no metadata has the id
+   */
+  @Modifying(clearAutomatically = true)
+  @Query("UPDATE ImageMetadata m SET m.fileExists = true, m.lastModifiedDate = :updatedAt"
+      + " WHERE m.id = :id")
+  int markFileExists(@Param("id") UUID id, @Param("updatedAt") ZonedDateTime updatedAt);
+
   List<ImageMetadata> findAllByEntryTimeAfterAndExitTimeBefore(
       ZonedDateTime timeAfterEntry, ZonedDateTime timeBeforeExit);
 
-  long countAllByEntryTimeAfterAndExitTimeBefore(
-      ZonedDateTime timeAfterEntry, ZonedDateTime timeBeforeExit);
+  @Query("SELECT m FROM ImageMetadata m"
+      + " WHERE m.cameraId IN :cameraIds"
+      + " AND m.entryTime > :timeAfterEntry AND m.exitTime < :timeBeforeExit"
+      + " AND (m.entryTime > :afterEntryTime"
+      + " OR (m.entryTime = :afterEntryTime AND m.id > :afterId))"
+      + " ORDER BY m.entryTime, m.id")
+  List<ImageMetadata> findPageByCameraIds(
+      @Param("cameraIds") List<UUID> cameraIds,
+      @Param("timeAfterEntry") ZonedDateTime timeAfterEntry,
+      @Param("timeBeforeExit") ZonedDateTime timeBeforeExit,
+      @Param("afterEntryTime") ZonedDateTime afterEntryTime,
+      @Param("afterId") UUID afterId,
+      Pageable pageable);
 
-  List<ImageMetadata> findAllByCameraIdAndEntryTimeAfterAndExitTimeBefore(
-      UUID cameraId, ZonedDateTime timeAfterEntry, ZonedDateTime timeBeforeExit);
+  @Query("SELECT m FROM ImageMetadata m"
+      + " WHERE m.cameraId IN :cameraIds"
+      + " AND m.entryTime > :timeAfterEntry AND m.exitTime < :timeBeforeExit"
+      + " AND (m.entryTime > :afterEntryTime"
+      + " OR (m.entryTime = :afterEntryTime AND m.id > :afterId))"
+      + " AND EXISTS (SELECT e.id FROM ImageEntity e WHERE e.metadataId = m.id AND e.type IN :tags)"
+      + " ORDER BY m.entryTime, m.id")
+  List<ImageMetadata> findPageByCameraIdsAndTags(
+      @Param("cameraIds") List<UUID> cameraIds,
+      @Param("tags") List<String> tags,
+      @Param("timeAfterEntry") ZonedDateTime timeAfterEntry,
+      @Param("timeBeforeExit") ZonedDateTime timeBeforeExit,
+      @Param("afterEntryTime") ZonedDateTime afterEntryTime,
+      @Param("afterId") UUID afterId,
+      Pageable pageable);
 }
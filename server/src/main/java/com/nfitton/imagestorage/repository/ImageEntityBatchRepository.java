@@ -0,0 +1,159 @@
+package com.nfitton.imagestorage.repository;
+
+import com.nfitton.imagestorage.entity.ImageEntity;
+import java.io.IOException;
+import java.io.StringReader;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.time.ZoneId;
+import java.time.ZonedDateTime;
+import java.time.temporal.ChronoUnit;
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
+import java.util.stream.Collectors;
+import org.postgresql.PGConnection;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.jdbc.core.ConnectionCallback;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Repository;
+
+/**
+ * Inserts entities in bulk, which the JPA repository can only do one statement at a time.
+ *
+ * <p>Ids are generated here rather than by the database so rows can be sent without reading
+ * anything back. On Postgres the rows are streamed with {@code COPY}, elsewhere they are sent as
+ * JDBC batches. Both join the surrounding transaction.
+ */
+@Repository
+public class ImageEntityBatchRepository {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(ImageEntityBatchRepository.class);
+  private static final int BATCH_SIZE = 500;
+  private static final String COLUMNS =
+      "id, metadata_id, x, y, width, height, type, created_date, last_modified_date";
+  private static final String INSERT = "INSERT INTO image_entity (" + COLUMNS + ")"
+      + " VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?)";
+  private static final String COPY = "COPY image_entity (" + COLUMNS + ")"
+      + " FROM STDIN WITH (FORMAT csv)";
+  private static final String DELETE = "DELETE FROM image_entity WHERE metadata_id = ?";
+
+  private final JdbcTemplate jdbcTemplate;
+  private volatile Boolean postgres;
+
+  @Autowired
+  public ImageEntityBatchRepository(JdbcTemplate jdbcTemplate) {
+    this.jdbcTemplate = jdbcTemplate;
+  }
+
+  /**
+   * Inserts the entities, giving an id and creation time to any without one.
+   *
+   * @param entities the entities to insert
+   * @return the entities as they were inserted
+   */
+  public List<ImageEntity> insertAll(List<ImageEntity> entities) {
+    if (entities.isEmpty()) {
+      return Collections.emptyList();
+    }
+    ZonedDateTime now = ZonedDateTime.now();
+    List<ImageEntity> inserted = entities.stream()
+        .map(entity -> ImageEntity.Builder.clone(entity)
+            .withId(entity.getId() == null ? UUID.randomUUID() : entity.getId())
+            .withCreatedDate(entity.getCreatedDate() == null ? now : entity.getCreatedDate())
+            .withLastModifiedDate(now)
+            .build())
+        .collect(Collectors.toList());
+
+    if (isPostgres()) {
+      copy(inserted);
+    } else {
+      jdbcTemplate.batchUpdate(INSERT, inserted, BATCH_SIZE, (statement, entity) -> {
+        statement.setObject(1, entity.getId());
+        statement.setObject(2, entity.getMetadataId());
+        statement.setInt(3, entity.getX());
+        statement.setInt(4, entity.getY());
+        statement.setInt(5, entity.getWidth());
+        statement.setInt(6, entity.getHeight());
+        statement.setString(7, entity.getType());
+        statement.setTimestamp(8, toTimestamp(entity.getCreatedDate()));
+        statement.setTimestamp(9, toTimestamp(entity.getLastModifiedDate()));
+      });
+    }
+    LOGGER.debug("Inserted {} entities", inserted.size());
+    return inserted;
+  }
+
+  /**
+   * Deletes the entities of an image, so they can be replaced by those of a later analysis.
+   *
+   * @param metadataId the id of the image the entities were found in
+   * @return the number of entities deleted
+   */
+  public int deleteAllByMetadataId(UUID metadataId) {
+    return jdbcTemplate.update(DELETE, metadataId);
+  }
+
+  private void copy(List<ImageEntity> entities) {
+    StringBuilder rows = new StringBuilder(entities.size() * 160);
+    for (ImageEntity entity : entities) {
+      rows.append(entity.getId()).append(',')
+          .append(nullable(entity.getMetadataId())).append(',')
+          .append(entity.getX()).append(',')
+          .append(entity.getY()).append(',')
+          .append(entity.getWidth()).append(',')
+          .append(entity.getHeight()).append(',')
+          .append(quote(entity.getType())).append(',')
+          .append(toCopyTime(entity.getCreatedDate())).append(',')
+          .append(toCopyTime(entity.getLastModifiedDate())).append('\n');
+    }
+    jdbcTemplate.execute((ConnectionCallback<Long>) connection -> {
+      try {
+        return connection.unwrap(PGConnection.class).getCopyAPI()
+            .copyIn(COPY, new StringReader(rows.toString()));
+      } catch (IOException e) {
+        throw new SQLException("Failed to copy entities", e);
+      }
+    });
+  }
+
+  private boolean isPostgres() {
+    if (postgres == null) {
+      String product = jdbcTemplate.execute(
+          (ConnectionCallback<String>) connection -> connection.getMetaData()
+              .getDatabaseProductName());
+      postgres = "PostgreSQL".equals(product);
+      LOGGER.debug("Inserting entities into {} with {}", product, postgres ? "COPY" : "batches");
+    }
+    return postgres;
+  }
+
+  private static Timestamp toTimestamp(ZonedDateTime time) {
+    return time == null ? null : Timestamp.from(time.toInstant());
+  }
+
+  /**
+   * Formats a time as the local time of the system zone, which timestamps are stored in.
+   */
+  private static String toCopyTime(ZonedDateTime time) {
+    return time == null
+        ? ""
+        : time.withZoneSameInstant(ZoneId.systemDefault())
+            .toLocalDateTime()
+            .truncatedTo(ChronoUnit.MICROS)
+            .toString();
+  }
+
+  private static String nullable(Object value) {
+    return value == null ? "" : value.toString();
+  }
+
+  /**
+   * Quotes a CSV value so commas and quotes within it survive, an unquoted empty value is null.
+   */
+  private static String quote(String value) {
+    return value == null ? "" : '"' + value.replace("\"", "\"\"") + '"';
+  }
+}
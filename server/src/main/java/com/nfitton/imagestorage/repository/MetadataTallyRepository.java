@@ -0,0 +1,74 @@
+package com.nfitton.imagestorage.repository;
+
+import java.sql.Timestamp;
+import java.time.ZonedDateTime;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.jdbc.core.ConnectionCallback;
+import org.springframework.jdbc.core.RowCallbackHandler;
+import org.springframework.jdbc.core.namedparam.MapSqlParameterSource;
+import org.springframework.jdbc.core.namedparam.NamedParameterJdbcTemplate;
+import org.springframework.stereotype.Repository;
+
+/**
+ * Counts motion into time buckets with a single grouped query, which JPA cannot express portably.
+ */
+@Repository
+public class MetadataTallyRepository {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(MetadataTallyRepository.class);
+  private static final String H2_BUCKET = "DATEDIFF('SECOND', :start, entry_time) / :width";
+  private static final String POSTGRES_BUCKET =
+      "FLOOR(EXTRACT(EPOCH FROM (entry_time - CAST(:start AS TIMESTAMP))) / :width)";
+
+  private final NamedParameterJdbcTemplate jdbcTemplate;
+  private volatile String bucketExpression;
+
+  @Autowired
+  public MetadataTallyRepository(NamedParameterJdbcTemplate jdbcTemplate) {
+    this.jdbcTemplate = jdbcTemplate;
+  }
+
+  /**
+   * Counts the motion of the cameras entering within each fixed width bucket from the start.
+   *
+   * @param cameraIds the cameras to count motion for, must not be empty
+   * @param start the start of the first bucket
+   * @param end the time to count motion entering before
+   * @param bucketSeconds the width of each bucket
+   * @return the number of motion by bucket index, omitting empty buckets
+   */
+  public Map<Long, Long> countByBucket(
+      Collection<UUID> cameraIds, ZonedDateTime start, ZonedDateTime end, long bucketSeconds) {
+    String sql = "SELECT " + getBucketExpression() + " AS bucket, COUNT(*) AS motion"
+        + " FROM image_metadata"
+        + " WHERE camera_id IN (:cameraIds) AND entry_time >= :start AND entry_time < :end"
+        + " GROUP BY bucket";
+    MapSqlParameterSource parameters = new MapSqlParameterSource()
+        .addValue("cameraIds", cameraIds)
+        .addValue("start", Timestamp.from(start.toInstant()))
+        .addValue("end", Timestamp.from(end.toInstant()))
+        .addValue("width", bucketSeconds);
+
+    Map<Long, Long> counts = new HashMap<>();
+    jdbcTemplate.query(sql, parameters, (RowCallbackHandler) row ->
+        counts.put(row.getLong("bucket"), row.getLong("motion")));
+    return counts;
+  }
+
+  private String getBucketExpression() {
+    if (bucketExpression == null) {
+      String product = jdbcTemplate.getJdbcTemplate().execute(
+          (ConnectionCallback<String>) connection -> connection.getMetaData()
+              .getDatabaseProductName());
+      LOGGER.debug("Tallying motion with {} bucket expression", product);
+      bucketExpression = "H2".equals(product) ? H2_BUCKET : POSTGRES_BUCKET;
+    }
+    return bucketExpression;
+  }
+}
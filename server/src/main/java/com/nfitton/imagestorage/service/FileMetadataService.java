@@ -2,6 +2,8 @@ package com.nfitton.imagestorage.service;
 
 import com.nfitton.imagestorage.entity.ImageEntity;
 import com.nfitton.imagestorage.model.ImageData;
+import com.nfitton.imagestorage.model.ImageDataPage;
+import com.nfitton.imagestorage.model.MotionCursor;
 import com.nfitton.imagestorage.model.TallyPoint;
 import com.nfitton.imagestorage.model.TimeFrame;
 import java.time.ZonedDateTime;
@@ -24,9 +26,46 @@ public interface FileMetadataService {
 
   Flux<ImageData> findAllExistedAt(ZonedDateTime from, ZonedDateTime to);
 
-  Flux<ImageData> findAllByCameraId(UUID cameraId, ZonedDateTime from, ZonedDateTime to);
+  /**
+   * Finds the motion of the given cameras within a time range as a single stream, ordered by
+   * entry time and then id, reading it a page at a time.
+   *
+   * @param cameraIds the cameras to find the motion of
+   * @param tags the entity types the motion must contain one of, or empty for all motion
+   * @param from the time the motion entered after
+   * @param to the time the motion exited before
+   * @param after the position to continue from, or null to start from the beginning
+   * @return the motion of all of the cameras in order
+   */
+  Flux<ImageData> findAllByCameraIds(
+      List<UUID> cameraIds,
+      List<String> tags,
+      ZonedDateTime from,
+      ZonedDateTime to,
+      MotionCursor after);
 
-  Flux<TallyPoint> countAllExistedAt(ZonedDateTime start, ZonedDateTime end, TimeFrame measurement);
+  /**
+   * Finds a page of the motion of the given cameras within a time range, ordered by entry time
+   * and then id.
+   *
+   * @param cameraIds the cameras to find the motion of
+   * @param tags the entity types the motion must contain one of, or empty for all motion
+   * @param from the time the motion entered after
+   * @param to the time the motion exited before
+   * @param after the position to continue from, or null for the first page
+   * @param limit the maximum amount of motion to return
+   * @return the page of motion, with a cursor to the next page if there is one
+   */
+  Mono<ImageDataPage> findPageByCameraIds(
+      List<UUID> cameraIds,
+      List<String> tags,
+      ZonedDateTime from,
+      ZonedDateTime to,
+      MotionCursor after,
+      int limit);
+
+  Flux<TallyPoint> countAllExistedAt(
+      List<UUID> cameraIds, ZonedDateTime start, ZonedDateTime end, TimeFrame measurement);
 
   Flux<ImageData> findAll();
 }
@@ -1,13 +1,40 @@
 package com.nfitton.imagestorage.service;
 
 import java.util.UUID;
+import org.springframework.core.io.buffer.DataBuffer;
 import org.springframework.http.codec.multipart.FilePart;
 import reactor.core.publisher.Flux;
 import reactor.core.publisher.Mono;
 
 public interface FileUploadService {
 
-  Mono<String> uploadFile(FilePart file, UUID imageId);
+  /**
+   * Encrypts and stores an image as it is received.
+   *
+   * @param file the image to store
+   * @param imageId the id of the image
+   * @param cameraId the camera that took the image, which may share its encryption key
+   * @return the location the image was stored at
+   */
+  Mono<String> uploadFile(FilePart file, UUID imageId, UUID cameraId);
 
-  Flux<byte[]> downloadFile(UUID imageId);
+  Flux<DataBuffer> downloadFile(UUID imageId);
+
+  /**
+   * Returns the given inclusive byte range of an image, decrypting only the parts needed.
+   *
+   * @param imageId the id of the image
+   * @param start the first byte to return
+   * @param end the last byte to return
+   * @return the requested bytes of the image
+   */
+  Flux<DataBuffer> downloadFile(UUID imageId, long start, long end);
+
+  /**
+   * Returns the length of an image if it is stored in a format that supports byte ranges.
+   *
+   * @param imageId the id of the image
+   * @return the length of the image, or empty if ranges are not supported for the image
+   */
+  Mono<Long> getFileLength(UUID imageId);
 }
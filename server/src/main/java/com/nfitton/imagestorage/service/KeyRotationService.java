@@ -0,0 +1,17 @@
+package com.nfitton.imagestorage.service;
+
+import com.nfitton.imagestorage.model.KeyRotationStatus;
+import reactor.core.publisher.Mono;
+
+public interface KeyRotationService {
+
+  /**
+   * Starts rotating the key pair image keys are wrapped with, resuming an interrupted rotation if
+   * there is one. Only the wrapped keys are rewritten, image contents are not re-encrypted.
+   *
+   * @return the progress of the rotation that was started or is already running
+   */
+  Mono<KeyRotationStatus> rotateKeys();
+
+  Mono<KeyRotationStatus> getStatus();
+}
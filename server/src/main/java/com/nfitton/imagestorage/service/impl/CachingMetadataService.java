@@ -0,0 +1,135 @@
+package com.nfitton.imagestorage.service.impl;
+
+import com.nfitton.imagestorage.configuration.QueueConfiguration;
+import com.nfitton.imagestorage.entity.ImageEntity;
+import com.nfitton.imagestorage.model.ImageData;
+import com.nfitton.imagestorage.model.ImageDataPage;
+import com.nfitton.imagestorage.model.MotionCursor;
+import com.nfitton.imagestorage.model.TallyPoint;
+import com.nfitton.imagestorage.model.TimeFrame;
+import com.nfitton.imagestorage.service.FileMetadataService;
+import com.nfitton.imagestorage.util.ExpiringLruCache;
+import java.time.ZonedDateTime;
+import java.util.List;
+import java.util.UUID;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.context.annotation.Primary;
+import org.springframework.jms.annotation.JmsListener;
+import org.springframework.stereotype.Service;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+/**
+ * Reads motion by id through a cache in front of the configured metadata store.
+ *
+ * <p>Writes go through to the store and the motion they return replaces the cached entry, a
+ * failed write removes it so the next read goes to the store. Listings and tallies are not
+ * cached.
+ *
+ * <p>Motion written by another process, such as the analysis worker, is removed when the update
+ * is published on the {@code motionUpdated} topic, so the API nodes do not serve it stale.
+ */
+@Service
+@Primary
+public class CachingMetadataService implements FileMetadataService {
+
+  private final FileMetadataService delegate;
+  private final ExpiringLruCache<UUID, ImageData> cache;
+
+  @Autowired
+  public CachingMetadataService(
+      @Qualifier("metadataStore") FileMetadataService delegate,
+      ExpiringLruCache<UUID, ImageData> motionCache) {
+    this.delegate = delegate;
+    this.cache = motionCache;
+  }
+
+  @Override
+  public Mono<ImageData> save(ImageData data) {
+    return writeThrough(data.getId(), delegate.save(data));
+  }
+
+  @Override
+  public Mono<ImageData> imageUploaded(UUID imageId, List<ImageEntity> entities) {
+    return writeThrough(imageId, delegate.imageUploaded(imageId, entities));
+  }
+
+  @Override
+  public Mono<Boolean> exists(UUID imageId) {
+    return Mono.defer(() -> Mono.justOrEmpty(cache.get(imageId)))
+        .map(data -> true)
+        .switchIfEmpty(Mono.defer(() -> delegate.exists(imageId)));
+  }
+
+  @Override
+  public Mono<ImageData> findById(UUID metadataId) {
+    return Mono.defer(() -> Mono.justOrEmpty(cache.get(metadataId)))
+        .switchIfEmpty(Mono.defer(() -> delegate.findById(metadataId))
+            .doOnNext(data -> cache.put(metadataId, data)));
+  }
+
+  @Override
+  public Flux<ImageData> findAllExistedAt(ZonedDateTime time) {
+    return delegate.findAllExistedAt(time);
+  }
+
+  @Override
+  public Flux<ImageData> findAllExistedAt(ZonedDateTime from, ZonedDateTime to) {
+    return delegate.findAllExistedAt(from, to);
+  }
+
+  @Override
+  public Flux<ImageData> findAllByCameraIds(
+      List<UUID> cameraIds,
+      List<String> tags,
+      ZonedDateTime from,
+      ZonedDateTime to,
+      MotionCursor after) {
+    return delegate.findAllByCameraIds(cameraIds, tags, from, to, after);
+  }
+
+  @Override
+  public Mono<ImageDataPage> findPageByCameraIds(
+      List<UUID> cameraIds,
+      List<String> tags,
+      ZonedDateTime from,
+      ZonedDateTime to,
+      MotionCursor after,
+      int limit) {
+    return delegate.findPageByCameraIds(cameraIds, tags, from, to, after, limit);
+  }
+
+  @Override
+  public Flux<TallyPoint> countAllExistedAt(
+      List<UUID> cameraIds, ZonedDateTime start, ZonedDateTime end, TimeFrame measurement) {
+    return delegate.countAllExistedAt(cameraIds, start, end, measurement);
+  }
+
+  @Override
+  public Flux<ImageData> findAll() {
+    return delegate.findAll();
+  }
+
+  /**
+   * Removes motion updated elsewhere from the cache, so the next read goes to the store.
+   *
+   * @param imageId the id of the updated motion
+   */
+  @JmsListener(
+      destination = QueueConfiguration.MOTION_UPDATED_TOPIC,
+      containerFactory = "topicFactory")
+  public void motionUpdated(UUID imageId) {
+    cache.invalidate(imageId);
+  }
+
+  private Mono<ImageData> writeThrough(UUID imageId, Mono<ImageData> write) {
+    return write
+        .doOnNext(data -> cache.put(data.getId(), data))
+        .doOnError(e -> {
+          if (imageId != null) {
+            cache.invalidate(imageId);
+          }
+        });
+  }
+}
@@ -0,0 +1,137 @@
+package com.nfitton.imagestorage.service.impl;
+
+import com.nfitton.imagestorage.exception.EncryptionException;
+import com.nfitton.imagestorage.exception.StartupException;
+import com.nfitton.imagestorage.util.SegmentedEncryptionUtil;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import javax.crypto.SecretKey;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Hands out a data key per camera per time window, storing each one wrapped with RSA on disk.
+ *
+ * <p>Images reference their data key by id, so the RSA wrap happens once per window rather than
+ * once per image.
+ */
+class DataKeyStore {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(DataKeyStore.class);
+
+  private final Path directory;
+  private final RsaKeyRing keyRing;
+  private final long intervalMillis;
+  private final Map<UUID, DataKey> activeKeys = new ConcurrentHashMap<>();
+
+  DataKeyStore(Path directory, RsaKeyRing keyRing, Duration interval) {
+    this.directory = directory;
+    this.keyRing = keyRing;
+    this.intervalMillis = interval.toMillis();
+    try {
+      Files.createDirectories(directory);
+    } catch (IOException e) {
+      throw new StartupException("Failed to create data key directory");
+    }
+  }
+
+  /**
+   * Returns the data key for the camera's current window, creating it if the window is new.
+   *
+   * <p>A new key is created and stored before it is installed, so no lock is held while it is
+   * wrapped and written. Of two threads creating a key for the same window one key is kept and
+   * the other is deleted, as no image has been encrypted with it. Windows are offset per camera,
+   * so cameras do not all roll over to new keys at the same moment.
+   *
+   * @param cameraId the camera an image is being stored for
+   * @return the data key to encrypt the image with
+   */
+  DataKey getActiveKey(UUID cameraId) {
+    long window = Math.floorDiv(
+        System.currentTimeMillis() + Math.floorMod(cameraId.hashCode(), intervalMillis),
+        intervalMillis);
+    DataKey active = activeKeys.get(cameraId);
+    if (active != null && active.window >= window) {
+      return active;
+    }
+    DataKey created = createKey(cameraId, window);
+    DataKey installed = activeKeys.compute(cameraId, (id, current) ->
+        current != null && current.window >= window ? current : created);
+    if (installed != created) {
+      deleteKey(created.id);
+    }
+    return installed;
+  }
+
+  SecretKey loadKey(UUID keyId) {
+    try {
+      return keyRing.unwrap(Files.readAllBytes(getKeyPath(keyId)));
+    } catch (IOException e) {
+      throw new EncryptionException("Failed to read data key " + keyId, e);
+    }
+  }
+
+  /**
+   * Generates a key and stores it wrapped with RSA. The key is synced to disk before it is moved
+   * into place, as images encrypted with it cannot be read without it.
+   */
+  private DataKey createKey(UUID cameraId, long window) {
+    SecretKey key = SegmentedEncryptionUtil.generateKey();
+    UUID keyId = UUID.randomUUID();
+    Path keyPath = getKeyPath(keyId);
+    Path tempPath = directory.resolve(keyId + ".tmp");
+    try {
+      Files.write(
+          tempPath,
+          SegmentedEncryptionUtil.wrapKey(keyRing.getPrivate(), key),
+          StandardOpenOption.CREATE,
+          StandardOpenOption.TRUNCATE_EXISTING,
+          StandardOpenOption.SYNC);
+      Files.move(tempPath, keyPath, StandardCopyOption.ATOMIC_MOVE);
+    } catch (IOException e) {
+      throw new EncryptionException("Failed to store data key " + keyId, e);
+    }
+    LOGGER.debug("Created data key={} for camera={}", keyId, cameraId);
+    return new DataKey(keyId, window, key);
+  }
+
+  private void deleteKey(UUID keyId) {
+    try {
+      Files.deleteIfExists(getKeyPath(keyId));
+    } catch (IOException e) {
+      LOGGER.warn("Failed to delete unused data key {}", keyId, e);
+    }
+  }
+
+  private Path getKeyPath(UUID keyId) {
+    return directory.resolve(keyId + ".key");
+  }
+
+  static final class DataKey {
+
+    private final UUID id;
+    private final long window;
+    private final SecretKey key;
+
+    private DataKey(UUID id, long window, SecretKey key) {
+      this.id = id;
+      this.window = window;
+      this.key = key;
+    }
+
+    UUID getId() {
+      return id;
+    }
+
+    SecretKey getKey() {
+      return key;
+    }
+  }
+}
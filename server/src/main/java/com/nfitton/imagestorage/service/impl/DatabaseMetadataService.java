@@ -5,56 +5,62 @@ import com.nfitton.imagestorage.entity.ImageEntity.Builder;
 import com.nfitton.imagestorage.entity.ImageMetadata;
 import com.nfitton.imagestorage.exception.NotFoundException;
 import com.nfitton.imagestorage.model.ImageData;
+import com.nfitton.imagestorage.model.ImageDataPage;
+import com.nfitton.imagestorage.model.MotionCursor;
 import com.nfitton.imagestorage.model.TallyPoint;
 import com.nfitton.imagestorage.model.TimeFrame;
 import com.nfitton.imagestorage.repository.FileEntityRepository;
 import com.nfitton.imagestorage.repository.FileMetadataRepository;
+import com.nfitton.imagestorage.repository.ImageEntityBatchRepository;
+import com.nfitton.imagestorage.repository.MetadataTallyRepository;
 import com.nfitton.imagestorage.service.FileMetadataService;
 import java.time.ZonedDateTime;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
 import java.util.Optional;
 import java.util.UUID;
 import java.util.stream.Collectors;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.context.annotation.Profile;
+import org.springframework.data.domain.PageRequest;
 import org.springframework.stereotype.Service;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
 import reactor.core.publisher.Flux;
 import reactor.core.publisher.Mono;
 
 @Service
+@Profile("!r2dbc")
+@Qualifier("metadataStore")
 public class DatabaseMetadataService implements FileMetadataService {
 
   private static final Logger LOGGER = LoggerFactory.getLogger(DatabaseMetadataService.class);
+  private static final int ENTITY_QUERY_CHUNK_SIZE = 500;
+  private static final UUID FIRST_ID = new UUID(0, 0);
   private final FileMetadataRepository metadataRepository;
   private final FileEntityRepository entityRepository;
+  private final ImageEntityBatchRepository entityBatchRepository;
+  private final MetadataTallyRepository tallyRepository;
+  private final TransactionTemplate transactionTemplate;
 
   @Autowired
   public DatabaseMetadataService(
       FileMetadataRepository metadataRepository,
-      FileEntityRepository entityRepository) {
+      FileEntityRepository entityRepository,
+      ImageEntityBatchRepository entityBatchRepository,
+      MetadataTallyRepository tallyRepository,
+      PlatformTransactionManager transactionManager) {
     this.metadataRepository = metadataRepository;
     this.entityRepository = entityRepository;
-  }
-
-  private static ZonedDateTime advance(ZonedDateTime time, TimeFrame measurement) {
-    switch (measurement) {
-      case MINUTE:
-        return time.plusMinutes(1);
-      case HOUR:
-        return time.plusHours(1);
-      case DAY:
-        return time.plusDays(1);
-      case WEEK:
-        return time.plusDays(7);
-      case MONTH:
-        return time.plusMonths(1);
-      case YEAR:
-        return time.plusYears(1);
-      default:
-        return time.plusHours(1);
-    }
+    this.entityBatchRepository = entityBatchRepository;
+    this.tallyRepository = tallyRepository;
+    this.transactionTemplate = new TransactionTemplate(transactionManager);
   }
 
   private static Throwable notFound(UUID metadataId) {
@@ -74,31 +80,31 @@ public class DatabaseMetadataService implements FileMetadataService {
     }
   }
 
+  /**
+   * Marks the image as uploaded and replaces its entities in one transaction, updating the
+   * metadata in place rather than loading and saving it, so no rows being updated means it does
+   * not exist. Any entities from an earlier analysis are deleted first, so an image analysed
+   * twice is not left with its entities twice.
+   */
   @Override
   public Mono<ImageData> imageUploaded(UUID imageId, List<ImageEntity> entities) {
     LOGGER.debug("Updating image {} with entities", imageId);
-    return Mono.fromCallable(() -> metadataRepository.existsById(imageId))
-        .flatMap(imageExists -> {
-          if (imageExists) {
-            List<ImageEntity> connectedEntities = entities.stream()
-                .map(entity -> Builder.clone(entity).withMetadataId(imageId).build())
-                .collect(Collectors.toList());
-
-            Mono<ImageMetadata> updatedMetadata = Mono
-                .fromCallable(() -> metadataRepository.findById(imageId))
-                .map(Optional::get)
-                .map(metadata -> ImageMetadata.Builder.clone(metadata)
-                    .withUpdatedAt(ZonedDateTime.now()).withFileExists(true).build())
-                .flatMap(metadata -> Mono.fromCallable(() -> metadataRepository.save(metadata)));
-
-            Mono<List<ImageEntity>> savedEntities = Mono
-                .fromCallable(() -> entityRepository.saveAll(connectedEntities));
-
-            return Mono.zip(updatedMetadata, savedEntities)
-                .map(tuple -> ImageData.Builder.clone(tuple.getT1(), tuple.getT2()).build());
+    List<ImageEntity> connectedEntities = entities.stream()
+        .map(entity -> Builder.clone(entity).withMetadataId(imageId).build())
+        .collect(Collectors.toList());
+
+    return Mono
+        .fromCallable(() -> transactionTemplate.execute(status -> {
+          if (metadataRepository.markFileExists(imageId, ZonedDateTime.now()) == 0) {
+            return null;
           }
-          return Mono.error(notFound(imageId));
-        });
+          entityBatchRepository.deleteAllByMetadataId(imageId);
+          List<ImageEntity> savedEntities = entityBatchRepository.insertAll(connectedEntities);
+          return metadataRepository.findById(imageId)
+              .map(metadata -> ImageData.Builder.clone(metadata, savedEntities).build())
+              .orElse(null);
+        }))
+        .switchIfEmpty(Mono.error(notFound(imageId)));
   }
 
   @Override
@@ -139,32 +145,91 @@ public class DatabaseMetadataService implements FileMetadataService {
   }
 
   @Override
-  public Flux<ImageData> findAllByCameraId(UUID cameraId, ZonedDateTime from, ZonedDateTime to) {
-    return Mono.fromCallable(() -> metadataRepository
-        .findAllByCameraIdAndEntryTimeAfterAndExitTimeBefore(cameraId, from, to))
-        .flatMapMany(this::findEntitiesByMetadata);
+  public Flux<ImageData> findAllByCameraIds(
+      List<UUID> cameraIds,
+      List<String> tags,
+      ZonedDateTime from,
+      ZonedDateTime to,
+      MotionCursor after) {
+    return findPageByCameraIds(cameraIds, tags, from, to, after, ENTITY_QUERY_CHUNK_SIZE)
+        .expand(page -> page.getNext()
+            .map(next -> findPageByCameraIds(
+                cameraIds, tags, from, to, next, ENTITY_QUERY_CHUNK_SIZE))
+            .orElse(Mono.empty()))
+        .concatMapIterable(ImageDataPage::getData);
+  }
+
+  @Override
+  public Mono<ImageDataPage> findPageByCameraIds(
+      List<UUID> cameraIds,
+      List<String> tags,
+      ZonedDateTime from,
+      ZonedDateTime to,
+      MotionCursor after,
+      int limit) {
+    if (cameraIds.isEmpty()) {
+      return Mono.just(new ImageDataPage(Collections.emptyList(), null));
+    }
+    // The first page starts from the range, which already excludes motion entering at that time
+    ZonedDateTime afterEntryTime = after == null ? from : after.getEntryTime();
+    UUID afterId = after == null ? FIRST_ID : after.getId();
+    PageRequest pageRequest = PageRequest.of(0, limit + 1);
+    return Mono
+        .fromCallable(() -> tags.isEmpty()
+            ? metadataRepository.findPageByCameraIds(
+                cameraIds, from, to, afterEntryTime, afterId, pageRequest)
+            : metadataRepository.findPageByCameraIdsAndTags(
+                cameraIds, tags, from, to, afterEntryTime, afterId, pageRequest))
+        .flatMap(metadata -> {
+          boolean hasNext = metadata.size() > limit;
+          List<ImageMetadata> page = hasNext ? metadata.subList(0, limit) : metadata;
+          return findEntitiesByMetadata(page)
+              .collectList()
+              .map(data -> new ImageDataPage(
+                  data, hasNext ? MotionCursor.after(data.get(data.size() - 1)) : null));
+        });
   }
 
+  /**
+   * Attaches the entities to each piece of metadata, fetching them with one query per
+   * 500 metadata rather than one query each.
+   */
   private Flux<ImageData> findEntitiesByMetadata(List<ImageMetadata> metadata) {
-    return Flux.fromIterable(metadata)
-        .flatMap(imageMetadata -> Mono
-            .fromCallable(() -> entityRepository.findAllByMetadataId(imageMetadata.getId()))
-            .map(entities -> ImageData.Builder.clone(imageMetadata, entities).build()));
+    return Mono.fromCallable(() -> findEntitiesByMetadataId(metadata))
+        .flatMapMany(entities -> Flux.fromIterable(metadata)
+            .map(imageMetadata -> ImageData.Builder.clone(
+                imageMetadata,
+                entities.getOrDefault(imageMetadata.getId(), new LinkedList<>())).build()));
+  }
+
+  private Map<UUID, List<ImageEntity>> findEntitiesByMetadataId(List<ImageMetadata> metadata) {
+    if (metadata.isEmpty()) {
+      return Collections.emptyMap();
+    }
+    List<UUID> ids = metadata.stream().map(ImageMetadata::getId).collect(Collectors.toList());
+    List<ImageEntity> entities = new ArrayList<>();
+    for (int from = 0; from < ids.size(); from += ENTITY_QUERY_CHUNK_SIZE) {
+      List<UUID> chunk = ids.subList(from, Math.min(from + ENTITY_QUERY_CHUNK_SIZE, ids.size()));
+      entities.addAll(entityRepository.findAllByMetadataIdIn(chunk));
+    }
+    LOGGER.debug("Found {} entities for {} metadata", entities.size(), metadata.size());
+    return entities.stream().collect(Collectors.groupingBy(ImageEntity::getMetadataId));
   }
 
   @Override
   public Flux<TallyPoint> countAllExistedAt(
+      List<UUID> cameraIds,
       ZonedDateTime start,
       ZonedDateTime end,
       TimeFrame measurement) {
-    List<TallyPoint> points = new LinkedList<>();
-    while (advance(start, measurement).isBefore(end)) {
-      ZonedDateTime tempEnd = advance(start, measurement);
-      long count = metadataRepository.countAllByEntryTimeAfterAndExitTimeBefore(start, tempEnd);
-      points.add(new TallyPoint(start, count));
-      start = advance(start, measurement);
-    }
-    return Flux.fromIterable(points);
+    return Mono.fromCallable(() -> {
+      MotionTally tally = new MotionTally(start, end, measurement);
+      if (!cameraIds.isEmpty() && !tally.isEmpty()) {
+        tallyRepository.countByBucket(cameraIds, start, end, tally.getBucketSeconds())
+            .forEach(tally::add);
+      }
+      return tally.getPoints();
+    }).flatMapIterable(points -> points);
   }
 
   @Override
@@ -1,57 +1,85 @@
 package com.nfitton.imagestorage.service.impl;
 
-import static com.nfitton.imagestorage.util.EncryptionUtil.loadRsaKeys;
+import static com.nfitton.imagestorage.util.SegmentedEncryptionUtil.MAX_HEADER_LENGTH;
+import static com.nfitton.imagestorage.util.SegmentedEncryptionUtil.WRAPPED_KEY_LENGTH;
 
+import com.nfitton.imagestorage.configuration.EncryptionConfiguration;
 import com.nfitton.imagestorage.configuration.PathConfiguration;
 import com.nfitton.imagestorage.exception.EncryptionException;
-import com.nfitton.imagestorage.exception.StartupException;
 import com.nfitton.imagestorage.service.FileUploadService;
+import com.nfitton.imagestorage.service.impl.DataKeyStore.DataKey;
 import com.nfitton.imagestorage.util.EncryptionUtil;
+import com.nfitton.imagestorage.util.ExpiringLruCache;
+import com.nfitton.imagestorage.util.SegmentedEncryptionUtil;
+import com.nfitton.imagestorage.util.SegmentedEncryptionUtil.Header;
 import java.io.Closeable;
-import java.io.File;
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.channels.AsynchronousFileChannel;
 import java.nio.channels.CompletionHandler;
+import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
 import java.nio.file.StandardOpenOption;
-import java.security.InvalidAlgorithmParameterException;
-import java.security.InvalidKeyException;
-import java.security.KeyPair;
-import java.security.NoSuchAlgorithmException;
-import java.util.Optional;
 import java.util.UUID;
 import java.util.concurrent.CompletableFuture;
-import javax.crypto.BadPaddingException;
-import javax.crypto.IllegalBlockSizeException;
-import javax.crypto.NoSuchPaddingException;
+import java.util.function.Function;
+import javax.crypto.SecretKey;
+import org.reactivestreams.Publisher;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Qualifier;
 import org.springframework.context.annotation.Profile;
+import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.core.io.buffer.DataBufferFactory;
+import org.springframework.core.io.buffer.DataBufferUtils;
+import org.springframework.core.io.buffer.DefaultDataBufferFactory;
 import org.springframework.http.codec.multipart.FilePart;
 import org.springframework.stereotype.Service;
 import reactor.core.publisher.Flux;
 import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Scheduler;
 
 @Service
 @Profile("local")
 public class LocalFileStorage implements FileUploadService {
 
   private static final Logger LOGGER = LoggerFactory.getLogger(LocalFileStorage.class);
+  private static final int BUFFER_SIZE = 8192;
+  private static final int PROCESSING_PREFETCH = 16;
+  private static final int LEGACY_HEADER_LENGTH = WRAPPED_KEY_LENGTH + EncryptionUtil.IV_LENGTH;
 
+  private final DataBufferFactory bufferFactory = new DefaultDataBufferFactory();
+  private final ExpiringLruCache<UUID, SecretKey> keyCache;
+  private final DataKeyStore dataKeys;
+  private final boolean keyHierarchyEnabled;
+  private final Scheduler processingScheduler;
   private String path;
-  private KeyPair rsaKeys;
+  private final RsaKeyRing keyRing;
 
-  public LocalFileStorage(PathConfiguration configuration) {
+  /**
+   * Creates the storage at the configured location.
+   *
+   * @param configuration the storage location configuration
+   * @param encryptionConfiguration how images should be encrypted
+   * @param keyRing the RSA key pairs image keys are wrapped with
+   * @param keyCache the cache to keep unwrapped image keys in
+   * @param processingScheduler the scheduler to encrypt and decrypt on, off the event loop
+   */
+  public LocalFileStorage(
+      PathConfiguration configuration,
+      EncryptionConfiguration encryptionConfiguration,
+      RsaKeyRing keyRing,
+      ExpiringLruCache<UUID, SecretKey> keyCache,
+      @Qualifier("processingScheduler") Scheduler processingScheduler) {
+    this.keyRing = keyRing;
+    this.keyCache = keyCache;
+    this.processingScheduler = processingScheduler;
+    this.keyHierarchyEnabled = encryptionConfiguration.isKeyHierarchyEnabled();
     path = configuration.getLocation();
-    rsaKeys = loadRsaKeys(path).orElseGet(() -> {
-      try {
-        return EncryptionUtil.generateRsaKeys(path);
-      } catch (NoSuchAlgorithmException e) {
-        throw new StartupException("Failed to create new RSA keys");
-      }
-    });
+    dataKeys = new DataKeyStore(
+        Paths.get(path, "keys"), keyRing, encryptionConfiguration.getDataKeyInterval());
   }
 
   private static void close(Closeable closeable) {
@@ -62,92 +90,258 @@ public class LocalFileStorage implements FileUploadService {
     }
   }
 
+  private static Mono<ByteBuffer> read(
+      AsynchronousFileChannel channel, long position, int length) {
+    return Mono.defer(() -> read(channel, position, ByteBuffer.allocate(length)));
+  }
+
+  /**
+   * Fills the given buffer from the start of the buffer up to its limit.
+   */
+  private static Mono<ByteBuffer> read(
+      AsynchronousFileChannel channel, long position, ByteBuffer buffer) {
+    LOGGER.trace("Reading chunk={} at position={}", buffer.remaining(), position);
+    CompletableFuture<ByteBuffer> future = new CompletableFuture<>();
+    channel.read(buffer, position, future, new ReadHandler(channel, buffer, position));
+    return Mono.fromCompletionStage(future);
+  }
+
   @Override
-  public Mono<String> uploadFile(FilePart file, UUID imageId) {
-    String imagePath = getTempFilePath(imageId) + ".jpg";
-    return file.transferTo(new File(imagePath))
+  public Mono<String> uploadFile(FilePart file, UUID imageId, UUID cameraId) {
+    Path encryptedPath = getEncryptedPath(imageId);
+    Flux<DataBuffer> content = file.content().publishOn(processingScheduler, PROCESSING_PREFETCH);
+    Flux<DataBuffer> encrypted;
+    if (keyHierarchyEnabled) {
+      encrypted = Flux.defer(() -> {
+        DataKey dataKey = dataKeys.getActiveKey(cameraId);
+        return SegmentedEncryptionUtil
+            .encrypt(dataKey.getKey(), dataKey.getId(), content, bufferFactory);
+      });
+    } else {
+      encrypted = SegmentedEncryptionUtil.encrypt(keyRing.getPrivate(), content, bufferFactory);
+    }
+    // Key generation and wrapping happen on subscription, the segments as content arrives
+    encrypted = encrypted.subscribeOn(processingScheduler);
+
+    // The image is written beside the original and moved over it once complete, so a failed or
+    // repeated upload never leaves a partial image in its place
+    Path tempPath = getTempPath(imageId);
+    return Flux.using(
+        () -> AsynchronousFileChannel.open(
+            tempPath,
+            StandardOpenOption.CREATE,
+            StandardOpenOption.WRITE,
+            StandardOpenOption.TRUNCATE_EXISTING),
+        channel -> DataBufferUtils.write(encrypted, channel, 0),
+        LocalFileStorage::close)
+        .doOnNext(DataBufferUtils::release)
         .then(Mono.fromCallable(() -> {
-          try {
-            EncryptionUtil.encryptWithRsaAes(
-                rsaKeys.getPrivate(), imagePath, getEncryptFilePath(imageId));
-          } catch (NoSuchAlgorithmException | IOException | NoSuchPaddingException
-              | InvalidKeyException | BadPaddingException | IllegalBlockSizeException
-              | InvalidAlgorithmParameterException e) {
-            throw new EncryptionException("Failed to encrypt file", e);
-          }
-          return imagePath;
-        }));
+          Files.move(
+              tempPath,
+              encryptedPath,
+              StandardCopyOption.REPLACE_EXISTING,
+              StandardCopyOption.ATOMIC_MOVE);
+          keyCache.invalidate(imageId);
+          return encryptedPath.toString();
+        }))
+        .doOnError(e -> delete(tempPath))
+        .doOnCancel(() -> delete(tempPath));
+  }
+
+  private static void delete(Path file) {
+    try {
+      Files.deleteIfExists(file);
+    } catch (IOException e) {
+      LOGGER.warn("Failed to delete partial upload {}", file, e);
+    }
   }
 
   @Override
-  public Flux<byte[]> downloadFile(UUID imageId) {
-    EncryptionUtil.decryptWithRsaAes(
-        rsaKeys.getPublic(),
-        getEncryptFilePath(imageId) + ".enc",
-        getTempFilePath(imageId));
+  public Flux<DataBuffer> downloadFile(UUID imageId) {
+    return withEncryptedFile(imageId, file -> {
+      if (file.header == null) {
+        Flux<DataBuffer> encrypted = DataBufferUtils
+            .readAsynchronousFileChannel(
+                () -> file.channel, LEGACY_HEADER_LENGTH, bufferFactory, BUFFER_SIZE)
+            .publishOn(processingScheduler, PROCESSING_PREFETCH);
+        return Flux.defer(() -> EncryptionUtil.decryptWithRsaAes(
+            getLegacyKey(file), file.legacyIv, encrypted, bufferFactory))
+            .subscribeOn(processingScheduler);
+      }
+      long length = SegmentedEncryptionUtil.plaintextLength(file.header, file.size);
+      return length == 0 ? Flux.empty() : decryptRange(file, 0, length - 1);
+    });
+  }
 
-    Path filePath = Paths.get(getTempFilePath(imageId) + ".ver");
-    ByteBuffer buffer = ByteBuffer.allocate(8192);
+  @Override
+  public Flux<DataBuffer> downloadFile(UUID imageId, long start, long end) {
+    return withEncryptedFile(imageId, file -> {
+      if (file.header == null) {
+        return Flux.error(new EncryptionException("Image format does not support ranges"));
+      }
+      return decryptRange(file, start, end);
+    });
+  }
+
+  @Override
+  public Mono<Long> getFileLength(UUID imageId) {
+    return this.<Long>withEncryptedFile(imageId, file -> {
+      if (file.header == null) {
+        return Mono.empty();
+      }
+      return Mono.just(SegmentedEncryptionUtil.plaintextLength(file.header, file.size));
+    }).next();
+  }
 
+  private <T> Flux<T> withEncryptedFile(
+      UUID imageId, Function<EncryptedFile, Publisher<T>> action) {
+    Path filePath = getEncryptedPath(imageId);
     return Flux.using(
         () -> AsynchronousFileChannel.open(filePath, StandardOpenOption.READ),
-        fileChannel -> readFile(buffer, fileChannel),
+        channel -> Mono.fromCallable(channel::size)
+            .flatMap(size -> read(channel, 0, (int) Math.min(size, MAX_HEADER_LENGTH))
+                .map(leading -> new EncryptedFile(imageId, channel, size, leading)))
+            .flatMapMany(action),
         LocalFileStorage::close);
   }
 
-  private Flux<byte[]> readFile(ByteBuffer buffer, AsynchronousFileChannel channel) {
-    return Flux
-        .range(0, Integer.MAX_VALUE)
-        .map(i -> i * 8192)
-        .concatMap(pos -> Mono.using(() -> buffer, b -> read(pos, b, channel), ByteBuffer::clear))
-        .takeWhile(Optional::isPresent)
-        .map(Optional::get);
-  }
-
-  private Mono<Optional<byte[]>> read(
-      long position, ByteBuffer buffer, AsynchronousFileChannel channel) {
-    return Mono.defer(() -> {
-      LOGGER.trace("Reading chunk={} at position={}", buffer.capacity(), position);
-      CompletableFuture<Optional<byte[]>> future = new CompletableFuture<>();
-      channel.read(
-          buffer,
-          position,
-          future,
-          new CompletionHandler<Integer, CompletableFuture<Optional<byte[]>>>() {
-            @Override
-            public void completed(
-                Integer read, CompletableFuture<Optional<byte[]>> future) {
-              if (read == -1) {
-                LOGGER.trace("No chunks at position={}", position);
-                future.complete(Optional.empty());
-              } else {
-                LOGGER.trace(
-                    "Finished reading chunk of size={} at position={}",
-                    read,
-                    position);
-                byte[] bytes = new byte[read];
-                buffer.rewind();
-                buffer.get(bytes);
-                future.complete(Optional.of(bytes));
-              }
-            }
-
-            @Override
-            public void failed(
-                Throwable throwable, CompletableFuture<Optional<byte[]>> future) {
-              LOGGER.trace("Failed to read chunk at position={}", position);
-              future.completeExceptionally(throwable);
-            }
-          });
-      return Mono.fromCompletionStage(future);
-    });
+  private Flux<DataBuffer> decryptRange(EncryptedFile file, long start, long end) {
+    Header header = file.header;
+    int segmentSize = header.getSegmentSize();
+    long segmentCount = SegmentedEncryptionUtil.segmentCount(header, file.size);
+    long firstSegment = start / segmentSize;
+    long lastSegment = end / segmentSize;
+
+    return Mono.fromCallable(() -> getKey(file))
+        .subscribeOn(processingScheduler)
+        .flatMapMany(key -> {
+          // Segments are read and decrypted one at a time, so a single read buffer serves them all
+          ByteBuffer encrypted =
+              ByteBuffer.allocate(SegmentedEncryptionUtil.encryptedSegmentSize(header));
+          return Flux
+              .range((int) firstSegment, (int) (lastSegment - firstSegment + 1))
+              .concatMap(index -> {
+                long offset = SegmentedEncryptionUtil.segmentOffset(header, index);
+                int length = (int) Math.min(encrypted.capacity(), file.size - offset);
+                return Mono
+                    .defer(() -> {
+                      encrypted.clear();
+                      encrypted.limit(length);
+                      return read(file.channel, offset, encrypted);
+                    })
+                    .publishOn(processingScheduler)
+                    .map(segment -> {
+                      int from = index == firstSegment ? (int) (start % segmentSize) : 0;
+                      DataBuffer plaintext = bufferFactory.allocateBuffer(segmentSize);
+                      try {
+                        int decrypted = SegmentedEncryptionUtil.decryptSegment(
+                            key,
+                            header,
+                            index,
+                            index == segmentCount - 1,
+                            segment,
+                            plaintext.asByteBuffer(0, segmentSize));
+                        int to = index == lastSegment ? (int) (end % segmentSize) + 1 : decrypted;
+                        return plaintext.writePosition(to).readPosition(from);
+                      } catch (RuntimeException e) {
+                        DataBufferUtils.release(plaintext);
+                        throw e;
+                      }
+                    });
+              });
+        });
+  }
+
+  private SecretKey getKey(EncryptedFile file) {
+    UUID keyId = file.header.getKeyId();
+    if (keyId != null) {
+      return keyCache.get(keyId, dataKeys::loadKey);
+    }
+    return keyCache.get(file.imageId, imageId -> keyRing.unwrap(file.header.getWrappedKey()));
+  }
+
+  private SecretKey getLegacyKey(EncryptedFile file) {
+    if (file.legacyIv.length < EncryptionUtil.IV_LENGTH) {
+      throw new EncryptionException("File not encrypted with RAS/AES");
+    }
+    return keyCache.get(file.imageId, imageId -> keyRing.unwrap(file.legacyWrappedKey));
   }
 
-  private String getTempFilePath(UUID imageId) {
-    return path + imageId.toString();
+  private Path getEncryptedPath(UUID imageId) {
+    return Paths.get(getEncryptFilePath(imageId) + ".enc");
+  }
+
+  private Path getTempPath(UUID imageId) {
+    return Paths.get(getEncryptFilePath(imageId) + ".enc.tmp");
   }
 
   private String getEncryptFilePath(UUID imageId) {
     return path + imageId;
   }
+
+  /**
+   * An open encrypted file, along with its segmented header if it is not in the legacy format or
+   * its wrapped key and IV if it is.
+   */
+  private static final class EncryptedFile {
+
+    private final UUID imageId;
+    private final AsynchronousFileChannel channel;
+    private final long size;
+    private final Header header;
+    private final byte[] legacyWrappedKey;
+    private final byte[] legacyIv;
+
+    private EncryptedFile(
+        UUID imageId, AsynchronousFileChannel channel, long size, ByteBuffer leading) {
+      this.imageId = imageId;
+      this.channel = channel;
+      this.size = size;
+      if (SegmentedEncryptionUtil.isSegmented(leading)) {
+        this.header = SegmentedEncryptionUtil.readHeader(leading);
+        this.legacyWrappedKey = null;
+        this.legacyIv = null;
+      } else {
+        this.header = null;
+        ByteBuffer legacyHeader = leading.duplicate();
+        this.legacyWrappedKey = new byte[Math.min(legacyHeader.remaining(), WRAPPED_KEY_LENGTH)];
+        legacyHeader.get(legacyWrappedKey);
+        this.legacyIv = new byte[Math.min(legacyHeader.remaining(), EncryptionUtil.IV_LENGTH)];
+        legacyHeader.get(legacyIv);
+      }
+    }
+  }
+
+  /**
+   * Keeps reading into a buffer until it is full or the end of the file is reached.
+   */
+  private static final class ReadHandler
+      implements CompletionHandler<Integer, CompletableFuture<ByteBuffer>> {
+
+    private final AsynchronousFileChannel channel;
+    private final ByteBuffer buffer;
+    private final long position;
+
+    private ReadHandler(AsynchronousFileChannel channel, ByteBuffer buffer, long position) {
+      this.channel = channel;
+      this.buffer = buffer;
+      this.position = position;
+    }
+
+    @Override
+    public void completed(Integer read, CompletableFuture<ByteBuffer> future) {
+      if (read == -1 || !buffer.hasRemaining()) {
+        buffer.flip();
+        future.complete(buffer);
+      } else {
+        channel.read(buffer, position + buffer.position(), future, this);
+      }
+    }
+
+    @Override
+    public void failed(Throwable throwable, CompletableFuture<ByteBuffer> future) {
+      LOGGER.trace("Failed to read chunk at position={}", position);
+      future.completeExceptionally(throwable);
+    }
+  }
 }
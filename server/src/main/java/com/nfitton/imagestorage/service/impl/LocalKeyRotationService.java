@@ -0,0 +1,460 @@
+package com.nfitton.imagestorage.service.impl;
+
+import static com.nfitton.imagestorage.util.SegmentedEncryptionUtil.MAX_HEADER_LENGTH;
+import static com.nfitton.imagestorage.util.SegmentedEncryptionUtil.WRAPPED_KEY_LENGTH;
+import static com.nfitton.imagestorage.util.SegmentedEncryptionUtil.WRAPPED_KEY_OFFSET;
+
+import com.nfitton.imagestorage.configuration.EncryptionConfiguration;
+import com.nfitton.imagestorage.configuration.PathConfiguration;
+import com.nfitton.imagestorage.configuration.QueueConfiguration;
+import com.nfitton.imagestorage.exception.EncryptionException;
+import com.nfitton.imagestorage.model.KeyRotationStatus;
+import com.nfitton.imagestorage.model.KeyRotationStatus.State;
+import com.nfitton.imagestorage.service.KeyRotationService;
+import com.nfitton.imagestorage.util.SegmentedEncryptionUtil;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Base64.Decoder;
+import java.util.Base64.Encoder;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import org.apache.activemq.command.ActiveMQTopic;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.context.annotation.Profile;
+import org.springframework.jms.JmsException;
+import org.springframework.jms.core.JmsTemplate;
+import org.springframework.stereotype.Service;
+import reactor.core.publisher.Mono;
+
+/**
+ * Rotates the RSA key pair by re-wrapping the key held in the header of every image, and every
+ * stored data key, leaving the encrypted contents untouched. Only the wrapped key of an image is
+ * rewritten, in place. The file, offset and old and new keys are journaled and synced first, and
+ * any journaled write is replayed when a rotation resumes, so a crash never leaves a key torn.
+ *
+ * <p>Files are split into buckets by the first characters of their name, which are walked in
+ * parallel on a fork-join pool. Each bucket is checkpointed once all of its files are re-wrapped,
+ * so an interrupted rotation only has to revisit unfinished buckets when it is resumed. Files
+ * already wrapped with the new key pair are skipped, so revisiting a file is harmless.
+ *
+ * <p>Beginning and completing a rotation are published on the {@code keysRotated} topic, so
+ * other nodes sharing the storage location reload their key pairs.
+ */
+@Service
+@Profile("local")
+public class LocalKeyRotationService implements KeyRotationService {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(LocalKeyRotationService.class);
+  private static final String DATA_KEY_BUCKET = "keys/";
+  private static final int BUCKET_PREFIX_LENGTH = 2;
+
+  private final RsaKeyRing keyRing;
+  private final JmsTemplate jmsTemplate;
+  private final Path directory;
+  private final Path checkpointPath;
+  private final Path journalDirectory;
+  private final int parallelism;
+  private final long throttleNanos;
+  private final AtomicReference<Rotation> running = new AtomicReference<>();
+  private final AtomicLong nextSlot = new AtomicLong(System.nanoTime());
+  private volatile KeyRotationStatus lastStatus = KeyRotationStatus.idle();
+
+  /**
+   * Creates the rotation service for the configured storage location.
+   *
+   * @param keyRing the key pairs to rotate between
+   * @param jmsTemplate the template to publish rotations with
+   * @param configuration the storage location configuration
+   * @param encryptionConfiguration the rotation parallelism and throttling
+   */
+  public LocalKeyRotationService(
+      RsaKeyRing keyRing,
+      JmsTemplate jmsTemplate,
+      PathConfiguration configuration,
+      EncryptionConfiguration encryptionConfiguration) {
+    this.keyRing = keyRing;
+    this.jmsTemplate = jmsTemplate;
+    this.directory = Paths.get(configuration.getLocation());
+    this.checkpointPath = Paths.get(configuration.getLocation() + ".rotation");
+    this.journalDirectory = Paths.get(configuration.getLocation() + ".rotation-journal");
+    this.parallelism = encryptionConfiguration.getRotationParallelism();
+    int maxFilesPerSecond = encryptionConfiguration.getRotationMaxFilesPerSecond();
+    this.throttleNanos = maxFilesPerSecond > 0 ? 1_000_000_000L / maxFilesPerSecond : 0;
+  }
+
+  @Override
+  public Mono<KeyRotationStatus> rotateKeys() {
+    return Mono.fromCallable(() -> {
+      Rotation rotation = new Rotation();
+      if (!running.compareAndSet(null, rotation)) {
+        return running.get().getStatus();
+      }
+      ForkJoinPool pool = new ForkJoinPool(parallelism);
+      pool.execute(() -> {
+        try {
+          rotate(rotation);
+        } finally {
+          lastStatus = rotation.getStatus();
+          running.set(null);
+          pool.shutdown();
+        }
+      });
+      return rotation.getStatus();
+    });
+  }
+
+  @Override
+  public Mono<KeyRotationStatus> getStatus() {
+    return Mono.fromCallable(() -> {
+      Rotation rotation = running.get();
+      return rotation == null ? lastStatus : rotation.getStatus();
+    });
+  }
+
+  private void rotate(Rotation rotation) {
+    try {
+      if (keyRing.beginRotation()) {
+        Files.deleteIfExists(checkpointPath);
+        publish(State.RUNNING);
+      }
+      replayJournals();
+      Set<String> completed = readCheckpoint();
+      Map<String, List<Path>> buckets = listBuckets();
+      rotation.bucketsTotal = buckets.size();
+      buckets.keySet().removeAll(completed);
+      rotation.bucketsCompleted.set(rotation.bucketsTotal - buckets.size());
+      LOGGER.info("Rotating keys in {} of {} buckets", buckets.size(), rotation.bucketsTotal);
+
+      List<RotateBucket> tasks = new ArrayList<>(buckets.size());
+      buckets.forEach((bucket, files) -> tasks.add(new RotateBucket(rotation, bucket, files)));
+      RecursiveAction.invokeAll(tasks);
+
+      if (rotation.failed.sum() > 0) {
+        LOGGER.error("Failed to rotate {} files, rotation can be resumed", rotation.failed.sum());
+        rotation.state = State.FAILED;
+        return;
+      }
+      keyRing.completeRotation();
+      publish(State.COMPLETED);
+      Files.deleteIfExists(checkpointPath);
+      rotation.state = State.COMPLETED;
+    } catch (IOException | RuntimeException e) {
+      LOGGER.error("Key rotation failed, rotation can be resumed", e);
+      rotation.state = State.FAILED;
+    }
+  }
+
+  private void publish(State state) {
+    try {
+      jmsTemplate.convertAndSend(
+          new ActiveMQTopic(QueueConfiguration.KEYS_ROTATED_TOPIC), state.name());
+    } catch (JmsException e) {
+      LOGGER.warn("Failed to publish key rotation {}", state, e);
+    }
+  }
+
+  private Map<String, List<Path>> listBuckets() throws IOException {
+    Map<String, List<Path>> buckets = new TreeMap<>();
+    addToBuckets(buckets, "", directory, "*.enc");
+    Path dataKeys = directory.resolve(DATA_KEY_BUCKET);
+    if (Files.isDirectory(dataKeys)) {
+      addToBuckets(buckets, DATA_KEY_BUCKET, dataKeys, "*.key");
+    }
+    return buckets;
+  }
+
+  private static void addToBuckets(
+      Map<String, List<Path>> buckets, String prefix, Path folder, String glob)
+      throws IOException {
+    try (DirectoryStream<Path> files = Files.newDirectoryStream(folder, glob)) {
+      for (Path file : files) {
+        String name = file.getFileName().toString();
+        String bucket = prefix + name.substring(0, Math.min(BUCKET_PREFIX_LENGTH, name.length()));
+        buckets.computeIfAbsent(bucket, key -> new ArrayList<>()).add(file);
+      }
+    }
+  }
+
+  private Set<String> readCheckpoint() throws IOException {
+    if (!Files.exists(checkpointPath)) {
+      return new HashSet<>();
+    }
+    return new HashSet<>(Files.readAllLines(checkpointPath, StandardCharsets.UTF_8));
+  }
+
+  private synchronized void checkpoint(String bucket) throws IOException {
+    Files.write(
+        checkpointPath,
+        Arrays.asList(bucket),
+        StandardCharsets.UTF_8,
+        StandardOpenOption.CREATE,
+        StandardOpenOption.APPEND);
+  }
+
+  /**
+   * Re-wraps the key in the header of an image in place. The write is journaled for the bucket
+   * before it is made, each bucket rotating one image at a time so its journal only ever needs
+   * to hold the write in progress.
+   */
+  private boolean rotateImage(String bucket, Path file) throws IOException {
+    try (FileChannel channel =
+        FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+      ByteBuffer leading = ByteBuffer.allocate(MAX_HEADER_LENGTH);
+      int read = 0;
+      while (leading.hasRemaining() && read != -1) {
+        read = channel.read(leading, leading.position());
+      }
+      leading.flip();
+
+      int offset = 0;
+      if (SegmentedEncryptionUtil.isSegmented(leading)) {
+        if (SegmentedEncryptionUtil.readHeader(leading).getWrappedKey() == null) {
+          return false;
+        }
+        offset = WRAPPED_KEY_OFFSET;
+      }
+      if (leading.remaining() < offset + WRAPPED_KEY_LENGTH) {
+        throw new EncryptionException("Encrypted file is too short to hold a key");
+      }
+      byte[] wrappedKey = new byte[WRAPPED_KEY_LENGTH];
+      leading.position(offset);
+      leading.get(wrappedKey);
+
+      byte[] rewrapped = keyRing.rewrap(wrappedKey);
+      if (rewrapped == null) {
+        return false;
+      }
+      journal(bucket, new JournalEntry(file, offset, wrappedKey, rewrapped));
+      writeKey(channel, offset, rewrapped);
+      return true;
+    }
+  }
+
+  private static void writeKey(FileChannel channel, long offset, byte[] key) throws IOException {
+    ByteBuffer buffer = ByteBuffer.wrap(key);
+    while (buffer.hasRemaining()) {
+      channel.write(buffer, offset + buffer.position());
+    }
+    channel.force(false);
+  }
+
+  private void journal(String bucket, JournalEntry entry) throws IOException {
+    Files.write(
+        journalDirectory.resolve(bucket),
+        entry.toLines(),
+        StandardCharsets.UTF_8,
+        StandardOpenOption.CREATE,
+        StandardOpenOption.TRUNCATE_EXISTING,
+        StandardOpenOption.SYNC);
+  }
+
+  /**
+   * Finishes the key writes that were in progress when a rotation was interrupted.
+   *
+   * <p>A key is only written if the file still holds the old key, the new key or a mix of the
+   * two, so an image uploaded again since the write was journaled is left alone. A journal that
+   * cannot be read was torn before its key write began, so it is discarded.
+   */
+  private void replayJournals() throws IOException {
+    Files.createDirectories(journalDirectory);
+    try (DirectoryStream<Path> journals = Files.newDirectoryStream(journalDirectory)) {
+      for (Path journal : journals) {
+        JournalEntry entry = JournalEntry.parse(
+            Files.readAllLines(journal, StandardCharsets.UTF_8));
+        if (entry != null && Files.exists(entry.file)) {
+          replay(entry);
+        }
+        Files.delete(journal);
+      }
+    }
+  }
+
+  private static void replay(JournalEntry entry) throws IOException {
+    try (FileChannel channel =
+        FileChannel.open(entry.file, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+      ByteBuffer current = ByteBuffer.allocate(WRAPPED_KEY_LENGTH);
+      int read = 0;
+      while (current.hasRemaining() && read != -1) {
+        read = channel.read(current, entry.offset + current.position());
+      }
+      byte[] bytes = current.array();
+      if (Arrays.equals(bytes, entry.newKey)) {
+        return;
+      }
+      for (int i = 0; i < bytes.length; i++) {
+        if (bytes[i] != entry.oldKey[i] && bytes[i] != entry.newKey[i]) {
+          LOGGER.info("Not replaying key of {}, it has been replaced", entry.file);
+          return;
+        }
+      }
+      LOGGER.info("Replaying interrupted key write of {}", entry.file);
+      writeKey(channel, entry.offset, entry.newKey);
+    }
+  }
+
+  private boolean rotateDataKey(Path file) throws IOException {
+    byte[] rewrapped = keyRing.rewrap(Files.readAllBytes(file));
+    if (rewrapped == null) {
+      return false;
+    }
+    Path tempPath = file.resolveSibling(file.getFileName() + ".tmp");
+    Files.write(
+        tempPath,
+        rewrapped,
+        StandardOpenOption.CREATE,
+        StandardOpenOption.TRUNCATE_EXISTING,
+        StandardOpenOption.SYNC);
+    Files.move(
+        tempPath, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    return true;
+  }
+
+  private void throttle() {
+    if (throttleNanos == 0) {
+      return;
+    }
+    long now = System.nanoTime();
+    long slot = nextSlot.updateAndGet(next -> Math.max(next, now) + throttleNanos);
+    long wait = slot - throttleNanos - now;
+    if (wait > 0) {
+      LockSupport.parkNanos(wait);
+    }
+  }
+
+  /**
+   * Re-wraps the files of one bucket, checkpointing it if every file succeeded.
+   */
+  private final class RotateBucket extends RecursiveAction {
+
+    private final Rotation rotation;
+    private final String bucket;
+    private final List<Path> files;
+
+    private RotateBucket(Rotation rotation, String bucket, List<Path> files) {
+      this.rotation = rotation;
+      this.bucket = bucket;
+      this.files = files;
+    }
+
+    @Override
+    protected void compute() {
+      boolean succeeded = true;
+      for (Path file : files) {
+        throttle();
+        try {
+          boolean rotated = bucket.startsWith(DATA_KEY_BUCKET)
+              ? rotateDataKey(file)
+              : rotateImage(bucket, file);
+          if (rotated) {
+            rotation.rotated.increment();
+          } else {
+            rotation.skipped.increment();
+          }
+        } catch (IOException | RuntimeException e) {
+          LOGGER.warn("Failed to rotate key of {}", file, e);
+          rotation.failed.increment();
+          succeeded = false;
+        }
+      }
+      if (succeeded) {
+        try {
+          Files.deleteIfExists(journalDirectory.resolve(bucket));
+          checkpoint(bucket);
+          rotation.bucketsCompleted.incrementAndGet();
+        } catch (IOException e) {
+          LOGGER.warn("Failed to checkpoint bucket {}", bucket, e);
+        }
+      }
+    }
+  }
+
+  /**
+   * A key write to an image, journaled before it is made so it can be finished after a crash.
+   */
+  private static final class JournalEntry {
+
+    private final Path file;
+    private final long offset;
+    private final byte[] oldKey;
+    private final byte[] newKey;
+
+    private JournalEntry(Path file, long offset, byte[] oldKey, byte[] newKey) {
+      this.file = file;
+      this.offset = offset;
+      this.oldKey = oldKey;
+      this.newKey = newKey;
+    }
+
+    private static JournalEntry parse(List<String> lines) {
+      if (lines.size() != 4) {
+        return null;
+      }
+      try {
+        Decoder decoder = Base64.getDecoder();
+        byte[] oldKey = decoder.decode(lines.get(2));
+        byte[] newKey = decoder.decode(lines.get(3));
+        if (oldKey.length != WRAPPED_KEY_LENGTH || newKey.length != WRAPPED_KEY_LENGTH) {
+          return null;
+        }
+        return new JournalEntry(
+            Paths.get(lines.get(0)), Long.parseLong(lines.get(1)), oldKey, newKey);
+      } catch (IllegalArgumentException e) {
+        return null;
+      }
+    }
+
+    private List<String> toLines() {
+      Encoder encoder = Base64.getEncoder();
+      return Arrays.asList(
+          file.toString(),
+          Long.toString(offset),
+          encoder.encodeToString(oldKey),
+          encoder.encodeToString(newKey));
+    }
+  }
+
+  /**
+   * Progress of a running rotation.
+   */
+  private static final class Rotation {
+
+    private final AtomicInteger bucketsCompleted = new AtomicInteger();
+    private final LongAdder rotated = new LongAdder();
+    private final LongAdder skipped = new LongAdder();
+    private final LongAdder failed = new LongAdder();
+    private volatile int bucketsTotal;
+    private volatile State state = State.RUNNING;
+
+    private KeyRotationStatus getStatus() {
+      return new KeyRotationStatus(
+          state,
+          bucketsCompleted.get(),
+          bucketsTotal,
+          rotated.sum(),
+          skipped.sum(),
+          failed.sum());
+    }
+  }
+}
@@ -0,0 +1,67 @@
+package com.nfitton.imagestorage.service.impl;
+
+import com.nfitton.imagestorage.model.TallyPoint;
+import com.nfitton.imagestorage.model.TimeFrame;
+import java.time.ZoneId;
+import java.time.ZonedDateTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TreeMap;
+
+/**
+ * The zero filled time frames of a motion tally, which fixed width bucket counts from the
+ * database are added into.
+ */
+final class MotionTally {
+
+  private final ZonedDateTime start;
+  private final ZonedDateTime localStart;
+  private final ZoneId zone;
+  private final long bucketSeconds;
+  private final TreeMap<ZonedDateTime, Long> buckets = new TreeMap<>();
+
+  MotionTally(ZonedDateTime start, ZonedDateTime end, TimeFrame measurement) {
+    // Times are stored in the system zone, so buckets follow its calendar
+    this.zone = ZoneId.systemDefault();
+    this.start = start;
+    this.localStart = start.withZoneSameInstant(zone);
+    this.bucketSeconds = getQueryBucketSeconds(measurement);
+    for (ZonedDateTime time = localStart; time.isBefore(end); time = measurement.advance(time)) {
+      buckets.put(time, 0L);
+    }
+  }
+
+  /**
+   * The width of the buckets to count motion into, months and years vary in length so are counted
+   * by day and then summed.
+   */
+  private static long getQueryBucketSeconds(TimeFrame measurement) {
+    TimeFrame queried = measurement == TimeFrame.MONTH || measurement == TimeFrame.YEAR
+        ? TimeFrame.DAY
+        : measurement;
+    return queried.getUnit().getDuration().getSeconds();
+  }
+
+  boolean isEmpty() {
+    return buckets.isEmpty();
+  }
+
+  long getBucketSeconds() {
+    return bucketSeconds;
+  }
+
+  void add(long index, long count) {
+    ZonedDateTime time = localStart.toLocalDateTime()
+        .plusSeconds(index * bucketSeconds)
+        .atZone(zone);
+    ZonedDateTime bucket = buckets.floorKey(time);
+    buckets.merge(bucket == null ? buckets.firstKey() : bucket, count, Long::sum);
+  }
+
+  List<TallyPoint> getPoints() {
+    List<TallyPoint> points = new ArrayList<>(buckets.size());
+    buckets.forEach((time, count) ->
+        points.add(new TallyPoint(time.withZoneSameInstant(start.getZone()), count)));
+    return points;
+  }
+}
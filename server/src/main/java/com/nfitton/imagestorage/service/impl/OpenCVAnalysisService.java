@@ -1,85 +1,183 @@
 package com.nfitton.imagestorage.service.impl;
 
+import com.nfitton.imagestorage.component.CascadeClassifierPool;
 import com.nfitton.imagestorage.configuration.OpenCVConfiguration;
 import com.nfitton.imagestorage.entity.ImageEntity;
 import com.nfitton.imagestorage.service.AnalysisService;
+import com.nfitton.imagestorage.util.MatScope;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 import org.opencv.core.Mat;
-import org.opencv.core.MatOfDouble;
+import org.opencv.core.MatOfInt;
 import org.opencv.core.MatOfRect;
+import org.opencv.core.Rect;
 import org.opencv.core.Size;
 import org.opencv.imgcodecs.Imgcodecs;
 import org.opencv.imgproc.Imgproc;
-import org.opencv.objdetect.HOGDescriptor;
+import org.opencv.objdetect.CascadeClassifier;
 import org.opencv.objdetect.Objdetect;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
 import org.springframework.stereotype.Service;
 import reactor.core.publisher.Flux;
 import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Scheduler;
 
+/**
+ * Detects entities in images with OpenCV.
+ *
+ * <p>Each image is scaled down to the configured maximum dimension and a grayscale pyramid is
+ * built from it once. Every cascade then runs concurrently on the analysis scheduler, sweeping
+ * the shared pyramid at its native window size rather than building a pyramid of its own. The
+ * candidates from all levels are grouped as {@code detectMultiScale} would have grouped them.
+ *
+ * <p>The Mats of each image are owned by a {@link MatScope} that is closed once the analysis
+ * completes, fails or is cancelled. Detections are written into a buffer kept per worker thread
+ * and copied out before the next detection on that thread reuses it.
+ */
 @Service
 public class OpenCVAnalysisService implements AnalysisService {
 
-  private OpenCVConfiguration configuration;
+  private static final ThreadLocal<MatOfRect> DETECTIONS = ThreadLocal.withInitial(MatOfRect::new);
+  private static final double SCALE_FACTOR = 1.1;
+  private static final int MIN_NEIGHBOURS = 2;
+  private static final double GROUP_EPS = 0.2;
+  private static final int MIN_LEVEL_SIZE = 20;
+
+  private CascadeClassifierPool cascadePool;
+  private Scheduler analysisScheduler;
+  private int maxDimension;
 
   @Autowired
-  public OpenCVAnalysisService(OpenCVConfiguration configuration) {
-    this.configuration = configuration;
+  public OpenCVAnalysisService(
+      OpenCVConfiguration configuration,
+      CascadeClassifierPool cascadePool,
+      @Qualifier("analysisScheduler") Scheduler analysisScheduler) {
+    this.cascadePool = cascadePool;
+    this.analysisScheduler = analysisScheduler;
+    this.maxDimension = configuration.getMaxDimension();
   }
 
   @Override
   public Flux<ImageEntity> analyzeImage(java.lang.String file) {
-    Mat image = Imgcodecs.imread(file);
-    Mat grayImage = new Mat();
+    return Flux.using(
+        MatScope::new,
+        scope -> Mono.fromCallable(() -> buildPyramid(scope, file))
+            .subscribeOn(analysisScheduler)
+            .flatMapMany(pyramid -> haarAnalysis(scope, pyramid)),
+        MatScope::close);
+  }
+
+  private Pyramid buildPyramid(MatScope scope, String file) {
+    Mat image = scope.add(Imgcodecs.imread(file));
+    Mat grayImage = scope.add(new Mat());
     Imgproc.cvtColor(image, grayImage, Imgproc.COLOR_BGR2GRAY);
+    Pyramid pyramid = new Pyramid(Math.max(0, Math.round(grayImage.rows() * 0.1f)));
+
+    Mat level = grayImage;
+    double scale = 1;
+    int largest = Math.max(grayImage.rows(), grayImage.cols());
+    if (maxDimension > 0 && largest > maxDimension) {
+      scale = (double) largest / maxDimension;
+      level = resize(scope, grayImage, scale, Imgproc.INTER_AREA);
+    }
+    while (level.rows() >= MIN_LEVEL_SIZE && level.cols() >= MIN_LEVEL_SIZE) {
+      pyramid.levels.add(new Level(level, scale));
+      level = resize(scope, level, SCALE_FACTOR, Imgproc.INTER_LINEAR);
+      scale *= SCALE_FACTOR;
+    }
+    return pyramid;
+  }
+
+  private static Mat resize(MatScope scope, Mat image, double factor, int interpolation) {
+    Mat resized = scope.add(new Mat());
+    Size size = new Size(Math.round(image.cols() / factor), Math.round(image.rows() / factor));
+    Imgproc.resize(image, resized, size, 0, 0, interpolation);
+    return resized;
+  }
 
-    int height = image.rows();
-    int absFaceSize = 0;
-    int minSize = Math.round(height * 0.1f);
-    if (minSize > 0) {
-      absFaceSize = minSize;
+  private Flux<ImageEntity> haarAnalysis(MatScope scope, Pyramid pyramid) {
+    return Flux.fromIterable(cascadePool.getCascades()).flatMap(
+        cascade ->
+            Mono.fromCallable(() -> scope.use(() -> cascadePool
+                .use(cascade, classifier -> detect(classifier, pyramid))))
+                .subscribeOn(analysisScheduler)
+                .flatMapIterable(rects -> rects)
+                .map(rect -> toEntity(rect, cascade.getType())));
+  }
+
+  /**
+   * Runs the classifier at its native window size over each level of the pyramid large enough
+   * to give detections of the minimum size, and groups the candidates in image coordinates.
+   */
+  private static List<Rect> detect(CascadeClassifier classifier, Pyramid pyramid) {
+    Size window = classifier.getOriginalWindowSize();
+    MatOfRect found = DETECTIONS.get();
+    List<Rect> candidates = new ArrayList<>();
+    for (Level level : pyramid.levels) {
+      if (Math.min(window.width, window.height) * level.scale < pyramid.minSize) {
+        continue;
+      }
+      classifier.detectMultiScale(
+          level.image, found, SCALE_FACTOR, 0, Objdetect.CASCADE_SCALE_IMAGE, window, window);
+      for (Rect rect : found.toArray()) {
+        candidates.add(new Rect(
+            (int) Math.round(rect.x * level.scale),
+            (int) Math.round(rect.y * level.scale),
+            (int) Math.round(rect.width * level.scale),
+            (int) Math.round(rect.height * level.scale)));
+      }
+    }
+    if (candidates.isEmpty()) {
+      return Collections.emptyList();
     }
 
-    // return Flux.concat(haarAnalysis(grayImage, absFaceSize), hogAnalysis(grayImage));
-    return haarAnalysis(grayImage, absFaceSize);
+    MatOfRect grouped = new MatOfRect(candidates.toArray(new Rect[0]));
+    MatOfInt weights = new MatOfInt();
+    try {
+      Objdetect.groupRectangles(grouped, weights, MIN_NEIGHBOURS, GROUP_EPS);
+      return grouped.toList();
+    } finally {
+      grouped.release();
+      weights.release();
+    }
   }
 
-  private Flux<ImageEntity> haarAnalysis(Mat image, int minSize) {
-    return configuration.getAllCascades().flatMap(
-        tuple2 ->
-            Mono.fromCallable(() -> {
-              MatOfRect bodies = new MatOfRect();
-              tuple2.getT1()
-                  .detectMultiScale(
-                      image, bodies, 1.1, 2, Objdetect.CASCADE_SCALE_IMAGE,
-                      new Size(minSize, minSize), new Size());
-              return bodies;
-            })
-                .flatMapIterable(MatOfRect::toList)
-                .map(rect -> ImageEntity.Builder.newBuilder().withX(rect.x)
-                    .withY(rect.y)
-                    .withWidth(rect.width)
-                    .withHeight(rect.height)
-                    .withType(tuple2.getT2())
-                    .build()
-                ));
+  private static ImageEntity toEntity(Rect rect, String type) {
+    return ImageEntity.Builder.newBuilder().withX(rect.x)
+        .withY(rect.y)
+        .withWidth(rect.width)
+        .withHeight(rect.height)
+        .withType(type)
+        .build();
   }
 
-  private Flux<ImageEntity> hogAnalysis(Mat image) {
-    HOGDescriptor hog = new HOGDescriptor();
-    hog.setSVMDetector(HOGDescriptor.getDefaultPeopleDetector());
+  /**
+   * The scaled levels of the grayscale image the cascades run over, and the smallest detection
+   * to keep in image coordinates.
+   */
+  private static final class Pyramid {
 
-    MatOfRect faces = new MatOfRect();
+    private final int minSize;
+    private final List<Level> levels = new ArrayList<>();
 
-    hog.detectMultiScale(image, faces, new MatOfDouble());
+    private Pyramid(int minSize) {
+      this.minSize = minSize;
+    }
+  }
+
+  /**
+   * A level of the pyramid and the factor to scale its coordinates by to reach the image's.
+   */
+  private static final class Level {
 
-    return Flux.fromIterable(faces.toList())
-        .map(rect ->
-                 ImageEntity.Builder.newBuilder().withX(rect.x)
-                     .withY(rect.y)
-                     .withWidth(rect.width)
-                     .withHeight(rect.height)
-                     .withType("OTHER")
-                     .build()
-        );
+    private final Mat image;
+    private final double scale;
+
+    private Level(Mat image, double scale) {
+      this.image = image;
+      this.scale = scale;
+    }
   }
 }
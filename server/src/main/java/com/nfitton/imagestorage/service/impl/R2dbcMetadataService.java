@@ -0,0 +1,478 @@
+package com.nfitton.imagestorage.service.impl;
+
+import com.nfitton.imagestorage.entity.ImageEntity;
+import com.nfitton.imagestorage.entity.ImageMetadata;
+import com.nfitton.imagestorage.exception.NotFoundException;
+import com.nfitton.imagestorage.model.ImageData;
+import com.nfitton.imagestorage.model.ImageDataPage;
+import com.nfitton.imagestorage.model.MotionCursor;
+import com.nfitton.imagestorage.model.TallyPoint;
+import com.nfitton.imagestorage.model.TimeFrame;
+import com.nfitton.imagestorage.service.FileMetadataService;
+import io.r2dbc.spi.Connection;
+import io.r2dbc.spi.ConnectionFactory;
+import io.r2dbc.spi.Result;
+import io.r2dbc.spi.Row;
+import io.r2dbc.spi.Statement;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.ZonedDateTime;
+import java.util.Collections;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+import org.reactivestreams.Publisher;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.context.annotation.Profile;
+import org.springframework.stereotype.Service;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+/**
+ * Stores motion metadata over R2DBC in place of {@link DatabaseMetadataService}, streaming rows
+ * to the caller as they are read so no thread is held waiting on the database.
+ *
+ * <p>Enabled with the {@code r2dbc} profile. The schema is still migrated by Flyway over the
+ * JDBC datasource, so {@code r2dbc.url} must point at the same database.
+ *
+ * <p>Streams are read a keyset page at a time. Each page and then its entities are read on a
+ * connection of their own, released before the next is acquired, so a stream never holds more
+ * than one connection and concurrent streams cannot exhaust a pool waiting on each other.
+ */
+@Service
+@Profile("r2dbc")
+@Qualifier("metadataStore")
+public class R2dbcMetadataService implements FileMetadataService {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(R2dbcMetadataService.class);
+  private static final int ENTITY_QUERY_CHUNK_SIZE = 500;
+  private static final int PAGE_SIZE = 500;
+  private static final UUID FIRST_ID = new UUID(0, 0);
+  private static final String METADATA_COLUMNS = "id, camera_id, entry_time, exit_time,"
+      + " image_time, created_date, last_modified_date, file_exists";
+  private static final String ENTITY_COLUMNS = "id, metadata_id, x, y, width, height, type,"
+      + " created_date, last_modified_date";
+  private static final String H2_BUCKET = "DATEDIFF('SECOND', $1, entry_time) / $2";
+  private static final String POSTGRES_BUCKET =
+      "FLOOR(EXTRACT(EPOCH FROM (entry_time - CAST($1 AS TIMESTAMP))) / $2)";
+
+  private final ConnectionFactory connectionFactory;
+  private final String bucketExpression;
+
+  @Autowired
+  public R2dbcMetadataService(ConnectionFactory connectionFactory) {
+    this.connectionFactory = connectionFactory;
+    String product = connectionFactory.getMetadata().getName();
+    LOGGER.debug("Tallying motion with {} bucket expression", product);
+    this.bucketExpression = product.contains("H2") ? H2_BUCKET : POSTGRES_BUCKET;
+  }
+
+  private static Throwable notFound(UUID metadataId) {
+    return new NotFoundException(String.format("Metadata by id %s not found", metadataId));
+  }
+
+  @Override
+  public Mono<ImageData> save(ImageData data) {
+    if (data.getId() != null) {
+      return imageUploaded(data.getId(), data.getEntities());
+    }
+    LOGGER.debug("Saving image data");
+    ZonedDateTime now = ZonedDateTime.now();
+    ImageMetadata metadata = ImageMetadata.Builder.clone(data.asMetadata())
+        .withId(UUID.randomUUID())
+        .withCreatedAt(now)
+        .withUpdatedAt(now)
+        .build();
+    return withConnection(connection -> {
+      Statement statement = connection.createStatement("INSERT INTO image_metadata"
+          + " (" + METADATA_COLUMNS + ") VALUES ($1, $2, $3, $4, $5, $6, $7, $8)");
+      bind(statement, 1, metadata.getId(), UUID.class);
+      bind(statement, 2, metadata.getCameraId(), UUID.class);
+      bind(statement, 3, toLocal(metadata.getEntryTime()), LocalDateTime.class);
+      bind(statement, 4, toLocal(metadata.getExitTime()), LocalDateTime.class);
+      bind(statement, 5, toLocal(metadata.getImageTime()), LocalDateTime.class);
+      bind(statement, 6, toLocal(now), LocalDateTime.class);
+      bind(statement, 7, toLocal(now), LocalDateTime.class);
+      bind(statement, 8, metadata.fileExists(), Boolean.class);
+      return rowsUpdated(statement);
+    }).then(Mono.fromCallable(() -> ImageData.Builder.clone(metadata, new LinkedList<>()).build()));
+  }
+
+  @Override
+  public Mono<ImageData> imageUploaded(UUID imageId, List<ImageEntity> entities) {
+    LOGGER.debug("Updating image {} with entities", imageId);
+    ZonedDateTime now = ZonedDateTime.now();
+    List<ImageEntity> connectedEntities = entities.stream()
+        .map(entity -> ImageEntity.Builder.clone(entity)
+            .withId(entity.getId() == null ? UUID.randomUUID() : entity.getId())
+            .withMetadataId(imageId)
+            .withCreatedDate(now)
+            .withLastModifiedDate(now)
+            .build())
+        .collect(Collectors.toList());
+
+    return inTransaction(connection -> {
+      Statement update = connection.createStatement("UPDATE image_metadata"
+          + " SET file_exists = TRUE, last_modified_date = $1 WHERE id = $2");
+      bind(update, 1, toLocal(now), LocalDateTime.class);
+      bind(update, 2, imageId, UUID.class);
+      return rowsUpdated(update)
+          .flatMap(updated -> updated == 0
+              ? Mono.<Integer>error(notFound(imageId))
+              : deleteEntities(connection, imageId)
+                  .then(insertEntities(connection, connectedEntities)))
+          .thenMany(query(selectById(connection, imageId), R2dbcMetadataService::toMetadata));
+    })
+        .single()
+        .map(metadata -> ImageData.Builder.clone(metadata, connectedEntities).build());
+  }
+
+  @Override
+  public Mono<Boolean> exists(UUID imageId) {
+    return withConnection(connection -> query(selectById(connection, imageId), row -> imageId))
+        .singleOrEmpty()
+        .hasElement();
+  }
+
+  @Override
+  public Mono<ImageData> findById(UUID metadataId) {
+    LOGGER.debug("Finding data by id {}", metadataId);
+    return withConnection(connection ->
+        query(selectById(connection, metadataId), R2dbcMetadataService::toMetadata))
+        .singleOrEmpty()
+        .switchIfEmpty(Mono.error(notFound(metadataId)))
+        .flatMapMany(metadata -> attachEntities(Flux.just(metadata)))
+        .single();
+  }
+
+  @Override
+  public Flux<ImageData> findAllExistedAt(ZonedDateTime time) {
+    return findAllExistedAt(time, time);
+  }
+
+  @Override
+  public Flux<ImageData> findAllExistedAt(ZonedDateTime from, ZonedDateTime to) {
+    return paged(last -> withConnection(connection -> {
+      Statement statement = connection.createStatement("SELECT " + METADATA_COLUMNS
+          + " FROM image_metadata WHERE entry_time > $1 AND exit_time < $2"
+          + " AND (entry_time > $3 OR (entry_time = $3 AND id > $4))"
+          + " ORDER BY entry_time, id LIMIT $5");
+      bind(statement, 1, toLocal(from), LocalDateTime.class);
+      bind(statement, 2, toLocal(to), LocalDateTime.class);
+      bind(statement, 3, toLocal(last == null ? from : last.getEntryTime()), LocalDateTime.class);
+      bind(statement, 4, last == null ? FIRST_ID : last.getId(), UUID.class);
+      bind(statement, 5, PAGE_SIZE, Integer.class);
+      return query(statement, R2dbcMetadataService::toMetadata);
+    }));
+  }
+
+  @Override
+  public Flux<ImageData> findAllByCameraIds(
+      List<UUID> cameraIds,
+      List<String> tags,
+      ZonedDateTime from,
+      ZonedDateTime to,
+      MotionCursor after) {
+    if (cameraIds.isEmpty()) {
+      return Flux.empty();
+    }
+    return paged(last -> selectByCameraIds(
+        cameraIds, tags, from, to, last == null ? after : MotionCursor.after(last), PAGE_SIZE));
+  }
+
+  @Override
+  public Mono<ImageDataPage> findPageByCameraIds(
+      List<UUID> cameraIds,
+      List<String> tags,
+      ZonedDateTime from,
+      ZonedDateTime to,
+      MotionCursor after,
+      int limit) {
+    if (cameraIds.isEmpty()) {
+      return Mono.just(new ImageDataPage(Collections.emptyList(), null));
+    }
+    return selectByCameraIds(cameraIds, tags, from, to, after, limit + 1)
+        .collectList()
+        .flatMap(metadata -> {
+          boolean hasNext = metadata.size() > limit;
+          List<ImageMetadata> page = hasNext ? metadata.subList(0, limit) : metadata;
+          return attachEntities(Flux.fromIterable(page))
+              .collectList()
+              .map(data -> new ImageDataPage(
+                  data, hasNext ? MotionCursor.after(data.get(data.size() - 1)) : null));
+        });
+  }
+
+  @Override
+  public Flux<TallyPoint> countAllExistedAt(
+      List<UUID> cameraIds,
+      ZonedDateTime start,
+      ZonedDateTime end,
+      TimeFrame measurement) {
+    return Flux.defer(() -> {
+      MotionTally tally = new MotionTally(start, end, measurement);
+      if (cameraIds.isEmpty() || tally.isEmpty()) {
+        return Flux.fromIterable(tally.getPoints());
+      }
+      return withConnection(connection -> {
+        Statement statement = connection.createStatement("SELECT " + bucketExpression
+            + " AS bucket, COUNT(*) AS motion FROM image_metadata"
+            + " WHERE entry_time >= $1 AND entry_time < $3"
+            + " AND camera_id IN (" + markers(4, cameraIds.size()) + ")"
+            + " GROUP BY bucket");
+        bind(statement, 1, toLocal(start), LocalDateTime.class);
+        bind(statement, 2, tally.getBucketSeconds(), Long.class);
+        bind(statement, 3, toLocal(end), LocalDateTime.class);
+        bindAll(statement, 4, cameraIds, UUID.class);
+        return query(statement, row -> new long[]{
+            row.get("bucket", Number.class).longValue(),
+            row.get("motion", Number.class).longValue()});
+      })
+          .doOnNext(count -> tally.add(count[0], count[1]))
+          .thenMany(Flux.defer(() -> Flux.fromIterable(tally.getPoints())));
+    });
+  }
+
+  @Override
+  public Flux<ImageData> findAll() {
+    return paged(last -> withConnection(connection -> {
+      Statement statement;
+      if (last == null) {
+        statement = connection.createStatement("SELECT " + METADATA_COLUMNS
+            + " FROM image_metadata ORDER BY id LIMIT $1");
+        bind(statement, 1, PAGE_SIZE, Integer.class);
+      } else {
+        statement = connection.createStatement("SELECT " + METADATA_COLUMNS
+            + " FROM image_metadata WHERE id > $1 ORDER BY id LIMIT $2");
+        bind(statement, 1, last.getId(), UUID.class);
+        bind(statement, 2, PAGE_SIZE, Integer.class);
+      }
+      return query(statement, R2dbcMetadataService::toMetadata);
+    }));
+  }
+
+  private Flux<ImageMetadata> selectByCameraIds(
+      List<UUID> cameraIds,
+      List<String> tags,
+      ZonedDateTime from,
+      ZonedDateTime to,
+      MotionCursor after,
+      Integer limit) {
+    // The first page starts from the range, which already excludes motion entering at that time
+    ZonedDateTime afterEntryTime = after == null ? from : after.getEntryTime();
+    UUID afterId = after == null ? FIRST_ID : after.getId();
+    int tagsIndex = 5 + cameraIds.size();
+    int limitIndex = tagsIndex + tags.size();
+    StringBuilder sql = new StringBuilder("SELECT ").append(METADATA_COLUMNS)
+        .append(" FROM image_metadata m")
+        .append(" WHERE m.entry_time > $1 AND m.exit_time < $2")
+        .append(" AND (m.entry_time > $3 OR (m.entry_time = $3 AND m.id > $4))")
+        .append(" AND m.camera_id IN (").append(markers(5, cameraIds.size())).append(")");
+    if (!tags.isEmpty()) {
+      sql.append(" AND EXISTS (SELECT e.id FROM image_entity e")
+          .append(" WHERE e.metadata_id = m.id AND e.type IN (")
+          .append(markers(tagsIndex, tags.size())).append("))");
+    }
+    sql.append(" ORDER BY m.entry_time, m.id");
+    if (limit != null) {
+      sql.append(" LIMIT $").append(limitIndex);
+    }
+
+    return withConnection(connection -> {
+      Statement statement = connection.createStatement(sql.toString());
+      bind(statement, 1, toLocal(from), LocalDateTime.class);
+      bind(statement, 2, toLocal(to), LocalDateTime.class);
+      bind(statement, 3, toLocal(afterEntryTime), LocalDateTime.class);
+      bind(statement, 4, afterId, UUID.class);
+      bindAll(statement, 5, cameraIds, UUID.class);
+      bindAll(statement, tagsIndex, tags, String.class);
+      if (limit != null) {
+        bind(statement, limitIndex, limit, Integer.class);
+      }
+      return query(statement, R2dbcMetadataService::toMetadata);
+    });
+  }
+
+  /**
+   * Streams every page of metadata along with its entities, reading the next page only once the
+   * last has been read in full.
+   *
+   * @param page reads the page of at most {@link #PAGE_SIZE} following the given motion, or the
+   *     first page if it is null
+   */
+  private Flux<ImageData> paged(Function<ImageData, Flux<ImageMetadata>> page) {
+    Function<ImageData, Mono<List<ImageData>>> read = last -> page.apply(last)
+        .collectList()
+        .flatMap(metadata -> attachEntities(Flux.fromIterable(metadata)).collectList());
+    return read.apply(null)
+        .expand(data -> data.size() < PAGE_SIZE
+            ? Mono.empty()
+            : read.apply(data.get(data.size() - 1)))
+        .flatMapIterable(data -> data);
+  }
+
+  /**
+   * Attaches the entities to each piece of metadata as it streams past, fetching them with one
+   * query per 500 metadata rather than one query each.
+   */
+  private Flux<ImageData> attachEntities(Flux<ImageMetadata> metadata) {
+    return metadata
+        .buffer(ENTITY_QUERY_CHUNK_SIZE)
+        .concatMap(chunk -> findEntitiesByMetadataId(chunk)
+            .flatMapIterable(entities -> chunk.stream()
+                .map(imageMetadata -> ImageData.Builder.clone(
+                    imageMetadata,
+                    entities.getOrDefault(imageMetadata.getId(), new LinkedList<>())).build())
+                .collect(Collectors.toList())));
+  }
+
+  private Mono<Map<UUID, List<ImageEntity>>> findEntitiesByMetadataId(
+      List<ImageMetadata> metadata) {
+    List<UUID> ids = metadata.stream().map(ImageMetadata::getId).collect(Collectors.toList());
+    return withConnection(connection -> {
+      Statement statement = connection.createStatement("SELECT " + ENTITY_COLUMNS
+          + " FROM image_entity WHERE metadata_id IN (" + markers(1, ids.size()) + ")");
+      bindAll(statement, 1, ids, UUID.class);
+      return query(statement, R2dbcMetadataService::toEntity);
+    }).collect(Collectors.groupingBy(ImageEntity::getMetadataId));
+  }
+
+  private static Mono<Integer> deleteEntities(Connection connection, UUID metadataId) {
+    Statement statement = connection
+        .createStatement("DELETE FROM image_entity WHERE metadata_id = $1");
+    bind(statement, 1, metadataId, UUID.class);
+    return rowsUpdated(statement);
+  }
+
+  private static Mono<Integer> insertEntities(Connection connection, List<ImageEntity> entities) {
+    if (entities.isEmpty()) {
+      return Mono.just(0);
+    }
+    Statement statement = connection.createStatement("INSERT INTO image_entity"
+        + " (" + ENTITY_COLUMNS + ") VALUES ($1, $2, $3, $4, $5, $6, $7, $8, $9)");
+    for (int i = 0; i < entities.size(); i++) {
+      if (i > 0) {
+        statement.add();
+      }
+      ImageEntity entity = entities.get(i);
+      bind(statement, 1, entity.getId(), UUID.class);
+      bind(statement, 2, entity.getMetadataId(), UUID.class);
+      bind(statement, 3, (short) entity.getX(), Short.class);
+      bind(statement, 4, (short) entity.getY(), Short.class);
+      bind(statement, 5, (short) entity.getWidth(), Short.class);
+      bind(statement, 6, (short) entity.getHeight(), Short.class);
+      bind(statement, 7, entity.getType(), String.class);
+      bind(statement, 8, toLocal(entity.getCreatedDate()), LocalDateTime.class);
+      bind(statement, 9, toLocal(entity.getLastModifiedDate()), LocalDateTime.class);
+    }
+    return rowsUpdated(statement);
+  }
+
+  private static Statement selectById(Connection connection, UUID metadataId) {
+    Statement statement = connection.createStatement(
+        "SELECT " + METADATA_COLUMNS + " FROM image_metadata WHERE id = $1");
+    bind(statement, 1, metadataId, UUID.class);
+    return statement;
+  }
+
+  /**
+   * Runs the work on a connection of its own, closing it once the work completes, fails or is
+   * cancelled.
+   */
+  private <T> Flux<T> withConnection(Function<Connection, Publisher<T>> work) {
+    return Mono.from(connectionFactory.create())
+        .flatMapMany(connection -> Flux.defer(() -> work.apply(connection))
+            .onErrorResume(e -> Mono.from(connection.close()).then(Mono.<T>error(e)))
+            .concatWith(Mono.from(connection.close()).then(Mono.<T>empty()))
+            .doOnCancel(() -> Mono.from(connection.close()).subscribe()));
+  }
+
+  private <T> Flux<T> inTransaction(Function<Connection, Publisher<T>> work) {
+    return withConnection(connection -> Mono.from(connection.beginTransaction())
+        .thenMany(Flux.defer(() -> work.apply(connection)))
+        .concatWith(Mono.from(connection.commitTransaction()).then(Mono.<T>empty()))
+        .onErrorResume(e -> Mono.from(connection.rollbackTransaction()).then(Mono.<T>error(e))));
+  }
+
+  private static <T> Flux<T> query(Statement statement, Function<Row, T> mapper) {
+    return execute(statement)
+        .concatMap(result -> result.map((row, rowMetadata) -> mapper.apply(row)));
+  }
+
+  private static Mono<Integer> rowsUpdated(Statement statement) {
+    return execute(statement).flatMap(Result::getRowsUpdated).reduce(0, Integer::sum);
+  }
+
+  private static Flux<Result> execute(Statement statement) {
+    return Flux.defer(() -> Flux.from(statement.execute()));
+  }
+
+  private static String markers(int first, int count) {
+    StringBuilder markers = new StringBuilder();
+    for (int i = 0; i < count; i++) {
+      markers.append(i == 0 ? "$" : ", $").append(first + i);
+    }
+    return markers.toString();
+  }
+
+  private static void bind(Statement statement, int index, Object value, Class<?> type) {
+    if (value == null) {
+      statement.bindNull("$" + index, type);
+    } else {
+      statement.bind("$" + index, value);
+    }
+  }
+
+  private static void bindAll(Statement statement, int first, List<?> values, Class<?> type) {
+    for (int i = 0; i < values.size(); i++) {
+      bind(statement, first + i, values.get(i), type);
+    }
+  }
+
+  private static ImageMetadata toMetadata(Row row) {
+    return ImageMetadata.Builder.newBuilder()
+        .withId(row.get("id", UUID.class))
+        .withCameraId(row.get("camera_id", UUID.class))
+        .withEntryTime(toZoned(row.get("entry_time", LocalDateTime.class)))
+        .withExitTime(toZoned(row.get("exit_time", LocalDateTime.class)))
+        .withImageTime(toZoned(row.get("image_time", LocalDateTime.class)))
+        .withCreatedAt(toZoned(row.get("created_date", LocalDateTime.class)))
+        .withUpdatedAt(toZoned(row.get("last_modified_date", LocalDateTime.class)))
+        .withFileExists(Boolean.TRUE.equals(row.get("file_exists", Boolean.class)))
+        .build();
+  }
+
+  private static ImageEntity toEntity(Row row) {
+    return ImageEntity.Builder.newBuilder()
+        .withId(row.get("id", UUID.class))
+        .withMetadataId(row.get("metadata_id", UUID.class))
+        .withX(row.get("x", Number.class).intValue())
+        .withY(row.get("y", Number.class).intValue())
+        .withWidth(row.get("width", Number.class).intValue())
+        .withHeight(row.get("height", Number.class).intValue())
+        .withType(row.get("type", String.class))
+        .withCreatedDate(toZoned(row.get("created_date", LocalDateTime.class)))
+        .withLastModifiedDate(toZoned(row.get("last_modified_date", LocalDateTime.class)))
+        .build();
+  }
+
+  /**
+   * Times are stored without a zone in the system zone, as Hibernate does for the JPA
+   * implementation.
+   */
+  private static LocalDateTime toLocal(ZonedDateTime time) {
+    return time == null
+        ? null
+        : time.withZoneSameInstant(ZoneId.systemDefault()).toLocalDateTime();
+  }
+
+  private static ZonedDateTime toZoned(LocalDateTime time) {
+    return time == null ? null : time.atZone(ZoneId.systemDefault());
+  }
+}
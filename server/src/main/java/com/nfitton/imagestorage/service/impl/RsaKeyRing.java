@@ -0,0 +1,238 @@
+package com.nfitton.imagestorage.service.impl;
+
+import static com.nfitton.imagestorage.util.EncryptionUtil.loadRsaKeys;
+
+import com.nfitton.imagestorage.configuration.PathConfiguration;
+import com.nfitton.imagestorage.configuration.QueueConfiguration;
+import com.nfitton.imagestorage.exception.EncryptionException;
+import com.nfitton.imagestorage.exception.StartupException;
+import com.nfitton.imagestorage.util.EncryptionUtil;
+import com.nfitton.imagestorage.util.SegmentedEncryptionUtil;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.security.KeyPair;
+import java.security.NoSuchAlgorithmException;
+import java.security.PrivateKey;
+import java.security.PublicKey;
+import java.util.Optional;
+import javax.crypto.SecretKey;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.context.annotation.Profile;
+import org.springframework.jms.annotation.JmsListener;
+import org.springframework.stereotype.Component;
+
+/**
+ * The RSA key pair image keys are wrapped with, along with the pair being rotated away from.
+ *
+ * <p>While a rotation is in progress the new pair is kept next to the current one as
+ * {@code .next.key} and {@code .next.pub}, new keys are wrapped with it and keys are unwrapped
+ * with whichever pair they were wrapped with.
+ *
+ * <p>Nodes sharing the storage location, such as analysis workers, read the pairs again from disk
+ * when a rotation is published on the {@code keysRotated} topic, and whenever a key fails to
+ * unwrap in case the message was missed.
+ */
+@Component
+@Profile("local")
+public class RsaKeyRing {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(RsaKeyRing.class);
+  private static final String NEXT = ".next";
+
+  private final String fileBase;
+  private volatile KeyPair current;
+  private volatile KeyPair previous;
+
+  /**
+   * Loads the key pair from the storage location, generating one if there is none and picking
+   * up any rotation that was in progress.
+   *
+   * @param configuration the storage location configuration
+   */
+  public RsaKeyRing(PathConfiguration configuration) {
+    fileBase = configuration.getLocation();
+    if (!Files.exists(keyPath(fileBase + NEXT, ".pub"))
+        && Files.exists(keyPath(fileBase + NEXT, ".key"))) {
+      LOGGER.info("Completing interrupted key rotation");
+      moveKey(".key");
+    }
+
+    current = loadRsaKeys(fileBase).orElseGet(() -> {
+      try {
+        return EncryptionUtil.generateRsaKeys(fileBase);
+      } catch (NoSuchAlgorithmException e) {
+        throw new StartupException("Failed to create new RSA keys");
+      }
+    });
+    if (Files.exists(keyPath(fileBase + NEXT, ".key"))) {
+      LOGGER.info("Resuming with key rotation in progress");
+      previous = current;
+      current = loadRsaKeys(fileBase + NEXT)
+          .orElseThrow(() -> new StartupException("Failed to load rotated RSA keys"));
+    }
+  }
+
+  public PrivateKey getPrivate() {
+    return current.getPrivate();
+  }
+
+  public PublicKey getCurrentPublic() {
+    return current.getPublic();
+  }
+
+  public boolean isRotating() {
+    return previous != null;
+  }
+
+  /**
+   * Unwraps a key with the current public key, falling back to the previous one during a
+   * rotation. A key neither pair can unwrap may have been wrapped after another node rotated the
+   * keys, so the pairs are reloaded from disk and the key tried once more.
+   *
+   * @param wrappedKey the RSA wrapped key
+   * @return the unwrapped AES key
+   * @throws EncryptionException if neither key pair wrapped the key
+   */
+  public SecretKey unwrap(byte[] wrappedKey) {
+    try {
+      return SegmentedEncryptionUtil.unwrapKey(publicKeyFor(wrappedKey), wrappedKey);
+    } catch (EncryptionException e) {
+      LOGGER.info("Failed to unwrap key, reloading RSA keys in case they were rotated");
+      reload();
+      return SegmentedEncryptionUtil.unwrapKey(publicKeyFor(wrappedKey), wrappedKey);
+    }
+  }
+
+  /**
+   * Reloads the key pairs when another node begins or completes a rotation.
+   *
+   * @param state the state the rotation has reached
+   */
+  @JmsListener(
+      destination = QueueConfiguration.KEYS_ROTATED_TOPIC,
+      containerFactory = "topicFactory")
+  public void keysRotated(String state) {
+    LOGGER.debug("Key rotation {}, reloading RSA keys", state);
+    reload();
+  }
+
+  /**
+   * Reads the key pairs from disk again, picking up a rotation begun or completed by another
+   * node. The pairs held are kept if those stored cannot be read, such as while another node is
+   * moving them into place.
+   */
+  public synchronized void reload() {
+    Optional<KeyPair> next = Optional.empty();
+    if (Files.exists(keyPath(fileBase + NEXT, ".key"))) {
+      next = loadRsaKeys(fileBase + NEXT);
+      if (!next.isPresent()) {
+        LOGGER.warn("Kept RSA keys as the rotated keys could not be read");
+        return;
+      }
+    }
+    Optional<KeyPair> stored = loadRsaKeys(fileBase);
+    if (!stored.isPresent()) {
+      LOGGER.warn("Kept RSA keys as the stored keys could not be read");
+      return;
+    }
+    if (next.isPresent()) {
+      previous = stored.get();
+      current = next.get();
+    } else {
+      previous = null;
+      current = stored.get();
+    }
+  }
+
+  /**
+   * Returns the public key that can unwrap the given key.
+   *
+   * @param wrappedKey the RSA wrapped key
+   * @return the current public key, or the previous one if the key has not been rotated yet
+   */
+  public PublicKey publicKeyFor(byte[] wrappedKey) {
+    KeyPair old = previous;
+    if (old == null || isWrappedWith(current.getPublic(), wrappedKey)) {
+      return current.getPublic();
+    }
+    return old.getPublic();
+  }
+
+  /**
+   * Starts a rotation by generating and storing a new key pair, unless one is already underway.
+   *
+   * @return true if a new key pair was generated, false if a rotation is being resumed
+   */
+  public synchronized boolean beginRotation() {
+    if (isRotating()) {
+      return false;
+    }
+    KeyPair next;
+    try {
+      next = EncryptionUtil.generateRsaKeys(fileBase + NEXT);
+    } catch (NoSuchAlgorithmException e) {
+      throw new EncryptionException("Failed to create new RSA keys", e);
+    }
+    previous = current;
+    current = next;
+    LOGGER.info("Began key rotation");
+    return true;
+  }
+
+  /**
+   * Replaces the stored key pair with the new one, once every key has been re-wrapped.
+   */
+  public synchronized void completeRotation() {
+    if (!isRotating()) {
+      return;
+    }
+    moveKey(".pub");
+    moveKey(".key");
+    previous = null;
+    LOGGER.info("Completed key rotation");
+  }
+
+  /**
+   * Re-wraps a key with the current key pair.
+   *
+   * @param wrappedKey the RSA wrapped key
+   * @return the re-wrapped key, or null if it is already wrapped with the current key pair
+   */
+  byte[] rewrap(byte[] wrappedKey) {
+    KeyPair old = previous;
+    if (old == null || isWrappedWith(current.getPublic(), wrappedKey)) {
+      return null;
+    }
+    SecretKey key = SegmentedEncryptionUtil.unwrapKey(old.getPublic(), wrappedKey);
+    return SegmentedEncryptionUtil.wrapKey(current.getPrivate(), key);
+  }
+
+  private static boolean isWrappedWith(PublicKey pub, byte[] wrappedKey) {
+    try {
+      SegmentedEncryptionUtil.unwrapKey(pub, wrappedKey);
+      return true;
+    } catch (EncryptionException e) {
+      return false;
+    }
+  }
+
+  private static Path keyPath(String base, String extension) {
+    return Paths.get(base + extension);
+  }
+
+  private void moveKey(String extension) {
+    try {
+      Files.move(
+          keyPath(fileBase + NEXT, extension),
+          keyPath(fileBase, extension),
+          StandardCopyOption.REPLACE_EXISTING,
+          StandardCopyOption.ATOMIC_MOVE);
+    } catch (IOException e) {
+      throw new EncryptionException("Failed to replace RSA key " + extension, e);
+    }
+  }
+}
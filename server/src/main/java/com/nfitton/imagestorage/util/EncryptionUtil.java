@@ -2,13 +2,16 @@ package com.nfitton.imagestorage.util;
 
 import com.nfitton.imagestorage.exception.EncryptionException;
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
 import java.nio.file.Files;
 import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.security.GeneralSecurityException;
 import java.security.InvalidAlgorithmParameterException;
 import java.security.InvalidKeyException;
 import java.security.KeyFactory;
@@ -28,41 +31,97 @@ import javax.crypto.IllegalBlockSizeException;
 import javax.crypto.KeyGenerator;
 import javax.crypto.NoSuchPaddingException;
 import javax.crypto.SecretKey;
+import javax.crypto.ShortBufferException;
 import javax.crypto.spec.IvParameterSpec;
 import javax.crypto.spec.SecretKeySpec;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.core.io.buffer.DataBufferFactory;
+import org.springframework.core.io.buffer.DataBufferUtils;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
 
 /**
  * Regards to jaysridhar for the tutorial on AES and RSA encryption.
  */
 public class EncryptionUtil {
+  static final int DEFAULT_BUFFER_SIZE = 64 * 1024;
+  public static final int IV_LENGTH = 128 / 8;
+
   private static final Logger LOGGER = LoggerFactory.getLogger(EncryptionUtil.class);
 
-  private static void processFile(Cipher ci, InputStream in, OutputStream out)
-      throws IllegalBlockSizeException, BadPaddingException, IOException {
-    byte[] ibuf = new byte[1024];
-    int len;
-    while ((len = in.read(ibuf)) != -1) {
-      byte[] obuf = ci.update(ibuf, 0, len);
-      if (obuf != null) {
-        out.write(obuf);
-      }
-    }
-    byte[] obuf = ci.doFinal();
-    if (obuf != null) {
-      out.write(obuf);
+  /**
+   * Runs everything readable from the input channel through the cipher into the output channel.
+   *
+   * <p>The input and output buffers are allocated once and reused for every chunk, so no garbage
+   * is created per {@link Cipher#update(ByteBuffer, ByteBuffer)} call however large the file.
+   *
+   * @param ci the initialised cipher
+   * @param in the channel to read from
+   * @param out the channel to write to
+   * @param bufferSize the number of bytes to read and process at a time
+   */
+  public static void processFile(
+      Cipher ci, ReadableByteChannel in, WritableByteChannel out, int bufferSize)
+      throws ShortBufferException, IllegalBlockSizeException, BadPaddingException, IOException {
+    ByteBuffer ibuf = ByteBuffer.allocate(bufferSize);
+    // Room for the blocks a cipher may be holding back on top of a full input buffer
+    int blockSize = Math.max(ci.getBlockSize(), 1);
+    ByteBuffer obuf = ByteBuffer.allocate(ci.getOutputSize(bufferSize) + 2 * blockSize);
+    while (in.read(ibuf) != -1) {
+      ibuf.flip();
+      obuf.clear();
+      ci.update(ibuf, obuf);
+      obuf.flip();
+      writeFully(out, obuf);
+      ibuf.clear();
     }
+    ibuf.flip();
+    obuf.clear();
+    ci.doFinal(ibuf, obuf);
+    obuf.flip();
+    writeFully(out, obuf);
   }
 
   private static void processFile(Cipher ci, String inFile, String outFile)
-      throws IllegalBlockSizeException, BadPaddingException, IOException {
-    try (FileInputStream in = new FileInputStream(inFile);
-        FileOutputStream out = new FileOutputStream(outFile)) {
-      processFile(ci, in, out);
+      throws ShortBufferException, IllegalBlockSizeException, BadPaddingException, IOException {
+    try (FileChannel in = FileChannel.open(Paths.get(inFile), StandardOpenOption.READ);
+        FileChannel out = openForWrite(outFile)) {
+      processFile(ci, in, out, DEFAULT_BUFFER_SIZE);
+    }
+  }
+
+  private static FileChannel openForWrite(String file) throws IOException {
+    return FileChannel.open(
+        Paths.get(file),
+        StandardOpenOption.CREATE,
+        StandardOpenOption.WRITE,
+        StandardOpenOption.TRUNCATE_EXISTING);
+  }
+
+  private static void writeFully(WritableByteChannel out, ByteBuffer buffer) throws IOException {
+    while (buffer.hasRemaining()) {
+      out.write(buffer);
     }
   }
 
+  private static void readFully(ReadableByteChannel in, ByteBuffer buffer) throws IOException {
+    while (buffer.hasRemaining()) {
+      if (in.read(buffer) == -1) {
+        throw new EncryptionException("File not encrypted with RAS/AES");
+      }
+    }
+    buffer.flip();
+  }
+
+  /**
+   * Exposes the whole capacity of a newly allocated buffer for a cipher to write into.
+   */
+  private static ByteBuffer writable(DataBuffer output) {
+    return output.asByteBuffer(0, output.capacity());
+  }
+
   public static KeyPair generateRsaKeys(String fileBase) throws NoSuchAlgorithmException {
     LOGGER.debug("Creating new keypair");
     KeyPairGenerator kpg = KeyPairGenerator.getInstance("RSA");
@@ -112,7 +171,11 @@ public class EncryptionUtil {
       IllegalBlockSizeException, BadPaddingException {
     Cipher cipher = Cipher.getInstance("RSA/ECB/PKCS1Padding");
     cipher.init(Cipher.ENCRYPT_MODE, pvt);
-    processFile(cipher, inputFile, outputFile + ".enc");
+    try {
+      processFile(cipher, inputFile, outputFile + ".enc");
+    } catch (ShortBufferException e) {
+      throw new EncryptionException("Failed to encrypt with RSA", e);
+    }
   }
 
   static void doDecrypt(String pubKeyFile, String inputFile, String outputFile)
@@ -128,7 +191,11 @@ public class EncryptionUtil {
 
     Cipher cipher = Cipher.getInstance("RSA/ECB/PKCS1Padding");
     cipher.init(Cipher.DECRYPT_MODE, pub);
-    processFile(cipher, inputFile, outputFile + ".ver");
+    try {
+      processFile(cipher, inputFile, outputFile + ".ver");
+    } catch (ShortBufferException e) {
+      throw new EncryptionException("Failed to decrypt with RSA", e);
+    }
   }
 
   static void encryptWithRsaAes(String pvtKeyFile, String inputFile, String outputFile)
@@ -143,6 +210,65 @@ public class EncryptionUtil {
     encryptWithAes(pvtKeyFile, inputFile, outputFile);
   }
 
+  /**
+   * Encrypts the given content as it arrives, producing the same RSA/AES format as
+   * {@link #encryptWithRsaAes(PrivateKey, String, String)} without the plaintext touching disk.
+   *
+   * <p>The returned {@link Flux} starts with the wrapped key and IV header, followed by the
+   * encrypted content. Each received buffer is encrypted in place into a buffer from the factory,
+   * which pools them under Netty, and released once it has been encrypted.
+   *
+   * @param pvt the private key to wrap the generated AES key with
+   * @param content the plaintext to encrypt
+   * @param bufferFactory the factory to allocate encrypted buffers from
+   * @return the encrypted content, header first
+   */
+  public static Flux<DataBuffer> encryptWithRsaAes(
+      PrivateKey pvt, Flux<DataBuffer> content, DataBufferFactory bufferFactory) {
+    return Flux.defer(() -> {
+      Cipher ci;
+      byte[] header;
+      try {
+        SecretKey skey = generateAesKey();
+        byte[] iv = generateIv();
+        byte[] wrappedKey = wrapKey(pvt, skey);
+        header = new byte[wrappedKey.length + iv.length];
+        System.arraycopy(wrappedKey, 0, header, 0, wrappedKey.length);
+        System.arraycopy(iv, 0, header, wrappedKey.length, iv.length);
+        ci = Cipher.getInstance("AES/CBC/PKCS5Padding");
+        ci.init(Cipher.ENCRYPT_MODE, skey, new IvParameterSpec(iv));
+      } catch (GeneralSecurityException e) {
+        return Flux.error(new EncryptionException("Failed to initialise encryption", e));
+      }
+
+      Flux<DataBuffer> body = content.handle((buffer, sink) -> {
+        DataBuffer output =
+            bufferFactory.allocateBuffer(ci.getOutputSize(buffer.readableByteCount()));
+        try {
+          int length = ci.update(buffer.asByteBuffer(), writable(output));
+          if (length > 0) {
+            sink.next(output.writePosition(length));
+          } else {
+            DataBufferUtils.release(output);
+          }
+        } catch (ShortBufferException e) {
+          DataBufferUtils.release(output);
+          sink.error(new EncryptionException("Failed to encrypt chunk", e));
+        } finally {
+          DataBufferUtils.release(buffer);
+        }
+      });
+      Mono<DataBuffer> trailer = Mono.fromCallable(() -> {
+        try {
+          return bufferFactory.wrap(ci.doFinal());
+        } catch (GeneralSecurityException e) {
+          throw new EncryptionException("Failed to finalise encryption", e);
+        }
+      });
+      return Flux.concat(Mono.just(bufferFactory.wrap(header)), body, trailer);
+    });
+  }
+
   private static void encryptWithAes(String pvtKeyFile, String inputFile, String outputFile)
       throws IOException, NoSuchAlgorithmException, NoSuchPaddingException, InvalidKeyException,
       IllegalBlockSizeException, BadPaddingException, InvalidAlgorithmParameterException {
@@ -153,28 +279,47 @@ public class EncryptionUtil {
   private static void encryptWithAes(PrivateKey pvt, String inputFile, String outputFile)
       throws IOException, NoSuchAlgorithmException, NoSuchPaddingException, InvalidKeyException,
       IllegalBlockSizeException, BadPaddingException, InvalidAlgorithmParameterException {
-    SecureRandom secureRandom = new SecureRandom();
+    SecretKey skey = generateAesKey();
+    byte[] iv = generateIv();
+
+    try (FileChannel out = openForWrite(outputFile + ".enc");
+        FileChannel in = FileChannel.open(Paths.get(inputFile), StandardOpenOption.READ)) {
+      writeFully(out, ByteBuffer.wrap(wrapKey(pvt, skey)));
+      writeFully(out, ByteBuffer.wrap(iv));
+      Cipher ci = Cipher.getInstance("AES/CBC/PKCS5Padding");
+      ci.init(Cipher.ENCRYPT_MODE, skey, new IvParameterSpec(iv));
+      processFile(ci, in, out, DEFAULT_BUFFER_SIZE);
+    } catch (ShortBufferException e) {
+      throw new EncryptionException("Failed to encrypt with AES", e);
+    }
+  }
 
+  static SecretKey generateAesKey() throws NoSuchAlgorithmException {
     KeyGenerator kgen = KeyGenerator.getInstance("AES");
     kgen.init(128);
-    SecretKey skey = kgen.generateKey();
+    return kgen.generateKey();
+  }
 
+  private static byte[] generateIv() {
     byte[] iv = new byte[128 / 8];
-    secureRandom.nextBytes(iv);
-    IvParameterSpec ivspec = new IvParameterSpec(iv);
+    new SecureRandom().nextBytes(iv);
+    return iv;
+  }
 
-    try (FileOutputStream out = new FileOutputStream(outputFile + ".enc")) {
-      Cipher cipher = Cipher.getInstance("RSA/ECB/PKCS1Padding");
-      cipher.init(Cipher.ENCRYPT_MODE, pvt);
-      byte[] b = cipher.doFinal(skey.getEncoded());
-      out.write(b);
-      out.write(iv);
-      Cipher ci = Cipher.getInstance("AES/CBC/PKCS5Padding");
-      ci.init(Cipher.ENCRYPT_MODE, skey, ivspec);
-      try (FileInputStream in = new FileInputStream(inputFile)) {
-        processFile(ci, in, out);
-      }
-    }
+  static byte[] wrapKey(PrivateKey pvt, SecretKey skey)
+      throws NoSuchAlgorithmException, NoSuchPaddingException, InvalidKeyException,
+      IllegalBlockSizeException, BadPaddingException {
+    Cipher cipher = Cipher.getInstance("RSA/ECB/PKCS1Padding");
+    cipher.init(Cipher.ENCRYPT_MODE, pvt);
+    return cipher.doFinal(skey.getEncoded());
+  }
+
+  static SecretKey unwrapKey(PublicKey pub, byte[] wrappedKey)
+      throws NoSuchAlgorithmException, NoSuchPaddingException, InvalidKeyException,
+      IllegalBlockSizeException, BadPaddingException {
+    Cipher cipher = Cipher.getInstance("RSA/ECB/PKCS1Padding");
+    cipher.init(Cipher.DECRYPT_MODE, pub);
+    return new SecretKeySpec(cipher.doFinal(wrappedKey), "AES");
   }
 
   static void decryptWithRsaAes(String pubKeyFile, String inputFile, String outputFile) {
@@ -186,40 +331,86 @@ public class EncryptionUtil {
     decryptWithAes(pubKeyFile, inputFile, outputFile);
   }
 
+  /**
+   * Decrypts content in the RSA/AES format as it arrives, without writing the plaintext to disk.
+   *
+   * <p>The wrapped key and IV header is collected from the leading buffers, after which every
+   * received buffer is decrypted straight into a buffer from the factory and released as soon as
+   * it is read.
+   *
+   * @param pub the public key to unwrap the AES key with
+   * @param content the encrypted content, header first
+   * @param bufferFactory the factory to allocate decrypted buffers from
+   * @return the decrypted content
+   */
+  public static Flux<DataBuffer> decryptWithRsaAes(
+      PublicKey pub, Flux<DataBuffer> content, DataBufferFactory bufferFactory) {
+    return Flux.defer(() -> decrypt(new StreamDecryptor(pub), content, bufferFactory));
+  }
+
+  /**
+   * Decrypts the content of a file in the RSA/AES format with a key that has already been
+   * unwrapped, so the RSA unwrap can be skipped when the key is cached.
+   *
+   * @param key the unwrapped AES key
+   * @param iv the IV following the wrapped key in the header
+   * @param content the encrypted content following the header
+   * @param bufferFactory the factory to allocate decrypted buffers from
+   * @return the decrypted content
+   */
+  public static Flux<DataBuffer> decryptWithRsaAes(
+      SecretKey key, byte[] iv, Flux<DataBuffer> content, DataBufferFactory bufferFactory) {
+    return Flux.defer(() -> {
+      StreamDecryptor decryptor;
+      try {
+        Cipher ci = Cipher.getInstance("AES/CBC/PKCS5Padding");
+        ci.init(Cipher.DECRYPT_MODE, key, new IvParameterSpec(iv));
+        decryptor = new StreamDecryptor(ci);
+      } catch (GeneralSecurityException e) {
+        return Flux.error(new EncryptionException("Error throws during decryption", e));
+      }
+      return decrypt(decryptor, content, bufferFactory);
+    });
+  }
+
+  private static Flux<DataBuffer> decrypt(
+      StreamDecryptor decryptor, Flux<DataBuffer> content, DataBufferFactory bufferFactory) {
+    Flux<DataBuffer> body = content.handle((buffer, sink) -> {
+      try {
+        DataBuffer output = decryptor.update(buffer.asByteBuffer(), bufferFactory);
+        if (output != null) {
+          sink.next(output);
+        }
+      } finally {
+        DataBufferUtils.release(buffer);
+      }
+    });
+    return Flux.concat(body, Mono.fromCallable(() -> bufferFactory.wrap(decryptor.finish())));
+  }
+
   private static void decryptWithAes(String pubKeyFile, String inputFile, String outputFile) {
     PublicKey pub = loadPublicKey(pubKeyFile);
     decryptWithAes(pub, inputFile, outputFile);
   }
 
   private static void decryptWithAes(PublicKey pub, String inputFile, String outputFile) {
-    try (FileInputStream in = new FileInputStream(inputFile)) {
-      SecretKeySpec skey;
+    try (FileChannel in = FileChannel.open(Paths.get(inputFile), StandardOpenOption.READ)) {
+      ByteBuffer header = ByteBuffer.allocate(256 + 128 / 8);
+      readFully(in, header);
+
       Cipher cipher = Cipher.getInstance("RSA/ECB/PKCS1Padding");
       cipher.init(Cipher.DECRYPT_MODE, pub);
-      byte[] b = new byte[256];
-      int rsaLen = in.read(b);
-      if (rsaLen == -1) {
-        throw new EncryptionException("File not encrypted with RAS/AES");
-      }
-      byte[] keyb = cipher.doFinal(b);
-      skey = new SecretKeySpec(keyb, "AES");
-
-      byte[] iv = new byte[128 / 8];
-      int aesLen = in.read(iv);
-      if (aesLen == -1) {
-        throw new EncryptionException("File not encrypted with RAS/AES");
-      }
-      IvParameterSpec ivspec = new IvParameterSpec(iv);
+      byte[] keyb = cipher.doFinal(header.array(), 0, 256);
+      SecretKeySpec skey = new SecretKeySpec(keyb, "AES");
+      IvParameterSpec ivspec = new IvParameterSpec(header.array(), 256, 128 / 8);
 
       Cipher ci = Cipher.getInstance("AES/CBC/PKCS5Padding");
       ci.init(Cipher.DECRYPT_MODE, skey, ivspec);
 
-      try (FileOutputStream out = new FileOutputStream(outputFile + ".ver")) {
-        processFile(ci, in, out);
+      try (FileChannel out = openForWrite(outputFile + ".ver")) {
+        processFile(ci, in, out, DEFAULT_BUFFER_SIZE);
       }
-    } catch (IOException | NoSuchAlgorithmException | InvalidKeyException
-        | InvalidAlgorithmParameterException | NoSuchPaddingException
-        | BadPaddingException | IllegalBlockSizeException e) {
+    } catch (IOException | GeneralSecurityException e) {
       throw new EncryptionException("Error throws during decryption", e);
     }
   }
@@ -245,4 +436,81 @@ public class EncryptionUtil {
       throw new EncryptionException("Failed to load private key", e);
     }
   }
-}
\ No newline at end of file
+
+  /**
+   * Stateful decryptor for the RSA/AES format, reading the header from the first bytes given.
+   */
+  private static final class StreamDecryptor {
+
+    private final PublicKey pub;
+    private final ByteBuffer header = ByteBuffer.allocate(256 + 128 / 8);
+    private Cipher cipher;
+
+    private StreamDecryptor(PublicKey pub) {
+      this.pub = pub;
+    }
+
+    private StreamDecryptor(Cipher cipher) {
+      this.pub = null;
+      this.cipher = cipher;
+    }
+
+    /**
+     * Decrypts the given input straight into a buffer from the factory, collecting the header
+     * from it first if it has not been read yet.
+     *
+     * @return the decrypted bytes, or null if the input was all header or held back
+     */
+    private DataBuffer update(ByteBuffer input, DataBufferFactory bufferFactory) {
+      if (cipher == null) {
+        ByteBuffer leading = input.duplicate();
+        leading.limit(leading.position() + Math.min(header.remaining(), input.remaining()));
+        input.position(leading.limit());
+        header.put(leading);
+        if (header.hasRemaining()) {
+          return null;
+        }
+        cipher = initCipher();
+      }
+      DataBuffer output = bufferFactory.allocateBuffer(cipher.getOutputSize(input.remaining()));
+      try {
+        int length = cipher.update(input, writable(output));
+        if (length == 0) {
+          DataBufferUtils.release(output);
+          return null;
+        }
+        return output.writePosition(length);
+      } catch (ShortBufferException e) {
+        DataBufferUtils.release(output);
+        throw new EncryptionException("Error throws during decryption", e);
+      }
+    }
+
+    private byte[] finish() {
+      if (cipher == null) {
+        throw new EncryptionException("File not encrypted with RAS/AES");
+      }
+      try {
+        return cipher.doFinal();
+      } catch (GeneralSecurityException e) {
+        throw new EncryptionException("Error throws during decryption", e);
+      }
+    }
+
+    private Cipher initCipher() {
+      try {
+        Cipher rsa = Cipher.getInstance("RSA/ECB/PKCS1Padding");
+        rsa.init(Cipher.DECRYPT_MODE, pub);
+        byte[] keyb = rsa.doFinal(header.array(), 0, 256);
+        SecretKeySpec skey = new SecretKeySpec(keyb, "AES");
+        IvParameterSpec ivspec = new IvParameterSpec(header.array(), 256, 128 / 8);
+
+        Cipher ci = Cipher.getInstance("AES/CBC/PKCS5Padding");
+        ci.init(Cipher.DECRYPT_MODE, skey, ivspec);
+        return ci;
+      } catch (GeneralSecurityException e) {
+        throw new EncryptionException("Error throws during decryption", e);
+      }
+    }
+  }
+}
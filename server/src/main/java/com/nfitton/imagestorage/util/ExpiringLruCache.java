@@ -0,0 +1,153 @@
+package com.nfitton.imagestorage.util;
+
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.MeterBinder;
+import java.time.Duration;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+
+/**
+ * A bounded, least recently used cache whose entries expire a fixed time after being written.
+ *
+ * <p>Hit, miss, put and eviction counts and the current size are published under the
+ * {@code cache.*} meters, tagged with the name of the cache.
+ *
+ * @param <K> the type of the keys
+ * @param <V> the type of the cached values
+ */
+public class ExpiringLruCache<K, V> implements MeterBinder {
+
+  private final String name;
+  private final long ttlNanos;
+  private final Map<K, CachedValue<V>> entries;
+  private final LongAdder hits = new LongAdder();
+  private final LongAdder misses = new LongAdder();
+  private final LongAdder puts = new LongAdder();
+  private final LongAdder evictions = new LongAdder();
+
+  /**
+   * Creates a new cache.
+   *
+   * @param name the name to publish metrics under
+   * @param maximumSize the number of entries to keep before evicting the least recently used
+   * @param ttl how long an entry is kept after it is written
+   */
+  public ExpiringLruCache(String name, int maximumSize, Duration ttl) {
+    this.name = name;
+    this.ttlNanos = ttl.toNanos();
+    this.entries = new LinkedHashMap<K, CachedValue<V>>(16, 0.75f, true) {
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<K, CachedValue<V>> eldest) {
+        boolean evict = size() > maximumSize;
+        if (evict) {
+          evictions.increment();
+        }
+        return evict;
+      }
+    };
+  }
+
+  /**
+   * Returns the value cached for the given key if there is one and it has not expired.
+   *
+   * @param key the key to look up
+   * @return the cached value, or empty on a miss
+   */
+  public Optional<V> get(K key) {
+    synchronized (entries) {
+      CachedValue<V> cached = entries.get(key);
+      if (cached != null && cached.expiresAt - System.nanoTime() > 0) {
+        hits.increment();
+        return Optional.of(cached.value);
+      } else if (cached != null) {
+        entries.remove(key);
+        evictions.increment();
+      }
+    }
+    misses.increment();
+    return Optional.empty();
+  }
+
+  /**
+   * Returns the value cached for the given key, loading and caching it on a miss.
+   *
+   * <p>The loader is called outside of the cache lock, so concurrent misses on the same key may
+   * each load the value.
+   *
+   * @param key the key to look up
+   * @param loader creates the value when it is not cached
+   * @return the cached or loaded value
+   */
+  public V get(K key, Function<? super K, ? extends V> loader) {
+    return get(key).orElseGet(() -> {
+      V value = loader.apply(key);
+      put(key, value);
+      return value;
+    });
+  }
+
+  public void put(K key, V value) {
+    synchronized (entries) {
+      entries.put(key, new CachedValue<>(value, System.nanoTime() + ttlNanos));
+    }
+    puts.increment();
+  }
+
+  public void invalidate(K key) {
+    synchronized (entries) {
+      entries.remove(key);
+    }
+  }
+
+  public void invalidateAll() {
+    synchronized (entries) {
+      entries.clear();
+    }
+  }
+
+  public int size() {
+    synchronized (entries) {
+      return entries.size();
+    }
+  }
+
+  @Override
+  public void bindTo(MeterRegistry registry) {
+    FunctionCounter.builder("cache.gets", hits, LongAdder::doubleValue)
+        .tags("cache", name, "result", "hit")
+        .description("The number of times cache lookup methods have returned a cached value")
+        .register(registry);
+    FunctionCounter.builder("cache.gets", misses, LongAdder::doubleValue)
+        .tags("cache", name, "result", "miss")
+        .description("The number of times cache lookup methods have not returned a value")
+        .register(registry);
+    FunctionCounter.builder("cache.puts", puts, LongAdder::doubleValue)
+        .tags("cache", name)
+        .description("The number of entries added to the cache")
+        .register(registry);
+    FunctionCounter.builder("cache.evictions", evictions, LongAdder::doubleValue)
+        .tags("cache", name)
+        .description("The number of entries evicted for size or expiry")
+        .register(registry);
+    Gauge.builder("cache.size", this, cache -> cache.size())
+        .tags("cache", name)
+        .description("The number of entries in the cache")
+        .register(registry);
+  }
+
+  private static final class CachedValue<V> {
+
+    private final V value;
+    private final long expiresAt;
+
+    private CachedValue(V value, long expiresAt) {
+      this.value = value;
+      this.expiresAt = expiresAt;
+    }
+  }
+}
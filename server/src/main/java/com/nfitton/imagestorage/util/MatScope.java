@@ -0,0 +1,97 @@
+package com.nfitton.imagestorage.util;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+import org.opencv.core.Mat;
+
+/**
+ * Owns the native buffers of the {@link Mat}s allocated while analysing an image, releasing them
+ * all when the scope is closed rather than leaving them to the finalizer.
+ *
+ * <p>Work reading the Mats runs through {@link #use(Supplier)}. Closing the scope while work is
+ * still running, such as when the analysis is cancelled, defers the release until that work has
+ * finished, so a buffer is never released while native code is reading it.
+ *
+ * <p>The number of Mats owned by open scopes and the bytes released by closed scopes are kept
+ * across all scopes for metrics.
+ */
+public final class MatScope implements AutoCloseable {
+
+  private static final AtomicInteger LIVE_MATS = new AtomicInteger();
+  private static final LongAdder RELEASED_BYTES = new LongAdder();
+
+  private final Deque<Mat> mats = new ArrayDeque<>();
+  private int active;
+  private boolean closed;
+
+  public static int getLiveMats() {
+    return LIVE_MATS.get();
+  }
+
+  public static long getReleasedBytes() {
+    return RELEASED_BYTES.sum();
+  }
+
+  /**
+   * Takes ownership of a Mat, to be released when the scope closes.
+   *
+   * @param mat the Mat to own
+   * @param <T> the type of the Mat
+   * @return the same Mat
+   */
+  public synchronized <T extends Mat> T add(T mat) {
+    if (closed) {
+      mat.release();
+      throw new IllegalStateException("Scope is already closed");
+    }
+    mats.push(mat);
+    LIVE_MATS.incrementAndGet();
+    return mat;
+  }
+
+  /**
+   * Runs work that reads the Mats of this scope, holding off their release until it finishes.
+   *
+   * @param work the work to run
+   * @param <T> the type of the work's result
+   * @return the result of the work
+   */
+  public <T> T use(Supplier<T> work) {
+    synchronized (this) {
+      if (closed) {
+        throw new IllegalStateException("Scope is already closed");
+      }
+      active++;
+    }
+    try {
+      return work.get();
+    } finally {
+      synchronized (this) {
+        active--;
+        if (closed && active == 0) {
+          releaseAll();
+        }
+      }
+    }
+  }
+
+  @Override
+  public synchronized void close() {
+    closed = true;
+    if (active == 0) {
+      releaseAll();
+    }
+  }
+
+  private void releaseAll() {
+    while (!mats.isEmpty()) {
+      Mat mat = mats.pop();
+      RELEASED_BYTES.add(mat.total() * mat.elemSize());
+      mat.release();
+      LIVE_MATS.decrementAndGet();
+    }
+  }
+}
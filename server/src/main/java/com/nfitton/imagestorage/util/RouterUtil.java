@@ -8,13 +8,16 @@ import com.nfitton.imagestorage.exception.ForbiddenException;
 import com.nfitton.imagestorage.exception.InternalServerException;
 import com.nfitton.imagestorage.exception.NotFoundException;
 import com.nfitton.imagestorage.exception.OversizeException;
+import com.nfitton.imagestorage.exception.TooManyRequestsException;
 import com.nfitton.imagestorage.exception.ValidationException;
 import com.nfitton.imagestorage.exception.VerificationException;
 import com.nfitton.imagestorage.service.AuthenticationService;
 import java.util.List;
 import java.util.UUID;
+import java.util.concurrent.RejectedExecutionException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpStatus;
 import org.springframework.web.reactive.function.server.ServerRequest;
 import org.springframework.web.reactive.function.server.ServerResponse;
@@ -84,6 +87,16 @@ public class RouterUtil {
       status = ServerResponse.status(HttpStatus.INTERNAL_SERVER_ERROR);
     } else if (e instanceof ForbiddenException) {
       status = ServerResponse.status(HttpStatus.FORBIDDEN);
+    } else if (e instanceof TooManyRequestsException) {
+      TooManyRequestsException exception = (TooManyRequestsException) e;
+      return ServerResponse.status(HttpStatus.TOO_MANY_REQUESTS)
+          .header(HttpHeaders.RETRY_AFTER,
+              String.valueOf(exception.getRetryAfter().getSeconds()))
+          .syncBody(OutgoingDataV1.errorOnly(exception.getMessage()));
+    } else if (e instanceof RejectedExecutionException) {
+      LOGGER.warn("Rejected request as the processing queue is full");
+      return ServerResponse.status(HttpStatus.SERVICE_UNAVAILABLE)
+          .syncBody(OutgoingDataV1.errorOnly("Server is busy, try again later"));
     } else if (e instanceof ValidationException) {
       ValidationException exception = (ValidationException) e;
       return ServerResponse.badRequest()
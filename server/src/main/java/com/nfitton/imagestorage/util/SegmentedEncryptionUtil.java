@@ -0,0 +1,480 @@
+package com.nfitton.imagestorage.util;
+
+import com.nfitton.imagestorage.exception.EncryptionException;
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.security.PrivateKey;
+import java.security.PublicKey;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.UUID;
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.GCMParameterSpec;
+import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.core.io.buffer.DataBufferFactory;
+import org.springframework.core.io.buffer.DataBufferUtils;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+/**
+ * Versioned, segmented AES/GCM file format allowing any part of a file to be decrypted on its own.
+ *
+ * <p>A file is a header followed by independently authenticated segments:
+ * <pre>
+ *   magic (6) | version (1) | segment size (4) | nonce prefix (7) | key
+ *   segment 0 | segment 1 | ... | segment n
+ * </pre>
+ * In version 1 the key is the file's own AES key wrapped with RSA (256), in version 2 it is the
+ * id of a shared data key (16) stored alongside the files, so no RSA is needed per file.
+ * Every segment holds {@link #SEGMENT_SIZE} bytes of plaintext, apart from the last which may be
+ * shorter, and is followed by its GCM tag. The nonce of a segment is the nonce prefix, the segment
+ * index and a flag marking the last segment, so segments cannot be reordered or truncated.
+ */
+public class SegmentedEncryptionUtil {
+
+  public static final int SEGMENT_SIZE = 64 * 1024;
+  public static final int MAX_HEADER_LENGTH = 274;
+  public static final int WRAPPED_KEY_OFFSET = 18;
+  public static final int WRAPPED_KEY_LENGTH = 256;
+
+  private static final byte[] MAGIC = {'B', 'S', 'T', 'S', 'E', 'G'};
+  private static final byte WRAPPED_KEY_VERSION = 1;
+  private static final byte KEY_ID_VERSION = 2;
+  private static final int NONCE_PREFIX_LENGTH = 7;
+  private static final int KEY_ID_LENGTH = 16;
+  private static final int PREAMBLE_LENGTH = WRAPPED_KEY_OFFSET;
+  private static final int TAG_LENGTH = 16;
+
+  private static final ThreadLocal<Cipher> DECRYPT_CIPHER = ThreadLocal.withInitial(() -> {
+    try {
+      return Cipher.getInstance("AES/GCM/NoPadding");
+    } catch (GeneralSecurityException e) {
+      throw new EncryptionException("AES/GCM is not available", e);
+    }
+  });
+
+  /**
+   * Returns true if the given leading bytes of a file start with the segmented format header.
+   *
+   * @param leading the first bytes of a file
+   * @return true if the file is in the segmented format, false if it is in the legacy format
+   */
+  public static boolean isSegmented(ByteBuffer leading) {
+    if (leading.remaining() < MAGIC.length) {
+      return false;
+    }
+    for (int i = 0; i < MAGIC.length; i++) {
+      if (leading.get(leading.position() + i) != MAGIC[i]) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Encrypts the given content into the segmented format as it arrives.
+   *
+   * <p>Received buffers are released once they have been copied into the current segment, a
+   * segment is only emitted once it is known whether or not it is the last one.
+   *
+   * @param pvt the private key to wrap the generated AES key with
+   * @param content the plaintext to encrypt
+   * @param bufferFactory the factory to allocate encrypted buffers from
+   * @return the encrypted file, header first
+   */
+  public static Flux<DataBuffer> encrypt(
+      PrivateKey pvt, Flux<DataBuffer> content, DataBufferFactory bufferFactory) {
+    return Flux.defer(() -> {
+      try {
+        SecretKey key = EncryptionUtil.generateAesKey();
+        byte[] noncePrefix = newNoncePrefix();
+        byte[] wrappedKey = EncryptionUtil.wrapKey(pvt, key);
+        return encrypt(
+            key, noncePrefix, writeHeader(noncePrefix, wrappedKey), content, bufferFactory);
+      } catch (GeneralSecurityException e) {
+        return Flux.error(new EncryptionException("Failed to initialise encryption", e));
+      }
+    });
+  }
+
+  /**
+   * Encrypts the given content into the segmented format with a shared data key.
+   *
+   * <p>The header references the data key by id rather than holding a wrapped copy of it, so it
+   * is up to the caller to keep the wrapped data key for as long as the file exists.
+   *
+   * @param key the data key to encrypt with
+   * @param keyId the id the data key is stored under
+   * @param content the plaintext to encrypt
+   * @param bufferFactory the factory to allocate encrypted buffers from
+   * @return the encrypted file, header first
+   */
+  public static Flux<DataBuffer> encrypt(
+      SecretKey key, UUID keyId, Flux<DataBuffer> content, DataBufferFactory bufferFactory) {
+    return Flux.defer(() -> {
+      byte[] noncePrefix = newNoncePrefix();
+      try {
+        return encrypt(key, noncePrefix, writeHeader(noncePrefix, keyId), content, bufferFactory);
+      } catch (GeneralSecurityException e) {
+        return Flux.error(new EncryptionException("Failed to initialise encryption", e));
+      }
+    });
+  }
+
+  private static Flux<DataBuffer> encrypt(
+      SecretKey key,
+      byte[] noncePrefix,
+      byte[] header,
+      Flux<DataBuffer> content,
+      DataBufferFactory bufferFactory) throws GeneralSecurityException {
+    SegmentEncryptor encryptor =
+        new SegmentEncryptor(key, noncePrefix, SEGMENT_SIZE, bufferFactory);
+    Flux<DataBuffer> segments = content
+        .concatMapIterable(buffer -> {
+          try {
+            return encryptor.update(buffer.asByteBuffer());
+          } finally {
+            DataBufferUtils.release(buffer);
+          }
+        });
+    return Flux.concat(
+        Mono.just(bufferFactory.wrap(header)),
+        segments,
+        Mono.fromCallable(encryptor::finish));
+  }
+
+  /**
+   * Parses the header of a segmented file.
+   *
+   * @param buffer a buffer positioned at the start of the file holding at least the header
+   * @return the parsed {@link Header}
+   * @throws EncryptionException if the buffer does not hold a supported header
+   */
+  public static Header readHeader(ByteBuffer buffer) {
+    if (buffer.remaining() < PREAMBLE_LENGTH || !isSegmented(buffer)) {
+      throw new EncryptionException("File not encrypted with segmented AES/GCM");
+    }
+    ByteBuffer header = buffer.duplicate();
+    header.position(header.position() + MAGIC.length);
+    byte version = header.get();
+    int keyLength;
+    if (version == WRAPPED_KEY_VERSION) {
+      keyLength = WRAPPED_KEY_LENGTH;
+    } else if (version == KEY_ID_VERSION) {
+      keyLength = KEY_ID_LENGTH;
+    } else {
+      throw new EncryptionException("Unsupported segmented encryption version " + version);
+    }
+    if (header.remaining() < PREAMBLE_LENGTH - MAGIC.length - 1 + keyLength) {
+      throw new EncryptionException("Segmented file header is truncated");
+    }
+    int segmentSize = header.getInt();
+    byte[] noncePrefix = new byte[NONCE_PREFIX_LENGTH];
+    header.get(noncePrefix);
+    if (version == KEY_ID_VERSION) {
+      UUID keyId = new UUID(header.getLong(), header.getLong());
+      return new Header(segmentSize, noncePrefix, null, keyId);
+    }
+    byte[] wrappedKey = new byte[WRAPPED_KEY_LENGTH];
+    header.get(wrappedKey);
+    return new Header(segmentSize, noncePrefix, wrappedKey, null);
+  }
+
+  /**
+   * Unwraps the AES key of a file using the public half of the key pair it was wrapped with.
+   *
+   * @param pub the public key to unwrap with
+   * @param header the header of the file
+   * @return the key the segments of the file are encrypted with
+   * @throws EncryptionException if the file references a shared data key instead
+   */
+  public static SecretKey unwrapKey(PublicKey pub, Header header) {
+    if (header.getWrappedKey() == null) {
+      throw new EncryptionException("File is encrypted with data key " + header.getKeyId());
+    }
+    return unwrapKey(pub, header.getWrappedKey());
+  }
+
+  /**
+   * Unwraps an AES key wrapped by {@link #wrapKey(PrivateKey, SecretKey)}.
+   *
+   * @param pub the public key to unwrap with
+   * @param wrappedKey the wrapped key
+   * @return the unwrapped AES key
+   */
+  public static SecretKey unwrapKey(PublicKey pub, byte[] wrappedKey) {
+    try {
+      return EncryptionUtil.unwrapKey(pub, wrappedKey);
+    } catch (GeneralSecurityException e) {
+      throw new EncryptionException("Failed to unwrap key", e);
+    }
+  }
+
+  /**
+   * Generates a new AES data key.
+   *
+   * @return a new AES key
+   */
+  public static SecretKey generateKey() {
+    try {
+      return EncryptionUtil.generateAesKey();
+    } catch (GeneralSecurityException e) {
+      throw new EncryptionException("Failed to generate key", e);
+    }
+  }
+
+  /**
+   * Wraps an AES key with RSA, so it can be stored.
+   *
+   * @param pvt the private key to wrap with
+   * @param key the key to wrap
+   * @return the wrapped key
+   */
+  public static byte[] wrapKey(PrivateKey pvt, SecretKey key) {
+    try {
+      return EncryptionUtil.wrapKey(pvt, key);
+    } catch (GeneralSecurityException e) {
+      throw new EncryptionException("Failed to wrap key", e);
+    }
+  }
+
+  /**
+   * Decrypts and authenticates a single segment.
+   *
+   * @param key the key of the file
+   * @param header the header of the file
+   * @param index the index of the segment
+   * @param last whether the segment is the last one in the file
+   * @param segment the encrypted segment, including its tag
+   * @return the decrypted segment
+   */
+  public static byte[] decryptSegment(
+      SecretKey key, Header header, long index, boolean last, ByteBuffer segment) {
+    byte[] plaintext = new byte[Math.max(segment.remaining() - TAG_LENGTH, 0)];
+    int length = decryptSegment(key, header, index, last, segment, ByteBuffer.wrap(plaintext));
+    return length == plaintext.length ? plaintext : Arrays.copyOf(plaintext, length);
+  }
+
+  /**
+   * Decrypts and authenticates a single segment into the given buffer, so the caller can decrypt
+   * straight into the buffer it sends on.
+   *
+   * @param key the key of the file
+   * @param header the header of the file
+   * @param index the index of the segment
+   * @param last whether the segment is the last one in the file
+   * @param segment the encrypted segment, including its tag
+   * @param plaintext the buffer to decrypt into, with room for the segment less its tag
+   * @return the number of bytes decrypted into the buffer
+   */
+  public static int decryptSegment(
+      SecretKey key,
+      Header header,
+      long index,
+      boolean last,
+      ByteBuffer segment,
+      ByteBuffer plaintext) {
+    try {
+      Cipher cipher = DECRYPT_CIPHER.get();
+      cipher.init(
+          Cipher.DECRYPT_MODE,
+          key,
+          new GCMParameterSpec(TAG_LENGTH * 8, nonce(header.getNoncePrefix(), index, last)));
+      return cipher.doFinal(segment, plaintext);
+    } catch (GeneralSecurityException e) {
+      throw new EncryptionException("Failed to decrypt segment " + index, e);
+    }
+  }
+
+  /**
+   * Returns the number of segments in a file.
+   *
+   * @param header the header of the file
+   * @param fileLength the length of the encrypted file
+   * @return the number of segments in the file
+   */
+  public static long segmentCount(Header header, long fileLength) {
+    long body = fileLength - header.getLength();
+    if (body < TAG_LENGTH) {
+      throw new EncryptionException("Segmented file is truncated");
+    }
+    long encryptedSegmentSize = header.getSegmentSize() + TAG_LENGTH;
+    return (body + encryptedSegmentSize - 1) / encryptedSegmentSize;
+  }
+
+  /**
+   * Returns the length of the plaintext held in a file.
+   *
+   * @param header the header of the file
+   * @param fileLength the length of the encrypted file
+   * @return the length of the decrypted file
+   */
+  public static long plaintextLength(Header header, long fileLength) {
+    return fileLength - header.getLength() - segmentCount(header, fileLength) * TAG_LENGTH;
+  }
+
+  public static long segmentOffset(Header header, long index) {
+    return header.getLength() + index * (header.getSegmentSize() + TAG_LENGTH);
+  }
+
+  public static int encryptedSegmentSize(Header header) {
+    return header.getSegmentSize() + TAG_LENGTH;
+  }
+
+  private static byte[] newNoncePrefix() {
+    byte[] noncePrefix = new byte[NONCE_PREFIX_LENGTH];
+    new SecureRandom().nextBytes(noncePrefix);
+    return noncePrefix;
+  }
+
+  private static byte[] writeHeader(byte[] noncePrefix, byte[] wrappedKey) {
+    if (wrappedKey.length != WRAPPED_KEY_LENGTH) {
+      throw new EncryptionException("Wrapped key must be " + WRAPPED_KEY_LENGTH + " bytes");
+    }
+    return ByteBuffer.allocate(PREAMBLE_LENGTH + WRAPPED_KEY_LENGTH)
+        .put(MAGIC)
+        .put(WRAPPED_KEY_VERSION)
+        .putInt(SEGMENT_SIZE)
+        .put(noncePrefix)
+        .put(wrappedKey)
+        .array();
+  }
+
+  private static byte[] writeHeader(byte[] noncePrefix, UUID keyId) {
+    return ByteBuffer.allocate(PREAMBLE_LENGTH + KEY_ID_LENGTH)
+        .put(MAGIC)
+        .put(KEY_ID_VERSION)
+        .putInt(SEGMENT_SIZE)
+        .put(noncePrefix)
+        .putLong(keyId.getMostSignificantBits())
+        .putLong(keyId.getLeastSignificantBits())
+        .array();
+  }
+
+  private static byte[] nonce(byte[] noncePrefix, long index, boolean last) {
+    if (index > Integer.MAX_VALUE) {
+      throw new EncryptionException("Segment index out of range");
+    }
+    return ByteBuffer.allocate(NONCE_PREFIX_LENGTH + 5)
+        .put(noncePrefix)
+        .putInt((int) index)
+        .put((byte) (last ? 1 : 0))
+        .array();
+  }
+
+  /**
+   * Header of a segmented file.
+   */
+  public static final class Header {
+
+    private final int segmentSize;
+    private final byte[] noncePrefix;
+    private final byte[] wrappedKey;
+    private final UUID keyId;
+
+    private Header(int segmentSize, byte[] noncePrefix, byte[] wrappedKey, UUID keyId) {
+      this.segmentSize = segmentSize;
+      this.noncePrefix = noncePrefix;
+      this.wrappedKey = wrappedKey;
+      this.keyId = keyId;
+    }
+
+    public int getLength() {
+      return PREAMBLE_LENGTH + (keyId == null ? WRAPPED_KEY_LENGTH : KEY_ID_LENGTH);
+    }
+
+    public int getSegmentSize() {
+      return segmentSize;
+    }
+
+    public byte[] getNoncePrefix() {
+      return noncePrefix;
+    }
+
+    /**
+     * Returns the RSA wrapped key of a version 1 file.
+     *
+     * @return the wrapped key, or null if the file references a shared data key
+     */
+    public byte[] getWrappedKey() {
+      return wrappedKey;
+    }
+
+    /**
+     * Returns the id of the shared data key of a version 2 file.
+     *
+     * @return the data key id, or null if the file holds its own wrapped key
+     */
+    public UUID getKeyId() {
+      return keyId;
+    }
+  }
+
+  /**
+   * Collects plaintext into segments, sealing each one once the following byte arrives.
+   *
+   * <p>Plaintext is collected in a single buffer reused for every segment, and each segment is
+   * sealed straight into a buffer from the factory.
+   */
+  private static final class SegmentEncryptor {
+
+    private final SecretKey key;
+    private final byte[] noncePrefix;
+    private final ByteBuffer pending;
+    private final Cipher cipher;
+    private final DataBufferFactory bufferFactory;
+    private long index;
+
+    private SegmentEncryptor(
+        SecretKey key, byte[] noncePrefix, int segmentSize, DataBufferFactory bufferFactory)
+        throws GeneralSecurityException {
+      this.key = key;
+      this.noncePrefix = noncePrefix;
+      this.pending = ByteBuffer.allocate(segmentSize);
+      this.cipher = Cipher.getInstance("AES/GCM/NoPadding");
+      this.bufferFactory = bufferFactory;
+    }
+
+    private List<DataBuffer> update(ByteBuffer input) {
+      List<DataBuffer> segments = new ArrayList<>(1);
+      while (input.hasRemaining()) {
+        if (!pending.hasRemaining()) {
+          segments.add(seal(false));
+        }
+        int length = Math.min(pending.remaining(), input.remaining());
+        ByteBuffer chunk = input.duplicate();
+        chunk.limit(chunk.position() + length);
+        pending.put(chunk);
+        input.position(input.position() + length);
+      }
+      return segments;
+    }
+
+    private DataBuffer finish() {
+      return seal(true);
+    }
+
+    private DataBuffer seal(boolean last) {
+      pending.flip();
+      int length = pending.remaining() + TAG_LENGTH;
+      DataBuffer segment = bufferFactory.allocateBuffer(length);
+      try {
+        cipher.init(
+            Cipher.ENCRYPT_MODE,
+            key,
+            new GCMParameterSpec(TAG_LENGTH * 8, nonce(noncePrefix, index, last)));
+        cipher.doFinal(pending, segment.asByteBuffer(0, length));
+        index++;
+        return segment.writePosition(length);
+      } catch (GeneralSecurityException e) {
+        DataBufferUtils.release(segment);
+        throw new EncryptionException("Failed to encrypt segment " + index, e);
+      } finally {
+        pending.clear();
+      }
+    }
+  }
+}
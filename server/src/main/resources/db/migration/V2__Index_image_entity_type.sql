@@ -0,0 +1,3 @@
+CREATE INDEX idx_image_entity_metadata_type ON image_entity(metadata_id, type);
+
+CREATE INDEX idx_image_entity_type_metadata ON image_entity(type, metadata_id);
@@ -0,0 +1 @@
+CREATE INDEX idx_image_metadata_camera_entry ON image_metadata(camera_id, entry_time);
@@ -0,0 +1,53 @@
+package com.nfitton.imagestorage.component;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import com.nfitton.imagestorage.exception.TooManyRequestsException;
+import java.time.Duration;
+import java.util.UUID;
+import org.junit.jupiter.api.Test;
+import reactor.core.publisher.Mono;
+import reactor.core.publisher.MonoProcessor;
+
+class UploadLimiterUnit {
+
+  private final UploadLimiter limiter = new UploadLimiter(2, 1, Duration.ofSeconds(5));
+
+  @Test
+  void cameraLimitRefusesSecondUpload() {
+    UUID cameraId = UUID.randomUUID();
+    MonoProcessor<String> first = MonoProcessor.create();
+    limiter.admit(cameraId, () -> first).subscribe();
+
+    TooManyRequestsException e = assertThrows(
+        TooManyRequestsException.class,
+        () -> limiter.admit(cameraId, () -> Mono.just("second")).block());
+    assertEquals(Duration.ofSeconds(5), e.getRetryAfter());
+
+    first.onNext("first");
+    assertEquals("third", limiter.admit(cameraId, () -> Mono.just("third")).block());
+  }
+
+  @Test
+  void globalLimitRefusesUploadsFromOtherCameras() {
+    limiter.admit(UUID.randomUUID(), MonoProcessor::create).subscribe();
+    limiter.admit(UUID.randomUUID(), MonoProcessor::create).subscribe();
+
+    assertThrows(
+        TooManyRequestsException.class,
+        () -> limiter.admit(UUID.randomUUID(), () -> Mono.just("third")).block());
+    assertEquals(2, limiter.getInProgress());
+  }
+
+  @Test
+  void failedUploadReleasesItsPermit() {
+    UUID cameraId = UUID.randomUUID();
+    assertThrows(
+        IllegalStateException.class,
+        () -> limiter.admit(cameraId, () -> Mono.error(new IllegalStateException())).block());
+
+    assertEquals(0, limiter.getInProgress());
+    assertEquals("next", limiter.admit(cameraId, () -> Mono.just("next")).block());
+  }
+}
@@ -0,0 +1,171 @@
+package com.nfitton.imagestorage.service;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.when;
+
+import com.nfitton.imagestorage.ImageStorageApplication;
+import com.nfitton.imagestorage.configuration.QueueConfiguration;
+import com.nfitton.imagestorage.entity.ImageEntity;
+import com.nfitton.imagestorage.model.AnalysisQueueMessage;
+import com.nfitton.imagestorage.model.ImageData;
+import java.io.IOException;
+import java.time.Duration;
+import java.time.ZonedDateTime;
+import java.util.Collections;
+import java.util.LinkedList;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.BooleanSupplier;
+import javax.jms.Message;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.boot.test.context.SpringBootTest.WebEnvironment;
+import org.springframework.boot.test.mock.mockito.MockBean;
+import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.core.io.buffer.DefaultDataBufferFactory;
+import org.springframework.jms.core.JmsTemplate;
+import org.springframework.test.context.ActiveProfiles;
+import org.springframework.test.context.junit.jupiter.SpringExtension;
+import reactor.core.publisher.Flux;
+
+/**
+ * Runs a single consumer with a prefetch of one against a broker of its own, so any message left
+ * unacknowledged would stop the queue.
+ */
+@ActiveProfiles({"test", "local"})
+@ExtendWith(SpringExtension.class)
+@SpringBootTest(
+    classes = ImageStorageApplication.class,
+    webEnvironment = WebEnvironment.NONE,
+    properties = {
+        "spring.activemq.broker-url=vm://analysis-queue-it?broker.persistent=false",
+        "analysis.queue.concurrency=1",
+        "analysis.queue.prefetch=1",
+        "analysis.queue.max-attempts=2",
+        "analysis.queue.retry-delay-seconds=0"})
+class AnalysisQueueListenerIT {
+
+  private static final Duration TIMEOUT = Duration.ofSeconds(30);
+
+  private final Set<UUID> failingImages = ConcurrentHashMap.newKeySet();
+
+  @Autowired
+  private FileMetadataService metadataService;
+  @Autowired
+  private JmsTemplate jmsTemplate;
+  @MockBean
+  private FileUploadService fileUploadService;
+  @MockBean
+  private AnalysisService analysisService;
+
+  @BeforeEach
+  void setUp() {
+    when(fileUploadService.downloadFile(any(UUID.class))).thenAnswer(invocation -> {
+      if (failingImages.contains(invocation.<UUID>getArgument(0))) {
+        return Flux.error(new IOException("Image is unreadable"));
+      }
+      DataBuffer image = new DefaultDataBufferFactory().wrap(new byte[]{1, 2, 3});
+      return Flux.just(image);
+    });
+    when(analysisService.analyzeImage(anyString()))
+        .thenAnswer(invocation -> Flux.just(entity()));
+  }
+
+  @Test
+  void failingImagesDoNotStallTheQueue() {
+    // GIVEN more failing images on the queue than the consumer prefetches
+    for (int i = 0; i < 3; i++) {
+      UUID imageId = saveMotion();
+      failingImages.add(imageId);
+      enqueue(imageId);
+    }
+
+    // WHEN an image that can be analysed is queued behind them
+    UUID imageId = saveMotion();
+    enqueue(imageId);
+
+    // THEN it is analysed
+    awaitTrue(() -> metadataService.findById(imageId).block().fileExists());
+
+    // AND the failing images are moved to the dead letter queue after their attempts
+    JmsTemplate receiver = new JmsTemplate(jmsTemplate.getConnectionFactory());
+    receiver.setReceiveTimeout(TIMEOUT.toMillis());
+    for (int i = 0; i < failingImages.size(); i++) {
+      Message deadLetter = receiver.receive(QueueConfiguration.ANALYSIS_DEAD_LETTER_QUEUE);
+      assertNotNull(deadLetter);
+    }
+
+    // AND every message was acknowledged
+    awaitTrue(() -> queuedMessages() == 0);
+  }
+
+  @Test
+  void imagesAnalysedTwiceKeepOneSetOfEntities() {
+    // GIVEN an image that has been analysed
+    UUID imageId = saveMotion();
+    enqueue(imageId);
+    awaitTrue(() -> metadataService.findById(imageId).block().fileExists());
+
+    // WHEN it is analysed again
+    enqueue(imageId);
+    awaitTrue(() -> queuedMessages() == 0);
+
+    // THEN it only has the entities of one analysis
+    ImageData data = metadataService.findById(imageId).block();
+    assertEquals(1, data.getEntities().size());
+  }
+
+  private UUID saveMotion() {
+    ZonedDateTime now = ZonedDateTime.now();
+    ImageData motion = ImageData.Builder.newBuilder()
+        .withCameraId(UUID.randomUUID())
+        .withEntryTime(now)
+        .withExitTime(now)
+        .withImageTime(now)
+        .withEntities(new LinkedList<>())
+        .build();
+    return metadataService.save(motion).block().getId();
+  }
+
+  private void enqueue(UUID imageId) {
+    jmsTemplate.convertAndSend(
+        QueueConfiguration.ANALYSIS_QUEUE, new AnalysisQueueMessage(imageId.toString(), imageId));
+  }
+
+  private int queuedMessages() {
+    return jmsTemplate.browse(
+        QueueConfiguration.ANALYSIS_QUEUE,
+        (session, browser) -> Collections.list(browser.getEnumeration()).size());
+  }
+
+  private static void awaitTrue(BooleanSupplier condition) {
+    long deadline = System.currentTimeMillis() + TIMEOUT.toMillis();
+    while (!condition.getAsBoolean()) {
+      assertTrue(System.currentTimeMillis() < deadline, "Timed out waiting for the queue");
+      try {
+        Thread.sleep(100);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new IllegalStateException(e);
+      }
+    }
+  }
+
+  private static ImageEntity entity() {
+    return ImageEntity.Builder.newBuilder()
+        .withX(0)
+        .withY(0)
+        .withWidth(10)
+        .withHeight(10)
+        .withType("person")
+        .build();
+  }
+}
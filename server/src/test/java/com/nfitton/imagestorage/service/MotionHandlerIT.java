@@ -3,28 +3,80 @@ package com.nfitton.imagestorage.service;
 import static com.nfitton.imagestorage.util.CameraUtil.claimCamera;
 import static com.nfitton.imagestorage.util.CameraUtil.getMotionData;
 import static com.nfitton.imagestorage.util.CameraUtil.getMotionImageData;
+import static com.nfitton.imagestorage.util.CameraUtil.getMotionImageRange;
 import static com.nfitton.imagestorage.util.CameraUtil.listMotionData;
+import static com.nfitton.imagestorage.util.CameraUtil.listMotionPage;
+import static com.nfitton.imagestorage.util.CameraUtil.listMotionWithTags;
 import static com.nfitton.imagestorage.util.CameraUtil.patchMotionData;
 import static com.nfitton.imagestorage.util.CameraUtil.postMotionData;
+import static com.nfitton.imagestorage.util.CameraUtil.streamMotionData;
+import static com.nfitton.imagestorage.util.CameraUtil.tallyMotionData;
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 
 import com.fasterxml.jackson.core.type.TypeReference;
 import com.nfitton.imagestorage.api.CameraV1;
 import com.nfitton.imagestorage.api.ImageMetadataV1;
 import com.nfitton.imagestorage.api.OutgoingDataV1;
+import com.nfitton.imagestorage.api.TallyPointV1;
+import com.nfitton.imagestorage.configuration.CodecConfiguration;
+import com.nfitton.imagestorage.configuration.PathConfiguration;
+import com.nfitton.imagestorage.entity.ImageEntity;
+import com.nfitton.imagestorage.service.impl.RsaKeyRing;
 import com.nfitton.imagestorage.util.CameraUtil;
+import com.nfitton.imagestorage.util.EncryptionUtil;
 import java.io.File;
+import java.io.IOException;
 import java.net.URL;
+import java.nio.file.Files;
+import java.time.Duration;
 import java.time.ZonedDateTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
 import java.util.UUID;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
 import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.Arguments;
+import org.junit.jupiter.params.provider.MethodSource;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpStatus;
 import org.springframework.web.reactive.function.client.ClientResponse;
 import org.springframework.web.reactive.function.client.WebClient;
 
 class MotionHandlerIT extends BaseClientIT {
 
+  private static final String IMAGE = "motion/imageA.jpeg";
+  private static final Duration IMAGE_TIMEOUT = Duration.ofSeconds(30);
+
+  @Autowired
+  private FileMetadataService fileMetadataService;
+  @Autowired
+  private RsaKeyRing keyRing;
+  @Autowired
+  private PathConfiguration pathConfiguration;
+
+  /**
+   * Ranges of the 84217 byte test image, which is stored as a full segment of 65536 bytes
+   * followed by a partial segment of 18681, along with the bytes each should return.
+   */
+  private static Stream<Arguments> satisfiableRanges() {
+    return Stream.of(
+        Arguments.of("bytes=100-1099", 100, 1099),
+        Arguments.of("bytes=65000-66000", 65000, 66000),
+        Arguments.of("bytes=70000-84216", 70000, 84216),
+        Arguments.of("bytes=65536-", 65536, 84216),
+        Arguments.of("bytes=-500", 83717, 84216));
+  }
+
   @Test
   void savingMetadataIsSuccessful() {
     // GIVEN a camera is registered
@@ -65,6 +117,105 @@ class MotionHandlerIT extends BaseClientIT {
     assertEquals(HttpStatus.ACCEPTED, response.statusCode());
   }
 
+  @ParameterizedTest
+  @MethodSource("satisfiableRanges")
+  void userCanRequestARangeOfAnImage(String range, int start, int end) throws Exception {
+    // GIVEN a camera is registered to a user and has uploaded motion image data
+    WebClient client = getWebClient();
+    CameraV1 camera = CameraUtil.passwordOnly(userPassword);
+    UUID cameraId = CameraUtil.createCamera(client, camera, objectMapper);
+    String userSessionToken = getSessionToken();
+    claimCamera(client, userSessionToken, cameraId, "Camera A");
+    String sessionToken = getCameraToken(cameraId, userPassword, objectMapper);
+    UUID motionId = uploadImage(client, sessionToken, userSessionToken);
+    byte[] image = readImage();
+
+    // WHEN the user requests a range of the image
+    ClientResponse response = getMotionImageRange(client, userSessionToken, motionId, range);
+
+    // THEN the range is returned as partial content
+    assertEquals(HttpStatus.PARTIAL_CONTENT, response.statusCode());
+    assertEquals(
+        String.format("bytes %d-%d/%d", start, end, image.length),
+        response.headers().asHttpHeaders().getFirst(HttpHeaders.CONTENT_RANGE));
+    // AND the bytes match that range of the original image
+    assertArrayEquals(
+        Arrays.copyOfRange(image, start, end + 1),
+        response.bodyToMono(byte[].class).block());
+  }
+
+  @Test
+  void unsatisfiableRangeIsRejected() throws Exception {
+    // GIVEN a camera is registered to a user and has uploaded motion image data
+    WebClient client = getWebClient();
+    CameraV1 camera = CameraUtil.passwordOnly(userPassword);
+    UUID cameraId = CameraUtil.createCamera(client, camera, objectMapper);
+    String userSessionToken = getSessionToken();
+    claimCamera(client, userSessionToken, cameraId, "Camera A");
+    String sessionToken = getCameraToken(cameraId, userPassword, objectMapper);
+    UUID motionId = uploadImage(client, sessionToken, userSessionToken);
+    int length = readImage().length;
+
+    // WHEN the user requests a range starting after the end of the image
+    ClientResponse response = getMotionImageRange(
+        client, userSessionToken, motionId, "bytes=" + length + "-");
+
+    // THEN the range is not satisfiable
+    assertEquals(HttpStatus.REQUESTED_RANGE_NOT_SATISFIABLE, response.statusCode());
+    // AND the length of the image is returned
+    assertEquals(
+        "bytes */" + length,
+        response.headers().asHttpHeaders().getFirst(HttpHeaders.CONTENT_RANGE));
+  }
+
+  @Test
+  void malformedRangeReturnsTheWholeImage() throws Exception {
+    // GIVEN a camera is registered to a user and has uploaded motion image data
+    WebClient client = getWebClient();
+    CameraV1 camera = CameraUtil.passwordOnly(userPassword);
+    UUID cameraId = CameraUtil.createCamera(client, camera, objectMapper);
+    String userSessionToken = getSessionToken();
+    claimCamera(client, userSessionToken, cameraId, "Camera A");
+    String sessionToken = getCameraToken(cameraId, userPassword, objectMapper);
+    UUID motionId = uploadImage(client, sessionToken, userSessionToken);
+
+    // WHEN the user requests the image with a malformed range
+    ClientResponse response = getMotionImageRange(
+        client, userSessionToken, motionId, "bytes=ten-twenty");
+
+    // THEN the whole image is returned
+    assertEquals(HttpStatus.OK, response.statusCode());
+    assertArrayEquals(readImage(), response.bodyToMono(byte[].class).block());
+  }
+
+  @Test
+  void rangeOfLegacyImageReturnsTheWholeImage() throws Exception {
+    // GIVEN a claimed camera has motion with an image stored in the legacy format
+    WebClient client = getWebClient();
+    CameraV1 camera = CameraUtil.passwordOnly(userPassword);
+    UUID cameraId = CameraUtil.createCamera(client, camera, objectMapper);
+    String userSessionToken = getSessionToken();
+    claimCamera(client, userSessionToken, cameraId, "Camera A");
+    String sessionToken = getCameraToken(cameraId, userPassword, objectMapper);
+    ImageMetadataV1 motion = postMotionData(client, sessionToken, new ImageMetadataV1(
+        null, null, ZonedDateTime.now(), ZonedDateTime.now(), ZonedDateTime.now(),
+        null, null, false, null), objectMapper);
+    // The legacy format is written to the given path with .enc appended
+    EncryptionUtil.encryptWithRsaAes(
+        keyRing.getPrivate(),
+        imageFile().getPath(),
+        pathConfiguration.getLocation() + motion.getId());
+    fileMetadataService.imageUploaded(motion.getId(), Collections.emptyList()).block();
+
+    // WHEN the user requests a range of the image
+    ClientResponse response = getMotionImageRange(
+        client, userSessionToken, motion.getId(), "bytes=100-1099");
+
+    // THEN the whole image is returned, as legacy images do not support ranges
+    assertEquals(HttpStatus.OK, response.statusCode());
+    assertArrayEquals(readImage(), response.bodyToMono(byte[].class).block());
+  }
+
   @Test
   void userWithAccessToCameraCanListMotion() {
     // GIVEN a camera is claimed and has posted motion data
@@ -92,6 +243,190 @@ class MotionHandlerIT extends BaseClientIT {
     assertEquals(1, returnedMetadata.size());
   }
 
+  @Test
+  void userCanPageThroughMotionWithCursor() {
+    // GIVEN a claimed camera has posted three pieces of motion data
+    WebClient client = getWebClient();
+    CameraV1 camera = CameraUtil.passwordOnly(userPassword);
+    UUID cameraId = CameraUtil.createCamera(client, camera, objectMapper);
+    String userSessionToken = getSessionToken();
+    claimCamera(client, userSessionToken, cameraId, "Camera A");
+    String sessionToken = getCameraToken(cameraId, userPassword, objectMapper);
+    ZonedDateTime entryTime = ZonedDateTime.now().minusMinutes(10);
+    for (int i = 0; i < 3; i++) {
+      ZonedDateTime time = entryTime.plusMinutes(i);
+      postMotionData(client, sessionToken, new ImageMetadataV1(
+          null, null, time, time, time, null, null, false, null), objectMapper);
+    }
+
+    // WHEN the user requests the first page of two
+    OutgoingDataV1 firstPage = listMotionPage(client, userSessionToken, 2, null,
+        cameraId.toString()).bodyToMono(OutgoingDataV1.class).block();
+
+    // THEN the first two are returned with a cursor to the next page
+    List<ImageMetadataV1> first = firstPage
+        .parseData(new TypeReference<List<ImageMetadataV1>>() {
+        }, objectMapper);
+    assertEquals(2, first.size());
+    assertNotNull(firstPage.getNext());
+
+    // AND the next page has the remaining motion and no further cursor
+    OutgoingDataV1 secondPage = listMotionPage(client, userSessionToken, 2, firstPage.getNext(),
+        cameraId.toString()).bodyToMono(OutgoingDataV1.class).block();
+    List<ImageMetadataV1> remaining = secondPage
+        .parseData(new TypeReference<List<ImageMetadataV1>>() {
+        }, objectMapper);
+    assertEquals(1, remaining.size());
+    assertFalse(first.stream().map(ImageMetadataV1::getId)
+        .anyMatch(remaining.get(0).getId()::equals));
+    assertNull(secondPage.getNext());
+  }
+
+  @Test
+  void pagesOfInterleavedCamerasFormOneOrderedSequence() {
+    // GIVEN two claimed cameras whose motion interleaves, with some entering at the same time
+    WebClient client = getWebClient();
+    String userSessionToken = getSessionToken();
+    UUID cameraA = CameraUtil.createCamera(
+        client, CameraUtil.passwordOnly(userPassword), objectMapper);
+    UUID cameraB = CameraUtil.createCamera(
+        client, CameraUtil.passwordOnly(userPassword), objectMapper);
+    claimCamera(client, userSessionToken, cameraA, "Camera A");
+    claimCamera(client, userSessionToken, cameraB, "Camera B");
+    String tokenA = getCameraToken(cameraA, userPassword, objectMapper);
+    String tokenB = getCameraToken(cameraB, userPassword, objectMapper);
+    ZonedDateTime entryTime = ZonedDateTime.now().minusMinutes(30);
+    for (int i = 0; i < 5; i++) {
+      ZonedDateTime timeA = entryTime.plusMinutes(2 * i);
+      ZonedDateTime timeB = i % 2 == 0 ? timeA : timeA.plusMinutes(1);
+      postMotionData(client, tokenA, new ImageMetadataV1(
+          null, null, timeA, timeA, timeA, null, null, false, null), objectMapper);
+      postMotionData(client, tokenB, new ImageMetadataV1(
+          null, null, timeB, timeB, timeB, null, null, false, null), objectMapper);
+    }
+    List<ImageMetadataV1> all = listMotionData(
+        client, userSessionToken, cameraA.toString(), cameraB.toString())
+        .bodyToMono(OutgoingDataV1.class).block()
+        .parseData(new TypeReference<List<ImageMetadataV1>>() {
+        }, objectMapper);
+
+    // WHEN the user pages through both cameras three at a time
+    List<ImageMetadataV1> paged = new ArrayList<>();
+    String cursor = null;
+    do {
+      OutgoingDataV1 page = listMotionPage(client, userSessionToken, 3, cursor,
+          cameraA.toString(), cameraB.toString()).bodyToMono(OutgoingDataV1.class).block();
+      paged.addAll(page.parseData(new TypeReference<List<ImageMetadataV1>>() {
+      }, objectMapper));
+      cursor = page.getNext();
+    } while (cursor != null);
+
+    // THEN every motion is returned once
+    List<UUID> pagedIds = paged.stream().map(ImageMetadataV1::getId).collect(Collectors.toList());
+    assertEquals(10, pagedIds.size());
+    assertEquals(10, pagedIds.stream().distinct().count());
+    // AND in entry time order, ties in the same order as a single page
+    for (int i = 1; i < paged.size(); i++) {
+      assertFalse(paged.get(i).getEntryTime().isBefore(paged.get(i - 1).getEntryTime()));
+    }
+    assertEquals(
+        all.stream().map(ImageMetadataV1::getId).collect(Collectors.toList()),
+        pagedIds);
+  }
+
+  @Test
+  void userCanListMotionWithMatchingTags() {
+    // GIVEN a claimed camera has motion with a person, motion with a car and motion with neither
+    WebClient client = getWebClient();
+    CameraV1 camera = CameraUtil.passwordOnly(userPassword);
+    UUID cameraId = CameraUtil.createCamera(client, camera, objectMapper);
+    String userSessionToken = getSessionToken();
+    claimCamera(client, userSessionToken, cameraId, "Camera A");
+    String sessionToken = getCameraToken(cameraId, userPassword, objectMapper);
+    ZonedDateTime entryTime = ZonedDateTime.now().minusMinutes(10);
+    List<UUID> motionIds = Stream.of(0, 1, 2)
+        .map(i -> entryTime.plusMinutes(i))
+        .map(time -> postMotionData(client, sessionToken, new ImageMetadataV1(
+            null, null, time, time, time, null, null, false, null), objectMapper).getId())
+        .collect(Collectors.toList());
+    fileMetadataService.imageUploaded(motionIds.get(0), Collections.singletonList(entity("person")))
+        .block();
+    fileMetadataService.imageUploaded(motionIds.get(1), Collections.singletonList(entity("car")))
+        .block();
+    fileMetadataService.imageUploaded(motionIds.get(2), Collections.emptyList()).block();
+
+    // WHEN the user lists the camera's motion tagged with a person
+    ClientResponse response = listMotionWithTags(
+        client, userSessionToken, "person", cameraId.toString());
+
+    // THEN only the motion with a person is returned
+    assertEquals(HttpStatus.OK, response.statusCode());
+    List<ImageMetadataV1> returnedMetadata = response.bodyToMono(OutgoingDataV1.class).block()
+        .parseData(new TypeReference<List<ImageMetadataV1>>() {
+        }, objectMapper);
+    assertEquals(
+        Collections.singletonList(motionIds.get(0)),
+        returnedMetadata.stream().map(ImageMetadataV1::getId).collect(Collectors.toList()));
+  }
+
+  @Test
+  void userCanStreamMotionAsNewlineDelimitedJson() throws IOException {
+    // GIVEN a claimed camera has posted two pieces of motion data
+    WebClient client = getWebClient();
+    CameraV1 camera = CameraUtil.passwordOnly(userPassword);
+    UUID cameraId = CameraUtil.createCamera(client, camera, objectMapper);
+    String userSessionToken = getSessionToken();
+    claimCamera(client, userSessionToken, cameraId, "Camera A");
+    String sessionToken = getCameraToken(cameraId, userPassword, objectMapper);
+    ZonedDateTime entryTime = ZonedDateTime.now().minusMinutes(10);
+    ImageMetadataV1 first = postMotionData(client, sessionToken, new ImageMetadataV1(
+        null, null, entryTime, entryTime, entryTime, null, null, false, null), objectMapper);
+    ZonedDateTime laterTime = entryTime.plusMinutes(1);
+    ImageMetadataV1 second = postMotionData(client, sessionToken, new ImageMetadataV1(
+        null, null, laterTime, laterTime, laterTime, null, null, false, null), objectMapper);
+
+    // WHEN the user streams the motion as newline delimited JSON
+    ClientResponse response = streamMotionData(
+        client, userSessionToken, CodecConfiguration.APPLICATION_NDJSON, cameraId.toString());
+
+    // THEN each motion is written on its own line in order, without the data envelope
+    assertEquals(HttpStatus.OK, response.statusCode());
+    String[] lines = response.bodyToMono(String.class).block().trim().split("\n");
+    assertEquals(2, lines.length);
+    assertEquals(first.getId(), objectMapper.readValue(lines[0], ImageMetadataV1.class).getId());
+    assertEquals(second.getId(), objectMapper.readValue(lines[1], ImageMetadataV1.class).getId());
+  }
+
+  @Test
+  void userCanTallyMotionByTimeFrame() {
+    // GIVEN a claimed camera has posted motion data
+    WebClient client = getWebClient();
+    CameraV1 camera = CameraUtil.passwordOnly(userPassword);
+    UUID cameraId = CameraUtil.createCamera(client, camera, objectMapper);
+    String userSessionToken = getSessionToken();
+    claimCamera(client, userSessionToken, cameraId, "Camera A");
+    String sessionToken = getCameraToken(cameraId, userPassword, objectMapper);
+    ZonedDateTime entryTime = ZonedDateTime.now();
+    ImageMetadataV1 newMetadata = new ImageMetadataV1(
+        null, null, entryTime, entryTime, entryTime, null, null, false, null);
+    postMotionData(client, sessionToken, newMetadata, objectMapper);
+
+    // WHEN the user tallies motion by the hour around the motion
+    ClientResponse response = tallyMotionData(
+        client, userSessionToken, entryTime.minusMinutes(90), entryTime.plusMinutes(90), "hour",
+        cameraId.toString());
+
+    // THEN the request is successful
+    assertEquals(HttpStatus.OK, response.statusCode());
+    // AND every hour is returned with the motion counted in the hour it entered
+    List<TallyPointV1> points = response.bodyToMono(OutgoingDataV1.class).block()
+        .parseData(new TypeReference<List<TallyPointV1>>() {
+        }, objectMapper);
+    assertEquals(
+        Arrays.asList(0L, 1L, 0L),
+        points.stream().map(TallyPointV1::getCount).collect(Collectors.toList()));
+  }
+
   @Test
   void userWithAccessToCameraCanReferenceMotionById() {
     // GIVEN a camera is claimed and has posted motion data
@@ -145,4 +480,45 @@ class MotionHandlerIT extends BaseClientIT {
     // THEN upload is successful
     assertEquals(HttpStatus.OK, motionImageData.statusCode());
   }
+
+  /**
+   * Uploads the test image as a camera, waiting for it to be analysed so it can be downloaded.
+   */
+  private UUID uploadImage(WebClient client, String cameraToken, String userToken)
+      throws InterruptedException {
+    ImageMetadataV1 motion = postMotionData(client, cameraToken, new ImageMetadataV1(
+        null, null, ZonedDateTime.now(), ZonedDateTime.now(), ZonedDateTime.now(),
+        null, null, false, null), objectMapper);
+    patchMotionData(client, cameraToken, motion.getId(), imageFile());
+
+    long deadline = System.currentTimeMillis() + IMAGE_TIMEOUT.toMillis();
+    while (!getMotionData(client, userToken, motion.getId())
+        .bodyToMono(OutgoingDataV1.class)
+        .block()
+        .parseData(ImageMetadataV1.class, objectMapper)
+        .isFileExists()) {
+      assertTrue(System.currentTimeMillis() < deadline, "Timed out waiting for the image");
+      Thread.sleep(100);
+    }
+    return motion.getId();
+  }
+
+  private static ImageEntity entity(String type) {
+    return ImageEntity.Builder.newBuilder()
+        .withX(0)
+        .withY(0)
+        .withWidth(10)
+        .withHeight(10)
+        .withType(type)
+        .build();
+  }
+
+  private static File imageFile() {
+    URL url = Thread.currentThread().getContextClassLoader().getResource(IMAGE);
+    return new File(url.getPath());
+  }
+
+  private static byte[] readImage() throws IOException {
+    return Files.readAllBytes(imageFile().toPath());
+  }
 }
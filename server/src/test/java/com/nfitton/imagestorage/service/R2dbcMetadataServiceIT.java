@@ -0,0 +1,89 @@
+package com.nfitton.imagestorage.service;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import com.nfitton.imagestorage.ImageStorageApplication;
+import com.nfitton.imagestorage.entity.ImageEntity;
+import com.nfitton.imagestorage.model.ImageData;
+import java.time.Duration;
+import java.time.ZonedDateTime;
+import java.util.Collections;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.UUID;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.boot.test.context.SpringBootTest.WebEnvironment;
+import org.springframework.test.context.ActiveProfiles;
+import org.springframework.test.context.junit.jupiter.SpringExtension;
+import reactor.core.publisher.Flux;
+
+/**
+ * Streams motion through a small connection pool, so a stream holding more than one connection
+ * at a time would exhaust it.
+ */
+@ActiveProfiles({"test", "local", "r2dbc"})
+@ExtendWith(SpringExtension.class)
+@SpringBootTest(
+    classes = ImageStorageApplication.class,
+    webEnvironment = WebEnvironment.NONE,
+    properties = "r2dbc.url=r2dbc:pool:h2:mem:///testdb?initialSize=1&maxSize=2")
+class R2dbcMetadataServiceIT {
+
+  private static final int MOTION_COUNT = 1_100;
+  private static final int STREAMS = 4;
+
+  @Autowired
+  @Qualifier("metadataStore")
+  private FileMetadataService metadataService;
+
+  @Test
+  void concurrentStreamsShareASmallPool() {
+    // GIVEN a camera with more than two pages of motion, some of it with entities
+    UUID cameraId = UUID.randomUUID();
+    ZonedDateTime start = ZonedDateTime.now().minusDays(1);
+    Flux.range(0, MOTION_COUNT)
+        .flatMap(i -> metadataService.save(motion(cameraId, start.plusSeconds(i)))
+            .flatMap(data -> i % 10 == 0
+                ? metadataService.imageUploaded(data.getId(), Collections.singletonList(entity()))
+                : metadataService.imageUploaded(data.getId(), Collections.emptyList())), 2)
+        .blockLast(Duration.ofMinutes(1));
+
+    // WHEN more streams than connections read the motion at once
+    List<Long> counts = Flux.range(0, STREAMS)
+        .flatMap(i -> metadataService.findAllByCameraIds(
+            Collections.singletonList(cameraId),
+            Collections.emptyList(),
+            start.minusSeconds(1),
+            start.plusSeconds(MOTION_COUNT + 1),
+            null).count())
+        .collectList()
+        .block(Duration.ofSeconds(30));
+
+    // THEN every stream completes with all of the motion
+    assertEquals(Collections.nCopies(STREAMS, (long) MOTION_COUNT), counts);
+  }
+
+  private static ImageData motion(UUID cameraId, ZonedDateTime entryTime) {
+    return ImageData.Builder.newBuilder()
+        .withCameraId(cameraId)
+        .withEntryTime(entryTime)
+        .withExitTime(entryTime.plusNanos(500_000_000))
+        .withImageTime(entryTime)
+        .withEntities(new LinkedList<>())
+        .build();
+  }
+
+  private static ImageEntity entity() {
+    return ImageEntity.Builder.newBuilder()
+        .withX(0)
+        .withY(0)
+        .withWidth(10)
+        .withHeight(10)
+        .withType("person")
+        .build();
+  }
+}
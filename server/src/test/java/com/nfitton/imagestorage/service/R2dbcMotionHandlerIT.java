@@ -0,0 +1,11 @@
+package com.nfitton.imagestorage.service;
+
+import org.springframework.test.context.ActiveProfiles;
+
+/**
+ * Runs the motion tests against the R2DBC metadata service.
+ */
+@ActiveProfiles("r2dbc")
+class R2dbcMotionHandlerIT extends MotionHandlerIT {
+
+}
@@ -0,0 +1,100 @@
+package com.nfitton.imagestorage.service.impl;
+
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import com.nfitton.imagestorage.exception.NotFoundException;
+import com.nfitton.imagestorage.model.ImageData;
+import com.nfitton.imagestorage.service.FileMetadataService;
+import com.nfitton.imagestorage.util.ExpiringLruCache;
+import java.time.Duration;
+import java.util.Collections;
+import java.util.LinkedList;
+import java.util.UUID;
+import org.junit.jupiter.api.Test;
+import reactor.core.publisher.Mono;
+
+class CachingMetadataServiceUnit {
+
+  private final UUID motionId = UUID.randomUUID();
+  private final FileMetadataService delegate = mock(FileMetadataService.class);
+  private final CachingMetadataService service = new CachingMetadataService(
+      delegate, new ExpiringLruCache<>("motion", 16, Duration.ofMinutes(1)));
+
+  @Test
+  void repeatedReadsOnlyLoadOnce() {
+    // GIVEN motion in the store
+    ImageData motion = motion(false);
+    when(delegate.findById(motionId)).thenReturn(Mono.just(motion));
+
+    // WHEN it is read twice
+    service.findById(motionId).block();
+    ImageData cached = service.findById(motionId).block();
+
+    // THEN it is only loaded from the store once
+    assertSame(motion, cached);
+    verify(delegate, times(1)).findById(motionId);
+  }
+
+  @Test
+  void uploadReplacesCachedMotion() {
+    // GIVEN cached motion
+    when(delegate.findById(motionId)).thenReturn(Mono.just(motion(false)));
+    service.findById(motionId).block();
+
+    // WHEN its image is uploaded
+    ImageData uploaded = motion(true);
+    when(delegate.imageUploaded(motionId, Collections.emptyList()))
+        .thenReturn(Mono.just(uploaded));
+    service.imageUploaded(motionId, Collections.emptyList()).block();
+
+    // THEN reads see the uploaded motion without going back to the store
+    assertSame(uploaded, service.findById(motionId).block());
+    verify(delegate, times(1)).findById(motionId);
+  }
+
+  @Test
+  void failedWriteInvalidatesCachedMotion() {
+    // GIVEN cached motion
+    when(delegate.findById(motionId)).thenReturn(Mono.just(motion(false)));
+    service.findById(motionId).block();
+
+    // WHEN a write to it fails
+    when(delegate.imageUploaded(motionId, Collections.emptyList()))
+        .thenReturn(Mono.error(new NotFoundException("Not found")));
+    assertThrows(NotFoundException.class,
+        () -> service.imageUploaded(motionId, Collections.emptyList()).block());
+
+    // THEN the next read goes back to the store
+    service.findById(motionId).block();
+    verify(delegate, times(2)).findById(motionId);
+  }
+
+  @Test
+  void motionUpdatedElsewhereIsReadFromTheStore() {
+    // GIVEN cached motion
+    when(delegate.findById(motionId)).thenReturn(Mono.just(motion(false)));
+    service.findById(motionId).block();
+
+    // WHEN another node publishes an update to it
+    ImageData uploaded = motion(true);
+    when(delegate.findById(motionId)).thenReturn(Mono.just(uploaded));
+    service.motionUpdated(motionId);
+
+    // THEN the next read sees the update from the store
+    assertSame(uploaded, service.findById(motionId).block());
+    verify(delegate, times(2)).findById(motionId);
+  }
+
+  private ImageData motion(boolean fileExists) {
+    return ImageData.Builder.newBuilder()
+        .withId(motionId)
+        .withExists(fileExists)
+        .withEntities(new LinkedList<>())
+        .build();
+  }
+}
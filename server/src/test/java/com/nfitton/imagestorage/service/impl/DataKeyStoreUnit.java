@@ -0,0 +1,75 @@
+package com.nfitton.imagestorage.service.impl;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import com.nfitton.imagestorage.configuration.PathConfiguration;
+import com.nfitton.imagestorage.service.impl.DataKeyStore.DataKey;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+class DataKeyStoreUnit {
+
+  private static final int THREADS = 8;
+
+  private Path keys;
+  private DataKeyStore store;
+
+  @BeforeEach
+  void setUp() throws IOException {
+    Path directory = Files.createTempDirectory("data-keys");
+    PathConfiguration configuration = new PathConfiguration();
+    configuration.setLocation(directory.toString() + "/");
+    keys = directory.resolve("keys");
+    store = new DataKeyStore(keys, new RsaKeyRing(configuration), Duration.ofHours(1));
+  }
+
+  @Test
+  void concurrentRequestsShareOneStoredKey() throws Exception {
+    // GIVEN a camera without a data key
+    UUID cameraId = UUID.randomUUID();
+
+    // WHEN many threads ask for its key at once
+    ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+    CountDownLatch start = new CountDownLatch(1);
+    List<Future<DataKey>> requests = new ArrayList<>();
+    for (int i = 0; i < THREADS; i++) {
+      requests.add(executor.submit(() -> {
+        start.await();
+        return store.getActiveKey(cameraId);
+      }));
+    }
+    start.countDown();
+    List<UUID> keyIds = new ArrayList<>();
+    for (Future<DataKey> request : requests) {
+      keyIds.add(request.get().getId());
+    }
+    executor.shutdown();
+
+    // THEN they are all given the same key
+    assertEquals(1, keyIds.stream().distinct().count());
+    // AND only that key is left on disk, where it can be read back
+    try (Stream<Path> files = Files.list(keys)) {
+      assertEquals(
+          keyIds.get(0) + ".key",
+          files.map(file -> file.getFileName().toString())
+              .collect(Collectors.joining(",")));
+    }
+    assertArrayEquals(
+        store.getActiveKey(cameraId).getKey().getEncoded(),
+        store.loadKey(keyIds.get(0)).getEncoded());
+  }
+}
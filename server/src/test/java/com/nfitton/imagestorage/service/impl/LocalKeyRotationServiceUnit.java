@@ -0,0 +1,223 @@
+package com.nfitton.imagestorage.service.impl;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+
+import com.nfitton.imagestorage.configuration.EncryptionConfiguration;
+import com.nfitton.imagestorage.configuration.PathConfiguration;
+import com.nfitton.imagestorage.exception.EncryptionException;
+import com.nfitton.imagestorage.model.KeyRotationStatus;
+import com.nfitton.imagestorage.model.KeyRotationStatus.State;
+import com.nfitton.imagestorage.util.EncryptionUtil;
+import com.nfitton.imagestorage.util.SegmentedEncryptionUtil;
+import com.nfitton.imagestorage.util.SegmentedEncryptionUtil.Header;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.PublicKey;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Random;
+import java.util.UUID;
+import java.util.stream.Stream;
+import javax.crypto.SecretKey;
+import javax.jms.Destination;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.core.io.buffer.DataBufferFactory;
+import org.springframework.core.io.buffer.DataBufferUtils;
+import org.springframework.core.io.buffer.DefaultDataBufferFactory;
+import org.springframework.jms.core.JmsTemplate;
+import reactor.core.publisher.Flux;
+
+class LocalKeyRotationServiceUnit {
+
+  private final DataBufferFactory bufferFactory = new DefaultDataBufferFactory();
+  private final JmsTemplate jmsTemplate = mock(JmsTemplate.class);
+  private PathConfiguration configuration;
+  private Path directory;
+
+  @BeforeEach
+  void setUp() throws IOException {
+    directory = Files.createTempDirectory("rotation");
+    configuration = new PathConfiguration();
+    configuration.setLocation(directory.toString() + "/");
+  }
+
+  @Test
+  void rotationRewrapsKeysWithoutReencryptingContent() throws Exception {
+    // GIVEN a segmented image, a legacy image and a data key wrapped with the current key pair
+    RsaKeyRing keyRing = new RsaKeyRing(configuration);
+    byte[] content = new byte[100_000];
+    new Random(1).nextBytes(content);
+    Path segmented = directory.resolve(UUID.randomUUID() + ".enc");
+    Files.write(segmented, join(SegmentedEncryptionUtil
+        .encrypt(keyRing.getPrivate(), Flux.just(bufferFactory.wrap(content)), bufferFactory)));
+    Path legacy = directory.resolve(UUID.randomUUID() + ".enc");
+    Files.write(legacy, join(EncryptionUtil
+        .encryptWithRsaAes(keyRing.getPrivate(), Flux.just(bufferFactory.wrap(content)),
+            bufferFactory)));
+    SecretKey dataKey = SegmentedEncryptionUtil.generateKey();
+    Path dataKeyPath = Files.createDirectories(directory.resolve("keys"))
+        .resolve(UUID.randomUUID() + ".key");
+    Files.write(dataKeyPath, SegmentedEncryptionUtil.wrapKey(keyRing.getPrivate(), dataKey));
+    long legacyLength = Files.size(legacy);
+    PublicKey oldKey = keyRing.getCurrentPublic();
+
+    // WHEN the keys are rotated
+    LocalKeyRotationService service = new LocalKeyRotationService(
+        keyRing, jmsTemplate, configuration, new EncryptionConfiguration());
+    service.rotateKeys().block();
+    KeyRotationStatus status = awaitRotation(service);
+
+    // THEN every file is rotated and the rotation is completed
+    assertEquals(State.COMPLETED, status.getState());
+    assertEquals(3, status.getFilesRotated());
+    assertFalse(keyRing.isRotating());
+    assertFalse(Files.exists(directory.resolve(".next.key")));
+    try (Stream<Path> journals = Files.list(directory.resolve(".rotation-journal"))) {
+      assertEquals(0, journals.count());
+    }
+
+    // AND the images decrypt with the reloaded key pair but not the old one
+    RsaKeyRing reloaded = new RsaKeyRing(configuration);
+    byte[] rotated = Files.readAllBytes(segmented);
+    Header header = SegmentedEncryptionUtil.readHeader(ByteBuffer.wrap(rotated));
+    assertThrows(EncryptionException.class,
+        () -> SegmentedEncryptionUtil.unwrapKey(oldKey, header));
+    SecretKey key = reloaded.unwrap(header.getWrappedKey());
+    ByteBuffer segment = ByteBuffer.wrap(rotated, SegmentedEncryptionUtil.WRAPPED_KEY_OFFSET
+        + SegmentedEncryptionUtil.WRAPPED_KEY_LENGTH, SegmentedEncryptionUtil.SEGMENT_SIZE + 16);
+    byte[] plaintext = SegmentedEncryptionUtil.decryptSegment(key, header, 0, false, segment);
+    assertArrayEquals(Arrays.copyOf(content, SegmentedEncryptionUtil.SEGMENT_SIZE), plaintext);
+
+    Flux<DataBuffer> legacyContent = EncryptionUtil.decryptWithRsaAes(
+        reloaded.getCurrentPublic(),
+        Flux.just(bufferFactory.wrap(Files.readAllBytes(legacy))),
+        bufferFactory);
+    assertArrayEquals(content, join(legacyContent));
+    assertEquals(legacyLength, Files.size(legacy));
+
+    // AND the data key unwraps to the same key
+    assertArrayEquals(
+        dataKey.getEncoded(), reloaded.unwrap(Files.readAllBytes(dataKeyPath)).getEncoded());
+  }
+
+  @Test
+  void otherNodesReloadKeysAfterARotation() throws Exception {
+    // GIVEN two nodes sharing the storage location, such as an API node and a worker
+    RsaKeyRing keyRing = new RsaKeyRing(configuration);
+    RsaKeyRing workerKeyRing = new RsaKeyRing(configuration);
+    RsaKeyRing listeningKeyRing = new RsaKeyRing(configuration);
+
+    // WHEN the API node rotates the keys and wraps a new key
+    LocalKeyRotationService service = new LocalKeyRotationService(
+        keyRing, jmsTemplate, configuration, new EncryptionConfiguration());
+    service.rotateKeys().block();
+    assertEquals(State.COMPLETED, awaitRotation(service).getState());
+    SecretKey key = SegmentedEncryptionUtil.generateKey();
+    byte[] wrappedKey = SegmentedEncryptionUtil.wrapKey(keyRing.getPrivate(), key);
+
+    // THEN the rotation is published
+    verify(jmsTemplate).convertAndSend(any(Destination.class), eq(State.RUNNING.name()));
+    verify(jmsTemplate).convertAndSend(any(Destination.class), eq(State.COMPLETED.name()));
+    // AND a node receiving it reloads the new key pair
+    listeningKeyRing.keysRotated(State.COMPLETED.name());
+    assertEquals(keyRing.getCurrentPublic(), listeningKeyRing.getCurrentPublic());
+    // AND a node that missed it reloads the keys to unwrap the new key
+    assertArrayEquals(key.getEncoded(), workerKeyRing.unwrap(wrappedKey).getEncoded());
+    assertFalse(workerKeyRing.isRotating());
+  }
+
+  @Test
+  void resumedRotationSkipsFilesAlreadyRotated() throws Exception {
+    // GIVEN a rotation that has already begun with a file already re-wrapped
+    RsaKeyRing keyRing = new RsaKeyRing(configuration);
+    keyRing.beginRotation();
+    Path image = directory.resolve(UUID.randomUUID() + ".enc");
+    Files.write(image, join(SegmentedEncryptionUtil
+        .encrypt(keyRing.getPrivate(), Flux.just(bufferFactory.wrap(new byte[10])),
+            bufferFactory)));
+
+    // WHEN the rotation is resumed
+    LocalKeyRotationService service = new LocalKeyRotationService(
+        keyRing, jmsTemplate, configuration, new EncryptionConfiguration());
+    service.rotateKeys().block();
+    KeyRotationStatus status = awaitRotation(service);
+
+    // THEN the file is left untouched
+    assertEquals(State.COMPLETED, status.getState());
+    assertEquals(0, status.getFilesRotated());
+    assertEquals(1, status.getFilesSkipped());
+  }
+
+  @Test
+  void resumedRotationReplaysTornKeyWrites() throws Exception {
+    // GIVEN a rotation interrupted part way through writing the new key of an image
+    RsaKeyRing keyRing = new RsaKeyRing(configuration);
+    byte[] content = new byte[100];
+    new Random(2).nextBytes(content);
+    String name = UUID.randomUUID() + ".enc";
+    Path image = directory.resolve(name);
+    Files.write(image, join(SegmentedEncryptionUtil
+        .encrypt(keyRing.getPrivate(), Flux.just(bufferFactory.wrap(content)), bufferFactory)));
+    byte[] written = Files.readAllBytes(image);
+    int offset = SegmentedEncryptionUtil.WRAPPED_KEY_OFFSET;
+    byte[] oldKey = Arrays.copyOfRange(
+        written, offset, offset + SegmentedEncryptionUtil.WRAPPED_KEY_LENGTH);
+    keyRing.beginRotation();
+    byte[] newKey = keyRing.rewrap(oldKey);
+    System.arraycopy(newKey, 0, written, offset, newKey.length / 2);
+    Files.write(image, written);
+    Path journals = Files.createDirectories(directory.resolve(".rotation-journal"));
+    Files.write(journals.resolve(name.substring(0, 2)), Arrays.asList(
+        image.toString(),
+        Integer.toString(offset),
+        Base64.getEncoder().encodeToString(oldKey),
+        Base64.getEncoder().encodeToString(newKey)));
+
+    // WHEN the rotation is resumed
+    LocalKeyRotationService service = new LocalKeyRotationService(
+        keyRing, jmsTemplate, configuration, new EncryptionConfiguration());
+    service.rotateKeys().block();
+    KeyRotationStatus status = awaitRotation(service);
+
+    // THEN the key write is finished and the image decrypts with the new key pair
+    assertEquals(State.COMPLETED, status.getState());
+    byte[] rotated = Files.readAllBytes(image);
+    Header header = SegmentedEncryptionUtil.readHeader(ByteBuffer.wrap(rotated));
+    assertArrayEquals(newKey, header.getWrappedKey());
+    SecretKey key = new RsaKeyRing(configuration).unwrap(header.getWrappedKey());
+    ByteBuffer segment = ByteBuffer.wrap(
+        rotated, offset + newKey.length, rotated.length - offset - newKey.length);
+    assertArrayEquals(
+        content, SegmentedEncryptionUtil.decryptSegment(key, header, 0, true, segment));
+  }
+
+  private static KeyRotationStatus awaitRotation(LocalKeyRotationService service)
+      throws InterruptedException {
+    for (int i = 0; i < 200; i++) {
+      KeyRotationStatus status = service.getStatus().block();
+      if (status.getState() != State.RUNNING && status.getState() != State.IDLE) {
+        return status;
+      }
+      Thread.sleep(50);
+    }
+    throw new AssertionError("Key rotation did not finish");
+  }
+
+  private static byte[] join(Flux<DataBuffer> buffers) {
+    DataBuffer joined = DataBufferUtils.join(buffers).block();
+    byte[] bytes = new byte[joined.readableByteCount()];
+    joined.read(bytes);
+    return bytes;
+  }
+}
@@ -0,0 +1,141 @@
+package com.nfitton.imagestorage.service.impl;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import com.nfitton.imagestorage.component.CascadeClassifierPool;
+import com.nfitton.imagestorage.component.CascadeClassifierPool.Cascade;
+import com.nfitton.imagestorage.configuration.OpenCVConfiguration;
+import com.nfitton.imagestorage.entity.ImageEntity;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import java.io.File;
+import java.net.URL;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.opencv.core.Core;
+import org.opencv.core.Mat;
+import org.opencv.core.MatOfRect;
+import org.opencv.core.Rect;
+import org.opencv.core.Size;
+import org.opencv.imgcodecs.Imgcodecs;
+import org.opencv.imgproc.Imgproc;
+import org.opencv.objdetect.Objdetect;
+import org.springframework.core.io.ClassPathResource;
+import reactor.core.scheduler.Schedulers;
+import reactor.util.function.Tuples;
+
+class OpenCVAnalysisServiceUnit {
+
+  private static final String IMAGE = "motion/imageA.jpeg";
+  private static final double MIN_OVERLAP = 0.5;
+
+  private CascadeClassifierPool cascadePool;
+  private OpenCVAnalysisService analysisService;
+
+  @BeforeAll
+  static void loadOpenCv() {
+    nu.pattern.OpenCV.loadShared();
+    System.loadLibrary(Core.NATIVE_LIBRARY_NAME);
+  }
+
+  @BeforeEach
+  void setUp() {
+    OpenCVConfiguration configuration = mock(OpenCVConfiguration.class);
+    when(configuration.getMaxDimension()).thenReturn(0);
+    when(configuration.getAllCascades()).thenReturn(Arrays.asList(
+        Tuples.of(new ClassPathResource("haar/haarcascade_frontalface_default.xml"), "FACE"),
+        Tuples.of(new ClassPathResource("haar/haarcascade_fullbody.xml"), "BODY"),
+        Tuples.of(new ClassPathResource("haar/haarcascade_upperbody.xml"), "UPPER_BODY")));
+    cascadePool = new CascadeClassifierPool(configuration, new SimpleMeterRegistry());
+    analysisService = new OpenCVAnalysisService(
+        configuration, cascadePool, Schedulers.immediate());
+  }
+
+  @Test
+  void sharedPyramidFindsTheDetectionsOfEachCascadesOwnPyramid() {
+    // GIVEN the detections of each cascade building its own pyramid over the test image
+    String file = imageFile().getPath();
+    List<ImageEntity> expected = detectWithOwnPyramids(file);
+
+    // WHEN the image is analysed with the shared pyramid
+    List<ImageEntity> actual = analysisService.analyzeImage(file)
+        .collectList()
+        .block(Duration.ofMinutes(1));
+
+    // THEN the same detections are found, allowing for rounding between the pyramids
+    assertEquals(expected.size(), actual.size());
+    for (ImageEntity detection : expected) {
+      assertTrue(actual.stream().anyMatch(found -> matches(detection, found)),
+          "Missing detection " + detection.getType() + " at " + toRect(detection));
+    }
+  }
+
+  /**
+   * Runs each cascade as the analysis did before the pyramid was shared.
+   */
+  private List<ImageEntity> detectWithOwnPyramids(String file) {
+    Mat image = Imgcodecs.imread(file);
+    Mat grayImage = new Mat();
+    Imgproc.cvtColor(image, grayImage, Imgproc.COLOR_BGR2GRAY);
+    int minSize = Math.max(0, Math.round(grayImage.rows() * 0.1f));
+    List<ImageEntity> detections = new ArrayList<>();
+    try {
+      for (Cascade cascade : cascadePool.getCascades()) {
+        List<Rect> rects = cascadePool.use(cascade, classifier -> {
+          MatOfRect found = new MatOfRect();
+          try {
+            classifier.detectMultiScale(grayImage, found, 1.1, 2, Objdetect.CASCADE_SCALE_IMAGE,
+                new Size(minSize, minSize), new Size());
+            return found.toList();
+          } finally {
+            found.release();
+          }
+        });
+        for (Rect rect : rects) {
+          detections.add(ImageEntity.Builder.newBuilder()
+              .withX(rect.x)
+              .withY(rect.y)
+              .withWidth(rect.width)
+              .withHeight(rect.height)
+              .withType(cascade.getType())
+              .build());
+        }
+      }
+    } finally {
+      image.release();
+      grayImage.release();
+    }
+    return detections;
+  }
+
+  private static boolean matches(ImageEntity expected, ImageEntity actual) {
+    if (!expected.getType().equals(actual.getType())) {
+      return false;
+    }
+    Rect a = toRect(expected);
+    Rect b = toRect(actual);
+    int width = Math.min(a.x + a.width, b.x + b.width) - Math.max(a.x, b.x);
+    int height = Math.min(a.y + a.height, b.y + b.height) - Math.max(a.y, b.y);
+    if (width <= 0 || height <= 0) {
+      return false;
+    }
+    double intersection = (double) width * height;
+    return intersection / (a.area() + b.area() - intersection) >= MIN_OVERLAP;
+  }
+
+  private static Rect toRect(ImageEntity entity) {
+    return new Rect(entity.getX(), entity.getY(), entity.getWidth(), entity.getHeight());
+  }
+
+  private static File imageFile() {
+    URL url = Thread.currentThread().getContextClassLoader().getResource(IMAGE);
+    return new File(url.getPath());
+  }
+}
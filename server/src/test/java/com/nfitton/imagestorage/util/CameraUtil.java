@@ -6,6 +6,8 @@ import com.nfitton.imagestorage.api.CameraV1;
 import com.nfitton.imagestorage.api.ImageMetadataV1;
 import com.nfitton.imagestorage.api.OutgoingDataV1;
 import java.io.File;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
 import java.util.UUID;
 import org.springframework.core.io.FileSystemResource;
 import org.springframework.http.MediaType;
@@ -166,6 +168,64 @@ public class CameraUtil {
         .block();
   }
 
+  public static ClientResponse listMotionPage(
+      WebClient client, String sessionToken, int limit, String cursor, String... cameraIds) {
+    return client.get()
+        .uri(builder -> {
+          builder.path("/v1/motion")
+              .queryParam("cameras", String.join(",", cameraIds))
+              .queryParam("limit", limit);
+          if (cursor != null) {
+            builder.queryParam("cursor", cursor);
+          }
+          return builder.build();
+        })
+        .header(HttpHeaders.AUTHORIZATION, "Token " + sessionToken)
+        .exchange()
+        .block();
+  }
+
+  public static ClientResponse listMotionWithTags(
+      WebClient client, String sessionToken, String tags, String... cameraIds) {
+    return client.get()
+        .uri(builder -> builder.path("/v1/motion")
+            .queryParam("cameras", String.join(",", cameraIds))
+            .queryParam("tags", tags)
+            .build())
+        .header(HttpHeaders.AUTHORIZATION, "Token " + sessionToken)
+        .exchange()
+        .block();
+  }
+
+  public static ClientResponse streamMotionData(
+      WebClient client, String sessionToken, MediaType mediaType, String... cameraIds) {
+    return client.get()
+        .uri("/v1/motion?cameras=" + String.join(",", cameraIds))
+        .header(HttpHeaders.AUTHORIZATION, "Token " + sessionToken)
+        .accept(mediaType)
+        .exchange()
+        .block();
+  }
+
+  public static ClientResponse tallyMotionData(
+      WebClient client,
+      String sessionToken,
+      ZonedDateTime from,
+      ZonedDateTime to,
+      String frame,
+      String... cameraIds) {
+    return client.get()
+        .uri(builder -> builder.path("/v1/motion/tally")
+            .queryParam("cameras", String.join(",", cameraIds))
+            .queryParam("from", from.withZoneSameInstant(ZoneOffset.UTC))
+            .queryParam("to", to.withZoneSameInstant(ZoneOffset.UTC))
+            .queryParam("frame", frame)
+            .build())
+        .header(HttpHeaders.AUTHORIZATION, "Token " + sessionToken)
+        .exchange()
+        .block();
+  }
+
   public static ClientResponse getMotionData(
       WebClient client, String sessionToken, UUID motionId) {
     return client.get()
@@ -184,4 +244,15 @@ public class CameraUtil {
         .exchange()
         .block();
   }
+
+  public static ClientResponse getMotionImageRange(
+      WebClient client, String sessionToken, UUID motionId, String range) {
+    return client.get()
+        .uri("/v1/motion/" + motionId + "/image")
+        .header(HttpHeaders.AUTHORIZATION, "Token " + sessionToken)
+        .header(HttpHeaders.RANGE, range)
+        .accept(MediaType.IMAGE_JPEG)
+        .exchange()
+        .block();
+  }
 }
@@ -1,28 +1,37 @@
 package com.nfitton.imagestorage.util;
 
 import static com.google.common.io.Files.asByteSource;
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
 import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.assertTrue;
 
 import com.google.common.hash.HashCode;
 import com.google.common.hash.Hashing;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
 import java.net.URL;
 import java.nio.file.Files;
 import java.nio.file.Paths;
 import java.security.InvalidAlgorithmParameterException;
 import java.security.InvalidKeyException;
+import java.security.KeyPair;
 import java.security.NoSuchAlgorithmException;
 import java.util.Arrays;
 import java.util.UUID;
 import javax.crypto.BadPaddingException;
 import javax.crypto.IllegalBlockSizeException;
 import javax.crypto.NoSuchPaddingException;
+import javax.crypto.SecretKey;
 import org.junit.jupiter.api.AfterAll;
 import org.junit.jupiter.api.BeforeAll;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
+import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.core.io.buffer.DataBufferFactory;
+import org.springframework.core.io.buffer.DataBufferUtils;
+import org.springframework.core.io.buffer.DefaultDataBufferFactory;
+import reactor.core.publisher.Flux;
 
 class EncryptionUtilUnit {
 
@@ -173,4 +182,74 @@ class EncryptionUtilUnit {
     HashCode decryptedFile = asByteSource(new File(decryptedFilePath)).hash(Hashing.md5());
     assertEquals(originalFile, decryptedFile);
   }
+
+  @Test
+  void streamedEncryptionIsCompatibleWithFileDecryption()
+      throws IOException, NoSuchAlgorithmException {
+    // GIVEN an aes key pair exists and an image to encrypt exists
+    URL url = Thread.currentThread().getContextClassLoader().getResource("motion/imageA.jpeg");
+    File file = new File(url.getPath());
+    String path = testsDir.getPath() + "/key_" + testId;
+    KeyPair keys = EncryptionUtil.generateRsaKeys(path);
+    DataBufferFactory bufferFactory = new DefaultDataBufferFactory();
+    Flux<DataBuffer> content = DataBufferUtils
+        .readInputStream(() -> new FileInputStream(file), bufferFactory, 1024);
+
+    // WHEN the image is encrypted as a stream
+    String encryptedFilePath = testsDir.getPath() + "/encrypted_" + testId + ".enc";
+    byte[] encrypted = join(EncryptionUtil
+        .encryptWithRsaAes(keys.getPrivate(), content, bufferFactory));
+    Files.write(Paths.get(encryptedFilePath), encrypted);
+
+    // THEN the file can be decrypted with the file based decryption
+    String decryptedFilePath = testsDir.getPath() + "/decrypted_" + testId;
+    EncryptionUtil.decryptWithRsaAes(path + ".pub", encryptedFilePath, decryptedFilePath);
+    HashCode originalFile = asByteSource(file).hash(Hashing.md5());
+    HashCode decryptedFile = asByteSource(new File(decryptedFilePath + ".ver"))
+        .hash(Hashing.md5());
+    assertEquals(originalFile, decryptedFile);
+
+    // AND the file can be decrypted as a stream
+    Flux<DataBuffer> encryptedContent = DataBufferUtils
+        .readInputStream(() -> new FileInputStream(encryptedFilePath), bufferFactory, 1000);
+    byte[] decrypted = join(EncryptionUtil
+        .decryptWithRsaAes(keys.getPublic(), encryptedContent, bufferFactory));
+    assertArrayEquals(Files.readAllBytes(file.toPath()), decrypted);
+  }
+
+  @Test
+  void streamedFilesCanBeDecryptedWithAnUnwrappedKey()
+      throws IOException, NoSuchAlgorithmException {
+    // GIVEN an image encrypted as a stream
+    URL url = Thread.currentThread().getContextClassLoader().getResource("motion/imageA.jpeg");
+    File file = new File(url.getPath());
+    KeyPair keys = EncryptionUtil.generateRsaKeys(testsDir.getPath() + "/key_" + testId);
+    DataBufferFactory bufferFactory = new DefaultDataBufferFactory();
+    byte[] encrypted = join(EncryptionUtil.encryptWithRsaAes(
+        keys.getPrivate(),
+        DataBufferUtils.readInputStream(() -> new FileInputStream(file), bufferFactory, 1024),
+        bufferFactory));
+
+    // WHEN its key is unwrapped once and the content after the header is decrypted with it
+    int headerLength = SegmentedEncryptionUtil.WRAPPED_KEY_LENGTH + EncryptionUtil.IV_LENGTH;
+    SecretKey key = SegmentedEncryptionUtil.unwrapKey(
+        keys.getPublic(),
+        Arrays.copyOf(encrypted, SegmentedEncryptionUtil.WRAPPED_KEY_LENGTH));
+    byte[] iv = Arrays.copyOfRange(
+        encrypted, SegmentedEncryptionUtil.WRAPPED_KEY_LENGTH, headerLength);
+    Flux<DataBuffer> body = Flux.just(bufferFactory
+        .wrap(Arrays.copyOfRange(encrypted, headerLength, encrypted.length)));
+    byte[] decrypted = join(EncryptionUtil.decryptWithRsaAes(key, iv, body, bufferFactory));
+
+    // THEN the original image is returned
+    assertArrayEquals(Files.readAllBytes(file.toPath()), decrypted);
+  }
+
+  private static byte[] join(Flux<DataBuffer> buffers) {
+    DataBuffer joined = DataBufferUtils.join(buffers).block();
+    byte[] bytes = new byte[joined.readableByteCount()];
+    joined.read(bytes);
+    DataBufferUtils.release(joined);
+    return bytes;
+  }
 }
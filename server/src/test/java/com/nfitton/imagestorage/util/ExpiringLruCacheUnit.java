@@ -0,0 +1,53 @@
+package com.nfitton.imagestorage.util;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.time.Duration;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.jupiter.api.Test;
+
+class ExpiringLruCacheUnit {
+
+  @Test
+  void loaderOnlyCalledOnMiss() {
+    ExpiringLruCache<String, String> cache =
+        new ExpiringLruCache<>("test", 10, Duration.ofMinutes(1));
+    AtomicInteger loads = new AtomicInteger();
+
+    assertEquals("a", cache.get("a", key -> {
+      loads.incrementAndGet();
+      return key;
+    }));
+    assertEquals("a", cache.get("a", key -> {
+      loads.incrementAndGet();
+      return key;
+    }));
+    assertEquals(1, loads.get());
+  }
+
+  @Test
+  void leastRecentlyUsedEntryEvicted() {
+    ExpiringLruCache<String, String> cache =
+        new ExpiringLruCache<>("test", 2, Duration.ofMinutes(1));
+    cache.put("a", "a");
+    cache.put("b", "b");
+    cache.get("a");
+    cache.put("c", "c");
+
+    assertTrue(cache.get("a").isPresent());
+    assertFalse(cache.get("b").isPresent());
+    assertTrue(cache.get("c").isPresent());
+    assertEquals(2, cache.size());
+  }
+
+  @Test
+  void expiredEntryNotReturned() {
+    ExpiringLruCache<String, String> cache = new ExpiringLruCache<>("test", 2, Duration.ZERO);
+    cache.put("a", "a");
+
+    assertFalse(cache.get("a").isPresent());
+    assertEquals(0, cache.size());
+  }
+}
@@ -0,0 +1,60 @@
+package com.nfitton.imagestorage.util;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.opencv.core.Core;
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+
+class MatScopeUnit {
+
+  @BeforeAll
+  static void loadOpenCv() {
+    nu.pattern.OpenCV.loadShared();
+    System.loadLibrary(Core.NATIVE_LIBRARY_NAME);
+  }
+
+  @Test
+  void closingDuringUseDefersReleaseUntilTheWorkFinishes() throws Exception {
+    // GIVEN a scope owning a Mat that work is reading
+    int liveMats = MatScope.getLiveMats();
+    MatScope scope = new MatScope();
+    Mat mat = scope.add(new Mat(10, 10, CvType.CV_8UC1));
+    CountDownLatch started = new CountDownLatch(1);
+    CountDownLatch finish = new CountDownLatch(1);
+    ExecutorService executor = Executors.newSingleThreadExecutor();
+    Future<Boolean> work = executor.submit(() -> scope.use(() -> {
+      started.countDown();
+      try {
+        finish.await();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+      return mat.empty();
+    }));
+    assertTrue(started.await(5, TimeUnit.SECONDS));
+
+    // WHEN the scope is closed before the work finishes
+    scope.close();
+
+    // THEN the Mat is still held
+    assertEquals(liveMats + 1, MatScope.getLiveMats());
+    assertFalse(mat.empty());
+
+    // AND it is released once the work finishes, which could still read it
+    finish.countDown();
+    assertFalse(work.get(5, TimeUnit.SECONDS));
+    executor.shutdown();
+    assertEquals(liveMats, MatScope.getLiveMats());
+    assertTrue(mat.empty());
+  }
+}
@@ -0,0 +1,23 @@
+package com.nfitton.imagestorage.util;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.util.concurrent.RejectedExecutionException;
+import org.junit.jupiter.api.Test;
+import org.springframework.http.HttpStatus;
+import org.springframework.web.reactive.function.server.ServerResponse;
+
+class RouterUtilUnit {
+
+  @Test
+  void rejectedWorkIsServiceUnavailable() {
+    // GIVEN a scheduler that rejected work as its queue was full
+    RejectedExecutionException rejected = new RejectedExecutionException("Queue is full");
+
+    // WHEN the error is handled
+    ServerResponse response = RouterUtil.handleErrors(rejected).block();
+
+    // THEN the client is told to try again later
+    assertEquals(HttpStatus.SERVICE_UNAVAILABLE, response.statusCode());
+  }
+}
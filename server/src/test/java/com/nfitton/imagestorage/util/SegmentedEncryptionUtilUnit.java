@@ -0,0 +1,191 @@
+package com.nfitton.imagestorage.util;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import com.nfitton.imagestorage.exception.EncryptionException;
+import com.nfitton.imagestorage.util.SegmentedEncryptionUtil.Header;
+import java.nio.ByteBuffer;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.UUID;
+import javax.crypto.SecretKey;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.core.io.buffer.DataBufferFactory;
+import org.springframework.core.io.buffer.DataBufferUtils;
+import org.springframework.core.io.buffer.DefaultDataBufferFactory;
+import reactor.core.publisher.Flux;
+
+class SegmentedEncryptionUtilUnit {
+
+  private static final int SEGMENT = SegmentedEncryptionUtil.SEGMENT_SIZE;
+
+  private static KeyPair keys;
+  private final DataBufferFactory bufferFactory = new DefaultDataBufferFactory();
+
+  @BeforeAll
+  static void preconditions() throws NoSuchAlgorithmException {
+    KeyPairGenerator kpg = KeyPairGenerator.getInstance("RSA");
+    kpg.initialize(2048);
+    keys = kpg.generateKeyPair();
+  }
+
+  @ParameterizedTest
+  @ValueSource(ints = {0, 1, SEGMENT - 1, SEGMENT, SEGMENT + 1, 3 * SEGMENT + 17})
+  void everySegmentCanBeDecryptedIndependently(int length) {
+    // GIVEN content encrypted in chunks that do not line up with segments
+    byte[] content = randomBytes(length);
+    byte[] encrypted = encrypt(content, 1000);
+
+    // WHEN the header is read
+    ByteBuffer file = ByteBuffer.wrap(encrypted);
+    assertTrue(SegmentedEncryptionUtil.isSegmented(file));
+    Header header = SegmentedEncryptionUtil.readHeader(file);
+    SecretKey key = SegmentedEncryptionUtil.unwrapKey(keys.getPublic(), header);
+
+    // THEN the plaintext length is known without decrypting
+    assertEquals(length, SegmentedEncryptionUtil.plaintextLength(header, encrypted.length));
+
+    // AND every segment decrypts to its part of the content
+    long segments = SegmentedEncryptionUtil.segmentCount(header, encrypted.length);
+    for (int i = 0; i < segments; i++) {
+      byte[] plaintext = SegmentedEncryptionUtil
+          .decryptSegment(key, header, i, i == segments - 1, segment(header, encrypted, i));
+      int from = i * SEGMENT;
+      assertArrayEquals(
+          Arrays.copyOfRange(content, from, Math.min(length, from + SEGMENT)), plaintext);
+    }
+  }
+
+  @ParameterizedTest
+  @ValueSource(ints = {2 * SEGMENT, 2 * SEGMENT + 1})
+  void truncatedFilesAreRejected(int length) {
+    // GIVEN a file that has lost its last segment
+    byte[] encrypted = encrypt(randomBytes(length), 4096);
+    Header header = SegmentedEncryptionUtil.readHeader(ByteBuffer.wrap(encrypted));
+    SecretKey key = SegmentedEncryptionUtil.unwrapKey(keys.getPublic(), header);
+    long segments = SegmentedEncryptionUtil.segmentCount(header, encrypted.length);
+    byte[] truncated = Arrays.copyOf(
+        encrypted, (int) SegmentedEncryptionUtil.segmentOffset(header, segments - 1));
+
+    // WHEN the new last segment is decrypted
+    long truncatedSegments = SegmentedEncryptionUtil.segmentCount(header, truncated.length);
+    ByteBuffer lastSegment = segment(header, truncated, (int) truncatedSegments - 1);
+
+    // THEN decryption fails
+    assertThrows(EncryptionException.class, () -> SegmentedEncryptionUtil.decryptSegment(
+        key, header, truncatedSegments - 1, true, lastSegment));
+  }
+
+  @ParameterizedTest
+  @ValueSource(ints = {0, SEGMENT + 1})
+  void sharedDataKeyIsReferencedById(int length) {
+    // GIVEN two files encrypted with the same data key
+    SecretKey key = SegmentedEncryptionUtil.generateKey();
+    UUID keyId = UUID.randomUUID();
+    byte[] content = randomBytes(length);
+    byte[] first = join(SegmentedEncryptionUtil.encrypt(key, keyId, chunks(content, 1000),
+        bufferFactory));
+    byte[] second = join(SegmentedEncryptionUtil.encrypt(key, keyId, chunks(content, 1000),
+        bufferFactory));
+
+    // WHEN the headers are read
+    Header header = SegmentedEncryptionUtil.readHeader(ByteBuffer.wrap(first));
+    Header secondHeader = SegmentedEncryptionUtil.readHeader(ByteBuffer.wrap(second));
+
+    // THEN they reference the key instead of holding it
+    assertEquals(keyId, header.getKeyId());
+    assertNull(header.getWrappedKey());
+    assertThrows(EncryptionException.class,
+        () -> SegmentedEncryptionUtil.unwrapKey(keys.getPublic(), header));
+    assertEquals(length, SegmentedEncryptionUtil.plaintextLength(header, first.length));
+
+    // AND each file uses its own nonces
+    assertFalse(Arrays.equals(header.getNoncePrefix(), secondHeader.getNoncePrefix()));
+
+    // AND the content decrypts with the shared key
+    long segments = SegmentedEncryptionUtil.segmentCount(header, first.length);
+    for (int i = 0; i < segments; i++) {
+      byte[] plaintext = SegmentedEncryptionUtil
+          .decryptSegment(key, header, i, i == segments - 1, segment(header, first, i));
+      int from = i * SEGMENT;
+      assertArrayEquals(
+          Arrays.copyOfRange(content, from, Math.min(length, from + SEGMENT)), plaintext);
+    }
+  }
+
+  @ParameterizedTest
+  @ValueSource(ints = {1, SEGMENT + 1})
+  void segmentsDecryptIntoAReusedDirectBuffer(int length) {
+    // GIVEN content spanning one or two segments and a single direct buffer
+    byte[] content = randomBytes(length);
+    byte[] encrypted = encrypt(content, 1000);
+    Header header = SegmentedEncryptionUtil.readHeader(ByteBuffer.wrap(encrypted));
+    SecretKey key = SegmentedEncryptionUtil.unwrapKey(keys.getPublic(), header);
+    ByteBuffer plaintext = ByteBuffer.allocateDirect(SEGMENT);
+
+    // WHEN every segment is decrypted into the same buffer
+    long segments = SegmentedEncryptionUtil.segmentCount(header, encrypted.length);
+    for (int i = 0; i < segments; i++) {
+      plaintext.clear();
+      int decrypted = SegmentedEncryptionUtil.decryptSegment(
+          key, header, i, i == segments - 1, segment(header, encrypted, i), plaintext);
+
+      // THEN the buffer holds that segment's part of the content
+      int from = i * SEGMENT;
+      byte[] expected = Arrays.copyOfRange(content, from, Math.min(length, from + SEGMENT));
+      assertEquals(expected.length, decrypted);
+      byte[] actual = new byte[decrypted];
+      plaintext.flip();
+      plaintext.get(actual);
+      assertArrayEquals(expected, actual);
+    }
+  }
+
+  @ParameterizedTest
+  @ValueSource(ints = {0, 300})
+  void legacyFilesAreNotSegmented(int length) {
+    assertFalse(SegmentedEncryptionUtil.isSegmented(ByteBuffer.wrap(randomBytes(length))));
+  }
+
+  private static byte[] join(Flux<DataBuffer> buffers) {
+    DataBuffer joined = DataBufferUtils.join(buffers).block();
+    byte[] bytes = new byte[joined.readableByteCount()];
+    joined.read(bytes);
+    return bytes;
+  }
+
+  private byte[] encrypt(byte[] content, int chunkSize) {
+    return join(SegmentedEncryptionUtil
+        .encrypt(keys.getPrivate(), chunks(content, chunkSize), bufferFactory));
+  }
+
+  private Flux<DataBuffer> chunks(byte[] content, int chunkSize) {
+    return Flux
+        .range(0, (content.length + chunkSize - 1) / chunkSize)
+        .map(i -> bufferFactory.wrap(Arrays.copyOfRange(
+            content, i * chunkSize, Math.min(content.length, (i + 1) * chunkSize))));
+  }
+
+  private static ByteBuffer segment(Header header, byte[] file, int index) {
+    int offset = (int) SegmentedEncryptionUtil.segmentOffset(header, index);
+    int length = SegmentedEncryptionUtil.encryptedSegmentSize(header);
+    return ByteBuffer.wrap(file, offset, Math.min(length, file.length - offset));
+  }
+
+  private static byte[] randomBytes(int length) {
+    byte[] bytes = new byte[length];
+    new Random(length).nextBytes(bytes);
+    return bytes;
+  }
+}